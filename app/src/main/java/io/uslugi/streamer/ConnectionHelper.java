@@ -8,6 +8,8 @@ import com.wmspanel.libstream.Streamer;
 import io.uslugi.streamer.data.Connection;
 import io.uslugi.streamer.settingsutils.ConnectivitySettings;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -62,7 +64,9 @@ public class ConnectionHelper {
             // https://[2001:db8:85a3:8d3:1319:8a2e:370:7348]:443
             config.host = address.toFullString();
         } else {
-            config.host = uri.getHost();
+            // Pre-resolved while waiting to connect or reconnect, saves a DNS round trip
+            final InetAddress cached = ConnectionPrewarmer.getInstance().cachedAddress(uri.getHost());
+            config.host = cached instanceof Inet4Address ? cached.getHostAddress() : uri.getHost();
         }
 
         config.port = uri.getPort();
@@ -0,0 +1,154 @@
+package io.uslugi.streamer;
+
+import static io.uslugi.streamer.log.EventLog.Logd;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+
+import io.uslugi.libcommon.UriResult;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resolves the ingest host and checks it is reachable before the stream needs it.
+ * <p>
+ * libstream does its own handshake and can't take over a socket, so warming means a fresh DNS answer
+ * in the cache, an awake radio and a known-good route. SRT connections use the cached address
+ * directly ({@link ConnectionHelper#toSrtConfig}); RTMP keeps the host name for TLS and the tcUrl
+ * and benefits from the system resolver cache. Setup time of each phase goes to the event log.
+ */
+public class ConnectionPrewarmer {
+    private static final String TAG = "ConnectionPrewarmer";
+
+    private static final long ADDRESS_TTL = 2 * 60_000; // No TTL from InetAddress, keep it short
+    private static final int CONNECT_TIMEOUT = 5_000;
+    private static final int RTMP_PORT = 1935;
+    private static final int RTMPS_PORT = 443;
+
+    private static final class CachedAddress {
+        final InetAddress address;
+        final long expires;
+
+        CachedAddress(InetAddress address, long expires) {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+
+    private static final ConnectionPrewarmer instance = new ConnectionPrewarmer();
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Map<String, CachedAddress> mAddresses = new ConcurrentHashMap<>();
+    // Main thread only
+    private final Map<Integer, Long> mConnectStarted = new HashMap<>();
+
+    public static ConnectionPrewarmer getInstance() {
+        return instance;
+    }
+
+    /**
+     * Resolves and probes the host of the url in the background.
+     */
+    public void prewarm(@Nullable final String url) {
+        if (TextUtils.isEmpty(url)) {
+            return;
+        }
+        final URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            return;
+        }
+        final String host = uri.getHost();
+        final String scheme = uri.getScheme();
+        if (TextUtils.isEmpty(host) || scheme == null || !UriResult.isSupported(scheme)) {
+            return;
+        }
+        final int port = uri.getPort() > 0 ? uri.getPort()
+                : "rtmps".equalsIgnoreCase(scheme) ? RTMPS_PORT : RTMP_PORT;
+        final boolean probe = UriResult.isRtmp(scheme);
+        mExecutor.execute(() -> warm(host, port, probe));
+    }
+
+    /**
+     * @return address of the host resolved within the TTL, or null.
+     */
+    @Nullable
+    public InetAddress cachedAddress(@Nullable String host) {
+        if (TextUtils.isEmpty(host)) {
+            return null;
+        }
+        final CachedAddress cached = mAddresses.get(host);
+        if (cached == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() > cached.expires) {
+            mAddresses.remove(host);
+            return null;
+        }
+        return cached.address;
+    }
+
+    /**
+     * Drops cached addresses, they may belong to the previous network.
+     */
+    public void invalidate() {
+        mAddresses.clear();
+    }
+
+    public void onConnectStarted(int connectionId) {
+        mConnectStarted.put(connectionId, SystemClock.elapsedRealtime());
+    }
+
+    public void onConnected(int connectionId) {
+        final Long started = mConnectStarted.remove(connectionId);
+        if (started != null) {
+            Logd(TAG, "Connection " + connectionId + " handshake " + (SystemClock.elapsedRealtime() - started) + " ms");
+        }
+    }
+
+    public void onConnectFinished(int connectionId) {
+        mConnectStarted.remove(connectionId);
+    }
+
+    private void warm(String host, int port, boolean probe) {
+        final long dnsStart = SystemClock.elapsedRealtime();
+        final InetAddress address;
+        try {
+            address = InetAddress.getByName(host);
+        } catch (UnknownHostException e) {
+            Logd(TAG, "Can't resolve " + host + ": " + e.getMessage());
+            return;
+        }
+        final long dnsMs = SystemClock.elapsedRealtime() - dnsStart;
+        mAddresses.put(host, new CachedAddress(address, SystemClock.elapsedRealtime() + ADDRESS_TTL));
+
+        if (!probe) {
+            Logd(TAG, String.format(Locale.US, "%s -> %s dns %d ms", host, address.getHostAddress(), dnsMs));
+            return;
+        }
+        final long tcpStart = SystemClock.elapsedRealtime();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+            Logd(TAG, String.format(Locale.US, "%s -> %s dns %d ms, tcp %d ms",
+                    host, address.getHostAddress(), dnsMs, SystemClock.elapsedRealtime() - tcpStart));
+        } catch (IOException e) {
+            Logd(TAG, String.format(Locale.US, "%s -> %s dns %d ms, port %d unreachable: %s",
+                    host, address.getHostAddress(), dnsMs, port, e.getMessage()));
+        }
+    }
+}
@@ -412,8 +412,27 @@ public class LarixActivity extends MainActivityBase {
             SetupHolder.getInstance().init(cameraList, mFocusMode);
         }
 
+        mStatsSampler.setBitrate(videoConfig.bitRate);
+        mStatsSampler.setFps(videoConfig.fps);
         mConditioner = StreamConditionerBase.newInstance(this,
                 videoConfig.bitRate, activeCameraInfo);
+        if (mConditioner != null) {
+            mConditioner.setPowerCaps(mPowerGovernor.caps());
+            mConditioner.setListener(new StreamConditionerBase.Listener() {
+                @Override
+                public void onBitrateChanged(int bitrate, Streamer.FpsRange fpsRange) {
+                    Logd(TAG, "Adaptive bitrate: " + bitrate + " bps, fps " + fpsRange.fpsMin + "..." + fpsRange.fpsMax);
+                }
+
+                @Override
+                public void onAudioOnlyChanged(boolean audioOnly) {
+                    Logd(TAG, "Adaptive bitrate audio-only: " + audioOnly);
+                    if (mOverlayManager != null) {
+                        mOverlayManager.setAudioOnly(LarixActivity.this, audioOnly);
+                    }
+                }
+            });
+        }
 
         updateFlashButton(mStreamerGL.isTorchOn());
         setDefaultFlashMode();
@@ -1,6 +1,5 @@
 package io.uslugi.streamer;
 
-import static io.uslugi.streamer.helper.Constants.DelayTimes.RETRY_TIME_DELAY;
 import static io.uslugi.streamer.helper.Constants.DelayTimes.START_RECORDING_TIME;
 import static io.uslugi.streamer.helper.Constants.DelayTimes.STOP_RECORDING_TIME_TEST;
 import static io.uslugi.streamer.log.EventLog.Logd;
@@ -25,6 +24,7 @@ import android.os.PowerManager;
 import android.util.Log;
 import android.view.ScaleGestureDetector;
 import android.view.View;
+import android.view.WindowManager;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
@@ -36,6 +36,7 @@ import com.wmspanel.libstream.Streamer;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.Date;
 import java.util.HashMap;
@@ -48,6 +49,12 @@ import java.util.TimerTask;
 import io.uslugi.libcommon.PlatformUtils;
 import io.uslugi.libcommon.UriResult;
 import io.uslugi.libcommon.sntp.SntpUpdater;
+import io.uslugi.streamer.api.CredentialLease;
+import io.uslugi.streamer.api.HttpMetrics;
+import io.uslugi.streamer.conditioner.NetworkProfileStore;
+import io.uslugi.streamer.conditioner.PowerGovernor;
+import io.uslugi.streamer.conditioner.StallWatchdog;
+import io.uslugi.streamer.conditioner.StatsSampler;
 import io.uslugi.streamer.conditioner.StreamConditionerBase;
 import io.uslugi.streamer.data.Connection;
 import io.uslugi.streamer.data.Section;
@@ -55,23 +62,31 @@ import io.uslugi.streamer.data.SikSingleton;
 import io.uslugi.streamer.helper.CommonHelper;
 import io.uslugi.streamer.helper.Constants;
 import io.uslugi.streamer.helper.Formatter;
-import io.uslugi.streamer.helper.SharedPreferencesHelper;
+import io.uslugi.streamer.log.EventLog;
+import io.uslugi.streamer.metrics.MetricsServer;
+import io.uslugi.streamer.metrics.MetricsCollector;
+import io.uslugi.streamer.metrics.MetricsSnapshot;
+import io.uslugi.streamer.metrics.TelemetryUploader;
+import io.uslugi.streamer.overlay.BitmapCache;
 import io.uslugi.streamer.settingsutils.AudioSettings;
 import io.uslugi.streamer.settingsutils.ConnectivitySettings;
 import io.uslugi.streamer.settingsutils.MediaFileSettings;
 import io.uslugi.streamer.settingsutils.Settings;
 import io.uslugi.streamer.ui.MainActivity;
 import io.uslugi.streamer.ui.PowerIndication;
+import io.uslugi.streamer.upload.SegmentUploader;
 
 // Base class for Streamer activities
 // Holds connection logic, preferences, UI and Activity state transition
 public abstract class MainActivityBase extends ActivityCommons implements Streamer.Listener, SntpUpdater.Listener {
     private final String TAG = "MainActivityBase";
+    private static final long STATS_LOG_INTERVAL = 60_000;
 
     protected Handler mHandler;
     protected Streamer mStreamer;
     protected boolean mBroadcastOn;
     protected int mRetryPending;
+    protected ReconnectScheduler mReconnectScheduler;
 
     private final Map<Integer, Connection> mConnectionId = new HashMap<>();
     private final Map<Integer, Streamer.ConnectionState> mConnectionState = new HashMap<>();
@@ -81,6 +96,8 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
     protected Streamer.CaptureState mAudioCaptureState = Streamer.CaptureState.FAILED;
 
     private long mBroadcastStartTime;
+    private long mStatsLoggedAt;
+    private final Map<String, Long> mHttpCallsLogged = new HashMap<>();
 
     private Timer mCheckBatteryLevelTimer;
     private Timer mUpdateStatisticsTimer;
@@ -91,11 +108,41 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
 
     private boolean mIsRecordOn;
     private int mRestartRecordInterval;
+    private int mSplitPending; // Segments closed by a split, STOPPED not seen yet
 
     protected ScaleGestureDetector mScaleGestureDetector;
     protected float mScaleFactor;
 
+    protected final StatsSampler mStatsSampler = new StatsSampler();
+    private boolean mConditionerStarted;
+    private final MetricsSnapshot mMetricsSnapshot = new MetricsSnapshot();
+    private MetricsServer mMetricsServer;
+    private TelemetryUploader mTelemetryUploader;
+    private SegmentUploader mSegmentUploader;
+    private final StallWatchdog mStallWatchdog = new StallWatchdog(mStatsSampler, new StallWatchdog.Recovery() {
+        // libstream has no key frame request, re-applying the bitrate reconfigures the encoder
+        @Override
+        public void refreshEncoder() {
+            mHandler.post(() -> {
+                if (mStreamer != null && mStatsSampler.bitrate() > 0) {
+                    mStreamer.changeBitRate(mStatsSampler.bitrate());
+                }
+            });
+        }
+
+        @Override
+        public void restartConnection(int connectionId) {
+            mHandler.post(() -> MainActivityBase.this.restartConnection(connectionId));
+        }
+
+        @Override
+        public void restartPipeline() {
+            mHandler.post(MainActivityBase.this::restartVideoCapture);
+        }
+    });
     protected StreamConditionerBase mConditioner;
+    protected final PowerGovernor mPowerGovernor = new PowerGovernor();
+    private boolean mBrightnessDecreased;
 
     private PowerManager.OnThermalStatusChangedListener mThermalStatusListener;
 
@@ -116,7 +163,10 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
 
     private final Runnable mSplitRecord = () -> {
         if (mStreamer != null) {
-            if (!MediaFileSettings.splitRecord(MainActivityBase.this, mStreamer)) {
+            if (MediaFileSettings.splitRecord(MainActivityBase.this, mStreamer)) {
+                mSplitPending++;
+                scheduleSplit();
+            } else {
                 stopRecord();
                 maybeStopBroadcast();
             }
@@ -126,6 +176,8 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
     protected final Runnable mUpdateStatistics = new Runnable() {
         @Override
         public void run() {
+            updateMetrics();
+
             if (mStreamer == null) {
                 return;
             }
@@ -134,16 +186,19 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
             final long duration = (curTime - mBroadcastStartTime) / 1000L;
             binding.broadcastTime.setText(mFormatter.timeToString(duration));
 
-            if (mConnectionId.keySet().isEmpty()) {
+            if (mConnectionId.keySet().isEmpty() || curTime - mStatsLoggedAt < STATS_LOG_INTERVAL) {
                 return;
             }
+            mStatsLoggedAt = curTime;
 
             for (int id : mConnectionId.keySet()) {
                 Streamer.ConnectionState state = mConnectionState.get(id);
-                if (state == null) {
+                if (state != Streamer.ConnectionState.RECORD) {
                     continue;
                 }
+                Logd(TAG, "Connection " + id + " " + mStatsSampler.summary(id));
             }
+            logHttpMetrics();
         }
     };
 
@@ -262,11 +317,12 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
             if (mBroadcastOn && isSucceed) {
                 if (isStreamerReady()) {
                     Connection connection =
-                            getConnection(SharedPreferencesHelper.INSTANCE.getRtmpUrl(getApplicationContext()));
+                            getConnection(CredentialLease.streamUrl(getApplicationContext()));
 
                     // Try to reconnect
                     if (connection != null) {
-                        mHandler.postDelayed(new RetryRunnable(connection), RETRY_TIME_DELAY);
+                        mReconnectScheduler.schedule(new RetryRunnable(connection),
+                                mReconnectScheduler.delay(connection.id));
                         mRetryPending++;
                     }
                 }
@@ -274,7 +330,10 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
         });
 
         mHandler = new Handler(Looper.getMainLooper());
+        mReconnectScheduler = new ReconnectScheduler(this, mHandler);
         mFormatter = new Formatter(this);
+        mTelemetryUploader = new TelemetryUploader(this, mStatsSampler);
+        mSegmentUploader = new SegmentUploader(this, mStatsSampler);
     }
 
     @Override
@@ -309,6 +368,15 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
         }, 1000, 1000);
 
         startPowerMonitoring();
+        startMetrics();
+        mTelemetryUploader.start();
+        mSegmentUploader.start();
+        mReconnectScheduler.start();
+        ConnectionPrewarmer.getInstance().prewarm(BuildConfig.DEBUG ? BuildConfig.HOME_SERVER_URL
+                : CredentialLease.streamUrl(getApplicationContext()));
+        if (Constants.Mode.REAL.equals(mSection.getCurrentMode())) {
+            viewModel.startLeaseRefresh(mSection, getApplicationContext());
+        }
 
         if (AudioSettings.useBluetooth()) {
             registerForBluetooth();
@@ -344,6 +412,11 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
         }
 
         stopPowerMonitoring();
+        stopMetrics();
+        mTelemetryUploader.stop();
+        mSegmentUploader.stop();
+        mReconnectScheduler.stop();
+        viewModel.stopLeaseRefresh();
 
         // Applications should release the camera immediately in onPause()
         // https://developer.android.com/guide/topics/media/camera.html#release-camera
@@ -455,7 +528,7 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
             return false;
         }
 
-        String HOME_STREAM_URL = SharedPreferencesHelper.INSTANCE.getRtmpUrl(getApplicationContext());
+        String HOME_STREAM_URL = CredentialLease.streamUrl(getApplicationContext());
 
         if (
                 HOME_STREAM_URL.equals(Constants.StringPlaceholders.EMPTY) &&
@@ -478,18 +551,24 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
         }
 
         mIsRecordOn = startRecord();
+        if (mConditioner != null) {
+            mConditioner.setRecording(mIsRecordOn);
+        }
 
         if (mConnectionId.isEmpty() && !mIsRecordOn) {
             return false;
         }
 
         mBroadcastStartTime = System.currentTimeMillis();
+        mStatsLoggedAt = mBroadcastStartTime;
         displayStatistics(true);
 
+        // Sampled for the whole broadcast, the connection may only come up after retryLogin
+        mStatsSampler.start(mStreamer);
+        mStallWatchdog.reset();
+        mStatsSampler.addListener(mStallWatchdog);
         if (!mConnectionId.isEmpty()) {
-            if (mConditioner != null) {
-                mConditioner.start(mStreamer);
-            }
+            startConditioner(mConnectionId.values().iterator().next().url);
         } else {
             if (BuildConfig.DEBUG) {
                 binding.recOnlyWarning.setText(R.string.recording_to_file_initial);
@@ -537,11 +616,26 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
 
         if (connectionId != -1) {
             mConnectionId.put(connectionId, connection);
+            ConnectionPrewarmer.getInstance().onConnectStarted(connectionId);
+            mStatsSampler.addConnection(connectionId);
 
             if (mConditioner != null) {
                 mConditioner.addConnection(connectionId);
             }
+            if (mBroadcastOn) {
+                // First connection of a broadcast that started without one
+                startConditioner(connection.url);
+            }
+        }
+    }
+
+    private void startConditioner(String url) {
+        if (mConditioner == null || mConditionerStarted) {
+            return;
         }
+        mConditioner.setWarmStartStore(NetworkProfileStore.create(this, url));
+        mConditioner.start(mStreamer, mStatsSampler);
+        mConditionerStarted = true;
     }
 
     protected void releaseConnections() {
@@ -553,6 +647,8 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
             releaseConnection(id);
         }
         mRetryPending = 0;
+        mReconnectScheduler.cancel();
+        mReconnectScheduler.reset();
 
         binding.textCapture.setText(R.string.STREAMER_START_TEXT);
 
@@ -562,6 +658,9 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
         if (mConditioner != null) {
             mConditioner.stop();
         }
+        mConditionerStarted = false;
+        mStatsSampler.removeListener(mStallWatchdog);
+        mStatsSampler.stop();
         // don't keep mute state after restart
         mute(false);
 
@@ -574,12 +673,45 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
             mConnectionId.remove(connectionId);
             mConnectionState.remove(connectionId);
             mStreamer.releaseConnection(connectionId);
+            mStatsSampler.removeConnection(connectionId);
             if (mConditioner != null) {
                 mConditioner.removeConnection(connectionId);
             }
         }
     }
 
+    /**
+     * Stall recovery: drop the connection and dial it again right away.
+     */
+    private void restartConnection(int connectionId) {
+        final Connection connection = mConnectionId.get(connectionId);
+        if (mStreamer == null || !mBroadcastOn || connection == null) {
+            return;
+        }
+        releaseConnection(connectionId);
+        ConnectionPrewarmer.getInstance().onConnectFinished(connectionId);
+        final int active = mConnectionId.size();
+        createConnection(leasedConnection(connection));
+        if (mConnectionId.size() == active) {
+            // Could not dial, leave it to the scheduler
+            mReconnectScheduler.schedule(new RetryRunnable(leasedConnection(connection)),
+                    mReconnectScheduler.delay(connection.id));
+            mRetryPending++;
+        }
+    }
+
+    /**
+     * Stall recovery: restart camera, GL and video encoder with the config the streamer was built
+     * with, connections and recording stay.
+     */
+    protected void restartVideoCapture() {
+        if (mStreamer == null || !mBroadcastOn) {
+            return;
+        }
+        mStreamer.stopVideoCapture();
+        startVideoCapture();
+    }
+
     protected void displayStatistics(boolean show) {
         final int isVisible = show ? View.VISIBLE : View.INVISIBLE;
 
@@ -642,7 +774,11 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
         switch (state) {
             case INITIALIZED:
             case SETUP:
+                break;
             case CONNECTED:
+                mReconnectScheduler.onConnected(mConnectionId.get(connectionId).id);
+                ConnectionPrewarmer.getInstance().onConnected(connectionId);
+                CredentialLease.onAccepted();
                 break;
             case RECORD:
                 // Hide warning dialog
@@ -660,18 +796,24 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
                 final Connection connection = mConnectionId.get(connectionId);
                 // remove from active connections list
                 releaseConnection(connectionId);
+                final long retryDelay = mReconnectScheduler.onDisconnected(connection.id, status);
+                ConnectionPrewarmer.getInstance().onConnectFinished(connectionId);
 
-                if (status == Streamer.Status.UNKNOWN_FAIL && CommonHelper.INSTANCE.isOnline(this)) {
+                final boolean authFailure = status == Streamer.Status.UNKNOWN_FAIL
+                        || status == Streamer.Status.AUTH_FAIL;
+                if (authFailure && CommonHelper.INSTANCE.isOnline(this) && CredentialLease.onRejected(this)) {
                     // Try to get new RtmpUrl and make new connection
                     viewModel.retryLogin(mSection, this);
                 } else {
-                    // Try with the current RtmpUrl
-                    mHandler.postDelayed(new RetryRunnable(connection), RETRY_TIME_DELAY);
+                    // Try with the leased RtmpUrl
+                    // Resolve again shortly before the retry, it picks up a fresh address
+                    mReconnectScheduler.schedule(new RetryRunnable(leasedConnection(connection)), retryDelay,
+                            () -> ConnectionPrewarmer.getInstance().prewarm(connection.url));
                     mRetryPending++;
                 }
 
                 // show error message including connection name
-                final String msg = Formatter.getMessage(this, connection, status, info, (int) RETRY_TIME_DELAY);
+                final String msg = Formatter.getMessage(this, connection, status, info, (int) retryDelay);
                 mConnectionInfoMessages.put(connection.id, msg);
                 showToast(msg);
 
@@ -740,23 +882,36 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
     public void onRecordStateChanged(Streamer.RecordState state, Uri uri, Streamer.SaveMethod method) {
         Logd(TAG, "onRecordStateChanged, state=" + state);
 
+        if (state == Streamer.RecordState.STOPPED && mSplitPending > 0) {
+            // Segment boundary, the recording goes on in the next file
+            mSplitPending--;
+            onSaveFinished(uri, method);
+            if (Constants.Mode.REAL.equals(getSection().getCurrentMode())) {
+                mSegmentUploader.enqueue(uri, null);
+            }
+            return;
+        }
+
         binding.recIndicator.setVisibility(state == Streamer.RecordState.STARTED ? View.VISIBLE : View.INVISIBLE);
 
         switch (state) {
             case STARTED:
-                CommonHelper.INSTANCE.setUpBrightness(this, true);
-
-                if (mRestartRecordInterval > 0) {
-                    mHandler.postDelayed(mSplitRecord, mRestartRecordInterval);
-                }
+                setUpBrightness(true);
+                scheduleSplit();
                 break;
             case STOPPED:
-                CommonHelper.INSTANCE.setUpBrightness(this, false);
+                setUpBrightness(false);
+                if (Constants.Mode.REAL.equals(getSection().getCurrentMode())) {
+                    mSegmentUploader.enqueue(uri, null);
+                }
                 handleOnStopButtonClicked(uri, method);
                 break;
             case FAILED:
                 showToast(getString(R.string.err_record_failed));
                 mIsRecordOn = false;
+                if (mConditioner != null) {
+                    mConditioner.setRecording(false);
+                }
                 maybeStopBroadcast();
                 break;
             case INITIALIZED:
@@ -844,8 +999,16 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
     protected void stopRespondingToTouchEvents() {
     }
 
+    private void scheduleSplit() {
+        mHandler.removeCallbacks(mSplitRecord);
+        if (mRestartRecordInterval > 0) {
+            mHandler.postDelayed(mSplitRecord, mRestartRecordInterval);
+        }
+    }
+
     private boolean startRecord() {
         stopRecord();
+        mSplitPending = 0;
         final boolean result = MediaFileSettings.startRecord(this, mStreamer);
         if (result) {
             mRestartRecordInterval = MediaFileSettings.recordingIntervalMillis();
@@ -855,6 +1018,9 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
 
     private void stopRecord() {
         mIsRecordOn = false;
+        if (mConditioner != null) {
+            mConditioner.setRecording(false);
+        }
 
         mHandler.removeCallbacks(mSplitRecord);
         mRestartRecordInterval = 0;
@@ -928,8 +1094,11 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
         registerReceiver(mBatteryReceiver, intentFilter);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            mThermalStatusListener = status -> PowerIndication.updateThermalStatus(
-                    status, binding.thermometer);
+            mThermalStatusListener = status -> {
+                PowerIndication.updateThermalStatus(status, binding.thermometer);
+                mPowerGovernor.setThermalStatus(status);
+                updatePowerCaps();
+            };
             final PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
             if (pm != null) {
                 pm.addThermalStatusListener(mThermalStatusListener);
@@ -962,6 +1131,91 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
                 maybeStopBroadcast();
             }
             PowerIndication.updateBattery(status, binding.batteryView);
+            mPowerGovernor.setBattery(PowerIndication.batteryPercent(status),
+                    PowerIndication.isCharging(status));
+        }
+        // Also relaxes the caps over time, this runs every minute
+        updatePowerCaps();
+    }
+
+    private void startMetrics() {
+        if (!Settings.metricsEndpoint() || mMetricsServer != null) {
+            return;
+        }
+        final MetricsServer server = new MetricsServer(mMetricsSnapshot,
+                Settings.metricsPort(), Settings.metricsLanAccess());
+        try {
+            server.start();
+            mMetricsServer = server;
+            Logd(TAG, "Metrics endpoint on port " + server.port());
+        } catch (IOException e) {
+            Logd(TAG, "Metrics endpoint failed: " + e.getMessage());
+        }
+    }
+
+    private void stopMetrics() {
+        if (mMetricsServer != null) {
+            mMetricsServer.stop();
+            mMetricsServer = null;
+        }
+    }
+
+    // Renders the snapshot the endpoint serves, scrapes never reach the streamer
+    private void updateMetrics() {
+        if (mMetricsServer == null) {
+            return;
+        }
+        final MetricsSnapshot snapshot = mMetricsSnapshot;
+        snapshot.timestamp = System.currentTimeMillis();
+        snapshot.broadcasting = mBroadcastOn;
+        snapshot.recording = mIsRecordOn;
+        snapshot.thermalStatus = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? mPowerGovernor.thermalStatus() : -1;
+        snapshot.batteryPercent = mPowerGovernor.batteryPercent();
+        snapshot.charging = mPowerGovernor.isCharging();
+        final BitmapCache bitmapCache = BitmapCache.getInstance();
+        snapshot.overlayCacheBytes = bitmapCache.bytes();
+        snapshot.overlayCacheBudget = bitmapCache.budget();
+        snapshot.overlayCacheHits = bitmapCache.hits();
+        snapshot.overlayCacheMisses = bitmapCache.misses();
+        snapshot.overlayCacheEvictions = bitmapCache.evictions();
+        MetricsCollector.collect(snapshot, mStatsSampler, mConnectionId, mConnectionState,
+                HttpMetrics.INSTANCE.snapshot(), EventLog.getInstance());
+        snapshot.publish();
+    }
+
+    // Release builds have no endpoint by default, the event log keeps the HTTP timing for them
+    private void logHttpMetrics() {
+        for (Map.Entry<String, HttpMetrics.Endpoint> entry : HttpMetrics.INSTANCE.snapshot().entrySet()) {
+            final long calls = entry.getValue().getCalls();
+            final Long logged = mHttpCallsLogged.put(entry.getKey(), calls);
+            if (logged == null || logged != calls) {
+                Logd(TAG, "HTTP " + entry.getKey() + " " + entry.getValue());
+            }
+        }
+    }
+
+    private void updatePowerCaps() {
+        final PowerGovernor.Caps caps = mPowerGovernor.update();
+        if (caps == null) {
+            return;
+        }
+        Logd(TAG, "Power caps: " + caps);
+        if (mConditioner != null) {
+            mConditioner.setPowerCaps(caps);
+        }
+        setUpBrightness(mBrightnessDecreased);
+    }
+
+    // Preview is the other big consumer next to the encoder, dim it harder while the device is hot
+    private void setUpBrightness(boolean decrease) {
+        mBrightnessDecreased = decrease;
+        if (mPowerGovernor.caps().dimPreview) {
+            final WindowManager.LayoutParams layout = getWindow().getAttributes();
+            layout.screenBrightness = 0.1f;
+            getWindow().setAttributes(layout);
+        } else {
+            CommonHelper.INSTANCE.setUpBrightness(this, decrease);
         }
     }
 
@@ -990,7 +1244,7 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
      */
     private void navigateToMainActivity(Boolean isFromTest) {
         // Reset RtmpUrl
-        SharedPreferencesHelper.INSTANCE.storeRtmpUrl(Constants.StringPlaceholders.EMPTY, this);
+        CredentialLease.invalidate(this);
         // Create the Intent object of MainActivityBase to MainActivity
         Intent intent = new Intent(getApplicationContext(), MainActivity.class);
         intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -1058,6 +1312,18 @@ public abstract class MainActivityBase extends ActivityCommons implements Stream
         return SikSingleton.INSTANCE.getCurrentSection();
     }
 
+    // The lease may have been renewed since the connection was made, reconnect to the current URL
+    private Connection leasedConnection(Connection connection) {
+        final String url = CredentialLease.streamUrl(getApplicationContext());
+        if (BuildConfig.DEBUG || url.isEmpty() || url.equals(connection.url)) {
+            return connection;
+        }
+        final Connection leased = ConnectionHelper.newConnection(connection.name, url);
+        // Same connection to the reconnect scheduler, keep its failure history
+        leased.id = connection.id;
+        return leased;
+    }
+
     @Nullable
     // Create a new connection in case of problems with the current Rtmpl url
     private Connection getConnection(String HOME_STREAM_URL) {
@@ -8,15 +8,18 @@ import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
+import io.uslugi.streamer.api.CredentialLease
 import io.uslugi.streamer.api.ServerApi
 import io.uslugi.streamer.data.Section
 import io.uslugi.streamer.helper.Constants
-import io.uslugi.streamer.helper.SharedPreferencesHelper.storeElection
-import io.uslugi.streamer.helper.SharedPreferencesHelper.storeRtmpUrl
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import org.json.JSONException
 
 private const val TAG = "MainActivityBaseViewModel"
+private const val LEASE_RETRY_DELAY = 30_000L
 
 class MainActivityBaseViewModel : ViewModel() {
 
@@ -26,6 +29,8 @@ class MainActivityBaseViewModel : ViewModel() {
     val isLoggedIn: LiveData<Boolean?>
         get() = _isLoggedIn
 
+    private var leaseRefreshJob: Job? = null
+
     // PUBLIC METHODS ⤵
 
     /**
@@ -39,8 +44,7 @@ class MainActivityBaseViewModel : ViewModel() {
             client.getRtmpUrl(section)?.onSuccess { response ->
                 try {
                     response.let {
-                        storeRtmpUrl(it?.stream_url, context)
-                        storeElection(it?.election, context)
+                        CredentialLease.store(it, context)
                         _isLoggedIn.value = true
                     }
                     Log.i(TAG, "mainActivityBaseViewModel.retryLogin onSuccess response")
@@ -58,6 +62,38 @@ class MainActivityBaseViewModel : ViewModel() {
         }
     }
 
+    /**
+     * Renew the stream URL lease in the background ahead of its expiry, so a reconnect
+     * never has to wait for auth.php. Leases without an expiry are not renewed
+     * @param section - the [Section] object needed for creating the request body
+     * @param context
+     */
+    fun startLeaseRefresh(section: Section, context: Context) {
+        leaseRefreshJob?.cancel()
+        leaseRefreshJob = viewModelScope.launch {
+            while (isActive) {
+                val refreshAt = CredentialLease.refreshAt(context)
+                if (refreshAt == null) {
+                    // No expiry, nothing to renew unless a later login brings one
+                    delay(LEASE_RETRY_DELAY)
+                    continue
+                }
+                delay((refreshAt - System.currentTimeMillis()).coerceAtLeast(LEASE_RETRY_DELAY))
+                ServerApi.getInstance().getRtmpUrl(section)?.onSuccess { response ->
+                    CredentialLease.store(response, context)
+                    Log.i(TAG, "mainActivityBaseViewModel lease renewed")
+                }?.onFailure { exception ->
+                    Log.e(TAG, "mainActivityBaseViewModel lease renewal failed - ${exception.message}")
+                }
+            }
+        }
+    }
+
+    fun stopLeaseRefresh() {
+        leaseRefreshJob?.cancel()
+        leaseRefreshJob = null
+    }
+
     // PRIVATE METHODS ⤵
 
     /**
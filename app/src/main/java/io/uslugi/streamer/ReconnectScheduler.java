@@ -0,0 +1,220 @@
+package io.uslugi.streamer;
+
+import static io.uslugi.streamer.log.EventLog.Logd;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.wmspanel.libstream.Streamer;
+
+import io.uslugi.streamer.settingsutils.ConnectivitySettings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Spreads reconnect attempts out in time.
+ * <p>
+ * Each failed attempt doubles the backoff cap up to {@link ConnectivitySettings#reconnectTimeoutMaxMs()}
+ * and the actual delay is picked uniformly below the cap ("full jitter"), so phones that lost the
+ * ingest at the same moment don't come back in lockstep. Connections with a poor health score
+ * (short sessions, refused connects) back off further. A connection that stayed up for
+ * {@link #STABLE_UPTIME} starts over from the base delay.
+ * <p>
+ * When the default network comes back pending attempts are pulled forward instead of waiting
+ * out the timer. Main thread only.
+ */
+public class ReconnectScheduler {
+    private static final String TAG = "ReconnectScheduler";
+
+    private static final long STABLE_UPTIME = 60_000;
+    private static final long MIN_DELAY = 500;
+    private static final long NETWORK_JITTER = 2_000; // Spread of retries once the network is back
+    private static final double HEALTH_GAIN = 0.3;
+    private static final int MAX_SHIFT = 10;
+    private static final long WARMUP_LEAD = 1_500; // Warm-up runs this long before its retry
+
+    private static final class Health {
+        int attempt;
+        long connectedAt = -1;
+        double score = 1.0;
+        long delay;
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Random mRandom = new Random();
+    private final Map<Long, Health> mHealth = new HashMap<>();
+    private final List<Runnable> mPending = new ArrayList<>();
+    private final List<Runnable> mWarmups = new ArrayList<>();
+    private ConnectivityManager.NetworkCallback mNetworkCallback;
+    private Network mNetwork;
+
+    public ReconnectScheduler(@NonNull Context context, @NonNull Handler handler) {
+        mContext = context;
+        mHandler = handler;
+    }
+
+    public void start() {
+        final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null || mNetworkCallback != null) {
+            return;
+        }
+        // Registering reports the current network too, that one is not a change
+        mNetwork = cm.getActiveNetwork();
+        mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(@NonNull Network network) {
+                if (!network.equals(mNetwork)) {
+                    // Addresses resolved on the previous network may not be valid here
+                    ConnectionPrewarmer.getInstance().invalidate();
+                    mNetwork = network;
+                }
+                retryNow();
+            }
+        };
+        cm.registerDefaultNetworkCallback(mNetworkCallback, mHandler);
+    }
+
+    public void stop() {
+        cancel();
+        final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm != null && mNetworkCallback != null) {
+            cm.unregisterNetworkCallback(mNetworkCallback);
+        }
+        mNetworkCallback = null;
+    }
+
+    public void onConnected(long connectionId) {
+        health(connectionId).connectedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records a failed or dropped connection.
+     *
+     * @return delay before the next attempt, ms.
+     */
+    public long onDisconnected(long connectionId, Streamer.Status status) {
+        final Health health = health(connectionId);
+        final long uptime = health.connectedAt >= 0 ? SystemClock.elapsedRealtime() - health.connectedAt : 0;
+        health.connectedAt = -1;
+        double sample = Math.min(1.0, uptime / (double) STABLE_UPTIME);
+        if (status == Streamer.Status.CONN_FAIL) {
+            // Refused or unreachable, the server side is likely restarting
+            sample *= 0.5;
+        }
+        health.score += HEALTH_GAIN * (sample - health.score);
+        health.attempt = uptime >= STABLE_UPTIME ? 0 : health.attempt + 1;
+
+        final long base = ConnectivitySettings.retryTimeoutMs(mContext);
+        final long max = ConnectivitySettings.reconnectTimeoutMaxMs();
+        final long cap = Math.min(max, Math.round((base << Math.min(health.attempt, MAX_SHIFT)) * (2.0 - health.score)));
+        health.delay = Math.max(MIN_DELAY, (long) (mRandom.nextDouble() * cap));
+
+        Logd(TAG, "Connection " + connectionId + " status=" + status + " uptime=" + uptime
+                + " health=" + String.format(Locale.US, "%.2f", health.score) + " retry in " + health.delay + " ms");
+        return health.delay;
+    }
+
+    /**
+     * @return delay picked by the last {@link #onDisconnected}, ms.
+     */
+    public long delay(long connectionId) {
+        final Health health = mHealth.get(connectionId);
+        return health != null ? health.delay : ConnectivitySettings.retryTimeoutMs(mContext);
+    }
+
+    public double health(long connectionId) {
+        final Health health = mHealth.get(connectionId);
+        return health != null ? health.score : 1.0;
+    }
+
+    public void schedule(@NonNull final Runnable retry, long delayMs) {
+        schedule(retry, delayMs, null);
+    }
+
+    /**
+     * @param warmup Runs {@link #WARMUP_LEAD} before the retry, e.g. to resolve and probe the host.
+     *               Timed off the jittered delay so the fleet doesn't probe in lockstep either,
+     *               skipped when the delay is too short to gain anything.
+     */
+    public void schedule(@NonNull final Runnable retry, long delayMs, @Nullable final Runnable warmup) {
+        if (warmup != null && delayMs >= 2 * WARMUP_LEAD) {
+            final Runnable warmupTask = new Runnable() {
+                @Override
+                public void run() {
+                    mWarmups.remove(this);
+                    warmup.run();
+                }
+            };
+            mWarmups.add(warmupTask);
+            mHandler.postDelayed(warmupTask, delayMs - WARMUP_LEAD);
+        }
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                mPending.remove(this);
+                retry.run();
+            }
+        };
+        mPending.add(task);
+        mHandler.postDelayed(task, delayMs);
+    }
+
+    /**
+     * Drops pending attempts, e.g. when the broadcast is stopped.
+     */
+    public void cancel() {
+        for (Runnable task : mPending) {
+            mHandler.removeCallbacks(task);
+        }
+        mPending.clear();
+        cancelWarmups();
+    }
+
+    private void cancelWarmups() {
+        for (Runnable task : mWarmups) {
+            mHandler.removeCallbacks(task);
+        }
+        mWarmups.clear();
+    }
+
+    /**
+     * Forgets connection history, the next broadcast starts from the base delay.
+     */
+    public void reset() {
+        mHealth.clear();
+    }
+
+    private void retryNow() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        Logd(TAG, "Network available, retrying " + mPending.size() + " connection(s)");
+        // Retries come within the network jitter, too soon for a warm-up to pay off
+        cancelWarmups();
+        for (Runnable task : mPending) {
+            mHandler.removeCallbacks(task);
+            mHandler.postDelayed(task, (long) (mRandom.nextDouble() * NETWORK_JITTER));
+        }
+    }
+
+    private Health health(long connectionId) {
+        Health health = mHealth.get(connectionId);
+        if (health == null) {
+            health = new Health();
+            mHealth.put(connectionId, health);
+        }
+        return health;
+    }
+}
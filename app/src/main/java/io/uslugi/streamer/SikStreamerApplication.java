@@ -9,6 +9,9 @@ import android.os.Bundle;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import io.uslugi.streamer.api.HttpClient;
+import io.uslugi.streamer.overlay.BitmapCache;
+
 public class SikStreamerApplication extends MultiDexApplication implements MultiDexApplication.ActivityLifecycleCallbacks {
 
     @Override
@@ -16,12 +19,15 @@ public class SikStreamerApplication extends MultiDexApplication implements Multi
         super.onCreate();
         registerActivityLifecycleCallbacks(this);
         ObjectBox.init(this);
+        HttpClient.init(this);
+        registerComponentCallbacks(BitmapCache.getInstance());
     }
 
     @Override
     public void onTerminate() {
         super.onTerminate();
         unregisterActivityLifecycleCallbacks(this);
+        unregisterComponentCallbacks(BitmapCache.getInstance());
     }
 
     @Override
@@ -0,0 +1,91 @@
+package io.uslugi.streamer.api
+
+import android.content.Context
+import io.uslugi.streamer.ConnectionPrewarmer
+import io.uslugi.streamer.data.RTMPUrlResult
+import io.uslugi.streamer.helper.Constants
+import io.uslugi.streamer.helper.SharedPreferencesHelper
+
+private const val REFRESH_AHEAD = 0.2 // Refresh with a fifth of the lease left
+
+/**
+ * The stream URL from auth.php held with an expiry, so reconnects can skip the auth round trip.
+ *
+ * A reconnect uses the leased URL. The expiry only schedules the background refresh, when that
+ * fails the last URL is still used rather than blocking the reconnect on auth.php; a result without
+ * expires_in never expires. An auth-type failure gives the URL one more try (the drop may have had
+ * another cause), a second one in a row without a successful connection in between ends the lease
+ * and the caller re-authenticates.
+ */
+object CredentialLease {
+
+    private var leaseMs = 0L // 0 when auth.php gave no expiry
+    private var suspect = false
+
+    /**
+     * Stores a fresh auth result and starts a new lease.
+     */
+    @JvmStatic
+    fun store(result: RTMPUrlResult?, context: Context) {
+        val url = result?.stream_url
+        leaseMs = result?.expires_in?.takeIf { it > 0 }?.let { it * 1000 } ?: 0L
+        SharedPreferencesHelper.storeRtmpUrl(url, context)
+        SharedPreferencesHelper.storeElection(result?.election, context)
+        SharedPreferencesHelper.storeRtmpUrlExpiry(
+            if (url.isNullOrEmpty() || leaseMs == 0L) 0L else System.currentTimeMillis() + leaseMs,
+            context
+        )
+        suspect = false
+        ConnectionPrewarmer.getInstance().prewarm(url)
+    }
+
+    /**
+     * @return the leased stream URL, possibly past its expiry if the refresh failed, or empty if
+     * there is none.
+     */
+    @JvmStatic
+    fun streamUrl(context: Context): String = SharedPreferencesHelper.getRtmpUrl(context)
+
+    /**
+     * @return wall clock time to refresh the lease at, ms, or null if it doesn't expire.
+     */
+    @JvmStatic
+    fun refreshAt(context: Context): Long? {
+        val expiry = SharedPreferencesHelper.getRtmpUrlExpiry(context)
+        if (expiry <= 0) {
+            return null
+        }
+        // The lease length is not kept across restarts, then refresh at the expiry itself
+        return expiry - (leaseMs * REFRESH_AHEAD).toLong()
+    }
+
+    @JvmStatic
+    fun invalidate(context: Context) {
+        SharedPreferencesHelper.storeRtmpUrl(Constants.StringPlaceholders.EMPTY, context)
+        SharedPreferencesHelper.storeRtmpUrlExpiry(0L, context)
+        suspect = false
+    }
+
+    /**
+     * The ingest accepted the leased URL.
+     */
+    @JvmStatic
+    fun onAccepted() {
+        suspect = false
+    }
+
+    /**
+     * The ingest dropped or refused the connection with an auth-type status.
+     *
+     * @return true if the lease is over and the caller should re-authenticate.
+     */
+    @JvmStatic
+    fun onRejected(context: Context): Boolean {
+        if (!suspect && streamUrl(context).isNotEmpty()) {
+            suspect = true
+            return false
+        }
+        invalidate(context)
+        return true
+    }
+}
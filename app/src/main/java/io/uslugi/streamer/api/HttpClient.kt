@@ -0,0 +1,77 @@
+package io.uslugi.streamer.api
+
+import android.content.Context
+import com.google.gson.Gson
+import com.google.gson.GsonBuilder
+import io.uslugi.streamer.BuildConfig
+import io.uslugi.streamer.helper.Constants
+import io.uslugi.streamer.helper.Constants.HTTPConfig.CONNECT_TIMEOUT
+import io.uslugi.streamer.helper.Constants.HTTPConfig.READ_TIMEOUT
+import io.uslugi.streamer.helper.Constants.HTTPConfig.WRITE_TIMEOUT
+import okhttp3.Cache
+import okhttp3.ConnectionPool
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.logging.HttpLoggingInterceptor
+import retrofit2.Retrofit
+import retrofit2.converter.gson.GsonConverterFactory
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+private const val CACHE_DIR = "http"
+private const val CACHE_SIZE = 10L * 1024 * 1024
+private const val MAX_IDLE_CONNECTIONS = 5
+private const val KEEP_ALIVE_MINUTES = 5L
+
+/**
+ * One OkHttp client for the whole process: the API calls and overlay downloads share its
+ * connection pool, TLS sessions and disk cache.
+ */
+object HttpClient {
+
+    private var cache: Cache? = null
+
+    /**
+     * Sets up the disk cache. Call from Application.onCreate, before the first request.
+     */
+    @JvmStatic
+    fun init(context: Context) {
+        if (cache == null) {
+            cache = Cache(File(context.cacheDir, CACHE_DIR), CACHE_SIZE)
+        }
+    }
+
+    @JvmStatic
+    val client: OkHttpClient by lazy {
+        val builder = OkHttpClient.Builder()
+            .readTimeout(READ_TIMEOUT, TimeUnit.SECONDS)
+            .writeTimeout(WRITE_TIMEOUT, TimeUnit.SECONDS)
+            .connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS)
+            .connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .eventListenerFactory(HttpMetrics.factory)
+            .cache(cache)
+
+        if (BuildConfig.DEBUG) {
+            val loggingInterceptor = HttpLoggingInterceptor()
+            // Headers only, BODY buffers whole overlay downloads and upload chunks in memory
+            loggingInterceptor.setLevel(HttpLoggingInterceptor.Level.HEADERS)
+            builder.addInterceptor(loggingInterceptor)
+        }
+
+        builder.build()
+    }
+
+    val gson: Gson by lazy {
+        GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:sssZ").create()
+    }
+
+    val retrofit: Retrofit by lazy {
+        Retrofit.Builder()
+            .client(client)
+            .baseUrl(Constants.HTTPConfig.BASE_URL)
+            .addConverterFactory(GsonConverterFactory.create(gson))
+            .addCallAdapterFactory(ResultCallAdapterFactory())
+            .build()
+    }
+}
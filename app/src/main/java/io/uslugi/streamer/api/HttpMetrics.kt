@@ -0,0 +1,167 @@
+package io.uslugi.streamer.api
+
+import android.os.SystemClock
+import android.util.Log
+import io.uslugi.streamer.BuildConfig
+import okhttp3.Call
+import okhttp3.EventListener
+import okhttp3.Handshake
+import okhttp3.Protocol
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.util.concurrent.ConcurrentHashMap
+
+private const val TAG = "HttpMetrics"
+
+/**
+ * Per-endpoint timing of calls made through [HttpClient].
+ *
+ * DNS, connect and TLS are only paid when the pool has no connection to reuse, so their averages
+ * are over the calls that actually opened one. The activity publishes [snapshot] through the
+ * metrics endpoint and logs it to the event log once a minute while broadcasting.
+ */
+object HttpMetrics {
+
+    class Endpoint {
+        var calls = 0L
+        var failures = 0L
+        var newConnections = 0L
+        var dnsMs = 0L
+        var connectMs = 0L
+        var tlsMs = 0L
+        var responses = 0L
+        var ttfbMs = 0L
+        var lastTtfbMs = 0L
+
+        fun avgDnsMs(): Long = if (newConnections > 0) dnsMs / newConnections else 0
+        fun avgConnectMs(): Long = if (newConnections > 0) connectMs / newConnections else 0
+        fun avgTlsMs(): Long = if (newConnections > 0) tlsMs / newConnections else 0
+        fun avgTtfbMs(): Long = if (responses > 0) ttfbMs / responses else 0
+
+        fun copy(): Endpoint = Endpoint().also {
+            it.calls = calls
+            it.failures = failures
+            it.newConnections = newConnections
+            it.dnsMs = dnsMs
+            it.connectMs = connectMs
+            it.tlsMs = tlsMs
+            it.responses = responses
+            it.ttfbMs = ttfbMs
+            it.lastTtfbMs = lastTtfbMs
+        }
+
+        override fun toString(): String =
+            "calls=$calls failed=$failures new=$newConnections dns=${avgDnsMs()}ms " +
+                    "connect=${avgConnectMs()}ms tls=${avgTlsMs()}ms ttfb=${avgTtfbMs()}ms"
+    }
+
+    private val endpoints = ConcurrentHashMap<String, Endpoint>()
+
+    val factory = EventListener.Factory { CallListener() }
+
+    /**
+     * @return copy of the counters keyed by "host/path".
+     */
+    fun snapshot(): Map<String, Endpoint> {
+        val result = HashMap<String, Endpoint>()
+        for ((key, endpoint) in endpoints) {
+            synchronized(endpoint) {
+                result[key] = endpoint.copy()
+            }
+        }
+        return result
+    }
+
+    private class CallListener : EventListener() {
+        private var callStart = 0L
+        private var dnsStart = 0L
+        private var connectStart = 0L
+        private var tlsStart = 0L
+        private var dnsMs = 0L
+        private var connectMs = 0L
+        private var tlsMs = 0L
+        private var ttfbMs = -1L
+        private var newConnection = false
+
+        override fun callStart(call: Call) {
+            callStart = SystemClock.elapsedRealtime()
+        }
+
+        override fun dnsStart(call: Call, domainName: String) {
+            dnsStart = SystemClock.elapsedRealtime()
+        }
+
+        override fun dnsEnd(call: Call, domainName: String, inetAddressList: List<InetAddress>) {
+            dnsMs = SystemClock.elapsedRealtime() - dnsStart
+        }
+
+        override fun connectStart(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy) {
+            connectStart = SystemClock.elapsedRealtime()
+            newConnection = true
+        }
+
+        override fun secureConnectStart(call: Call) {
+            tlsStart = SystemClock.elapsedRealtime()
+        }
+
+        override fun secureConnectEnd(call: Call, handshake: Handshake?) {
+            tlsMs = SystemClock.elapsedRealtime() - tlsStart
+        }
+
+        override fun connectEnd(
+            call: Call,
+            inetSocketAddress: InetSocketAddress,
+            proxy: Proxy,
+            protocol: Protocol?
+        ) {
+            // Includes TLS, which is reported separately
+            connectMs = SystemClock.elapsedRealtime() - connectStart - tlsMs
+        }
+
+        override fun responseHeadersStart(call: Call) {
+            if (ttfbMs < 0) {
+                ttfbMs = SystemClock.elapsedRealtime() - callStart
+            }
+        }
+
+        override fun callEnd(call: Call) {
+            record(call, false)
+        }
+
+        override fun callFailed(call: Call, ioe: IOException) {
+            record(call, true)
+        }
+
+        private fun record(call: Call, failed: Boolean) {
+            val url = call.request().url
+            val key = url.host + url.encodedPath
+            val endpoint = endpoints.getOrPut(key) { Endpoint() }
+            synchronized(endpoint) {
+                endpoint.calls++
+                if (failed) {
+                    endpoint.failures++
+                }
+                if (newConnection) {
+                    endpoint.newConnections++
+                    endpoint.dnsMs += dnsMs
+                    endpoint.connectMs += connectMs
+                    endpoint.tlsMs += tlsMs
+                }
+                if (ttfbMs >= 0) {
+                    endpoint.responses++
+                    endpoint.ttfbMs += ttfbMs
+                    endpoint.lastTtfbMs = ttfbMs
+                }
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(
+                    TAG,
+                    "$key ${if (failed) "failed" else "done"} new=$newConnection dns=${dnsMs}ms " +
+                            "connect=${connectMs}ms tls=${tlsMs}ms ttfb=${ttfbMs}ms"
+                )
+            }
+        }
+    }
+}
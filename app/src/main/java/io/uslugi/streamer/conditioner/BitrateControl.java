@@ -0,0 +1,13 @@
+package io.uslugi.streamer.conditioner;
+
+import com.wmspanel.libstream.Streamer;
+
+/**
+ * Encoder settings the conditioner is allowed to change.
+ */
+public interface BitrateControl {
+
+    void changeBitRate(int bitrate);
+
+    void changeFpsRange(Streamer.FpsRange fpsRange);
+}
@@ -1,12 +1,24 @@
 package io.uslugi.streamer.conditioner;
 
-final class BitrateHistory {
-    long ts;
-    long bitrate;
+/**
+ * Bitrate values requested by the conditioner, one sample per change.
+ */
+final class BitrateHistory extends HistoryBuffer {
 
-    BitrateHistory(long ts, long bitrate) {
-        this.ts = ts;
-        this.bitrate = bitrate;
+    BitrateHistory(int capacity, long window) {
+        super(capacity, window);
+    }
+
+    void add(long ts, long bitrate) {
+        put(ts, bitrate, 0);
+    }
+
+    long bitrate(int index) {
+        return first(index);
+    }
+
+    long lastBitrate() {
+        return bitrate(size() - 1);
     }
 
 }
@@ -0,0 +1,11 @@
+package io.uslugi.streamer.conditioner;
+
+/**
+ * Time source for conditioner decisions, so algorithms can be replayed against a simulated clock.
+ */
+public interface Clock {
+
+    Clock SYSTEM = System::currentTimeMillis;
+
+    long currentTimeMillis();
+}
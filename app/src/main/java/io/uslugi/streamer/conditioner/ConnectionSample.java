@@ -0,0 +1,64 @@
+package io.uslugi.streamer.conditioner;
+
+/**
+ * Protocol counters of a single connection at one point in time.
+ * Field names and meaning follow libstream's TcpStats, SrtStats and RistStats.
+ */
+public final class ConnectionSample {
+
+    // Streamer.getBytesSent(), all protocols
+    public long bytesSent;
+
+    // TcpStats (RTMP, RTSP)
+    public boolean hasTcp;
+    public long audioFramesSkipped;
+    public long videoFramesSkipped;
+
+    // SrtStats
+    public boolean hasSrt;
+    public long byteSentUnique;
+    public long pktSentUnique;
+    public long pktSndDrop;
+    public double mbpsBandwidth;
+    public double msRTT;
+    public long msSndBuf; // Time span of data waiting in the sender buffer
+
+    // RistStats
+    public boolean hasRist;
+    public long ristSent;
+    public double ristQuality;
+
+    public void reset() {
+        bytesSent = 0;
+        hasTcp = false;
+        audioFramesSkipped = 0;
+        videoFramesSkipped = 0;
+        hasSrt = false;
+        byteSentUnique = 0;
+        pktSentUnique = 0;
+        pktSndDrop = 0;
+        mbpsBandwidth = 0.0;
+        msRTT = 0.0;
+        msSndBuf = 0;
+        hasRist = false;
+        ristSent = 0;
+        ristQuality = 0.0;
+    }
+
+    public void set(ConnectionSample other) {
+        bytesSent = other.bytesSent;
+        hasTcp = other.hasTcp;
+        audioFramesSkipped = other.audioFramesSkipped;
+        videoFramesSkipped = other.videoFramesSkipped;
+        hasSrt = other.hasSrt;
+        byteSentUnique = other.byteSentUnique;
+        pktSentUnique = other.pktSentUnique;
+        pktSndDrop = other.pktSndDrop;
+        mbpsBandwidth = other.mbpsBandwidth;
+        msRTT = other.msRTT;
+        msSndBuf = other.msSndBuf;
+        hasRist = other.hasRist;
+        ristSent = other.ristSent;
+        ristQuality = other.ristQuality;
+    }
+}
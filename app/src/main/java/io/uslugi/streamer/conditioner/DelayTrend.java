@@ -0,0 +1,71 @@
+package io.uslugi.streamer.conditioner;
+
+/**
+ * Queueing delay estimate and its trend for one SRT connection.
+ * <p>
+ * Queueing delay is the RTT above the lowest RTT seen recently plus the time span of data waiting
+ * in the sender buffer. The trend is the least-squares slope of the smoothed delay over the last
+ * samples, in the spirit of the GCC trendline filter. Samples are expected at a fixed interval.
+ */
+final class DelayTrend {
+
+    private static final double SMOOTHING = 0.9;
+    // The base RTT slowly forgets its minimum so a route change is picked up within about a minute
+    private static final double BASE_RTT_DRIFT_MS = 0.5;
+
+    private final double[] mDelay;
+    private int mPos;
+    private int mCount;
+    private double mSmoothed;
+    private double mBaseRtt = Double.MAX_VALUE;
+
+    DelayTrend(int window) {
+        mDelay = new double[Math.max(window, 2)];
+    }
+
+    void put(double rttMs, double sndBufMs) {
+        if (rttMs > 0.0) {
+            mBaseRtt = Math.min(rttMs, mBaseRtt + BASE_RTT_DRIFT_MS);
+        }
+        final double rttQueue = mBaseRtt == Double.MAX_VALUE ? 0.0 : Math.max(0.0, rttMs - mBaseRtt);
+        final double delay = rttQueue + Math.max(0.0, sndBufMs);
+        mSmoothed = mCount == 0 ? delay : SMOOTHING * mSmoothed + (1.0 - SMOOTHING) * delay;
+        mDelay[mPos] = mSmoothed;
+        mPos = (mPos + 1) % mDelay.length;
+        if (mCount < mDelay.length) {
+            mCount++;
+        }
+    }
+
+    double queueDelayMs() {
+        return mSmoothed;
+    }
+
+    boolean isReady() {
+        return mCount == mDelay.length;
+    }
+
+    /**
+     * @return slope of the smoothed queueing delay in milliseconds per sample.
+     */
+    double slope() {
+        if (mCount < 2) {
+            return 0.0;
+        }
+        final int start = (mPos - mCount + mDelay.length) % mDelay.length;
+        final double meanX = (mCount - 1) / 2.0;
+        double meanY = 0.0;
+        for (int i = 0; i < mCount; i++) {
+            meanY += mDelay[(start + i) % mDelay.length];
+        }
+        meanY /= mCount;
+        double num = 0.0;
+        double den = 0.0;
+        for (int i = 0; i < mCount; i++) {
+            final double dx = i - meanX;
+            num += dx * (mDelay[(start + i) % mDelay.length] - meanY);
+            den += dx * dx;
+        }
+        return num / den;
+    }
+}
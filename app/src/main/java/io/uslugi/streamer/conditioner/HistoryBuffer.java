@@ -0,0 +1,112 @@
+package io.uslugi.streamer.conditioner;
+
+/**
+ * Fixed-capacity history of time-stamped samples, stored in parallel {@code long[]} ring buffers.
+ * <p>
+ * Samples must be appended in non-decreasing timestamp order. Samples older than the window
+ * (relative to the newest one) or exceeding capacity are overwritten in place, so memory stays
+ * constant for the whole broadcast and {@link #put} never allocates. The newest sample before the
+ * window is kept as the baseline to diff against, histories only grow on change and may be quiet
+ * for longer than the window. Index 0 is the oldest retained sample, {@code size() - 1} the newest.
+ */
+class HistoryBuffer {
+
+    private final long[] mTs;
+    private final long[] mFirst;
+    private final long[] mSecond;
+    private final long mWindow;
+
+    private int mHead; // physical position of the oldest sample
+    private int mSize;
+
+    HistoryBuffer(int capacity, long window) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mTs = new long[capacity];
+        mFirst = new long[capacity];
+        mSecond = new long[capacity];
+        mWindow = window;
+    }
+
+    final void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    final int size() {
+        return mSize;
+    }
+
+    final boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    final int capacity() {
+        return mTs.length;
+    }
+
+    final long ts(int index) {
+        return mTs[physical(index)];
+    }
+
+    final long lastTs() {
+        return ts(mSize - 1);
+    }
+
+    final long first(int index) {
+        return mFirst[physical(index)];
+    }
+
+    final long second(int index) {
+        return mSecond[physical(index)];
+    }
+
+    final void put(long ts, long first, long second) {
+        final long horizon = ts - mWindow;
+        // Drop the oldest only once the next one is past the window too
+        while (mSize > 1 && mTs[(mHead + 1) % mTs.length] < horizon) {
+            mHead = (mHead + 1) % mTs.length;
+            mSize--;
+        }
+        if (mSize == mTs.length) {
+            mHead = (mHead + 1) % mTs.length;
+            mSize--;
+        }
+        final int pos = (mHead + mSize) % mTs.length;
+        mTs[pos] = ts;
+        mFirst[pos] = first;
+        mSecond[pos] = second;
+        mSize++;
+    }
+
+    /**
+     * Binary search for the newest sample taken strictly before {@code ts}.
+     *
+     * @param ts The timestamp to search for.
+     * @return Logical index of the sample, or -1 if every retained sample is at or after {@code ts}.
+     */
+    final int lastIndexBefore(long ts) {
+        int lo = 0;
+        int hi = mSize - 1;
+        int found = -1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mTs[physical(mid)] < ts) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private int physical(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        return (mHead + index) % mTs.length;
+    }
+
+}
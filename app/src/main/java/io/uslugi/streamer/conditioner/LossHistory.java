@@ -1,14 +1,32 @@
 package io.uslugi.streamer.conditioner;
 
-class LossHistory {
-    long ts;
-    long audio;
-    long video;
-
-    LossHistory(long ts, long audio, long video) {
-        this.ts = ts;
-        this.audio = audio;
-        this.video = video;
+/**
+ * Cumulative lost audio/video frame counters, sampled whenever they change.
+ */
+final class LossHistory extends HistoryBuffer {
+
+    LossHistory(int capacity, long window) {
+        super(capacity, window);
+    }
+
+    void add(long ts, long audio, long video) {
+        put(ts, audio, video);
+    }
+
+    long audio(int index) {
+        return first(index);
+    }
+
+    long video(int index) {
+        return second(index);
+    }
+
+    long lastAudio() {
+        return audio(size() - 1);
+    }
+
+    long lastVideo() {
+        return video(size() - 1);
     }
 
 }
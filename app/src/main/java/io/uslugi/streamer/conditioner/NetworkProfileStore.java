@@ -0,0 +1,142 @@
+package io.uslugi.streamer.conditioner;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.RouteInfo;
+import android.net.Uri;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+
+import io.objectbox.Box;
+import io.uslugi.streamer.ObjectBox;
+import io.uslugi.streamer.data.NetworkProfile;
+import io.uslugi.streamer.data.NetworkProfile_;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * {@link WarmStartStore} backed by ObjectBox, keyed by the active network and the ingest host.
+ */
+public final class NetworkProfileStore implements WarmStartStore {
+
+    private static final long MAX_AGE = 30L * 24 * 60 * 60_000; // Networks change, forget old profiles
+
+    private final String mKey;
+
+    private NetworkProfileStore(String key) {
+        mKey = key;
+    }
+
+    /**
+     * @param context Any context.
+     * @param url     Ingest URL of the main connection.
+     * @return store for the active network, or null if there is no network or database.
+     */
+    @Nullable
+    public static NetworkProfileStore create(Context context, String url) {
+        if (ObjectBox.get() == null) {
+            return null;
+        }
+        final String network = networkIdentity(context);
+        if (network == null) {
+            return null;
+        }
+        final String host = TextUtils.isEmpty(url) ? "" : Uri.parse(url).getHost();
+        final String key = sha256(network + "|" + host);
+        return key != null ? new NetworkProfileStore(key) : null;
+    }
+
+    @Nullable
+    @Override
+    public NetworkProfile load(int fullBitrate) {
+        final NetworkProfile profile = find(box());
+        if (profile == null
+                || profile.fullBitrate != fullBitrate
+                || System.currentTimeMillis() - profile.updated > MAX_AGE) {
+            return null;
+        }
+        return profile;
+    }
+
+    @Override
+    public void save(NetworkProfile profile) {
+        final Box<NetworkProfile> box = box();
+        final NetworkProfile stored = find(box);
+        profile.id = stored != null ? stored.id : 0;
+        profile.key = mKey;
+        profile.updated = System.currentTimeMillis();
+        box.put(profile);
+    }
+
+    private static Box<NetworkProfile> box() {
+        return ObjectBox.get().boxFor(NetworkProfile.class);
+    }
+
+    @Nullable
+    private NetworkProfile find(Box<NetworkProfile> box) {
+        return box.query().equal(NetworkProfile_.key, mKey).build().findFirst();
+    }
+
+    @Nullable
+    private static String networkIdentity(Context context) {
+        final ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
+        final Network network = cm != null ? cm.getActiveNetwork() : null;
+        final NetworkCapabilities caps = network != null ? cm.getNetworkCapabilities(network) : null;
+        if (caps == null) {
+            return null;
+        }
+        if (caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            final TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+            return "cell:" + (tm != null ? tm.getNetworkOperator() : "");
+        }
+        final boolean wifi = caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI);
+        if (wifi && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                && caps.getTransportInfo() instanceof WifiInfo) {
+            final String ssid = ((WifiInfo) caps.getTransportInfo()).getSSID();
+            if (!TextUtils.isEmpty(ssid) && !WifiManager.UNKNOWN_SSID.equals(ssid)) {
+                return "wifi:" + ssid;
+            }
+        }
+        // SSID is hidden without location permission, gateway and DNS servers tell networks apart
+        final LinkProperties lp = cm.getLinkProperties(network);
+        final StringBuilder sb = new StringBuilder(wifi ? "wifi:" : "net:");
+        if (lp != null) {
+            for (RouteInfo route : lp.getRoutes()) {
+                if (route.isDefaultRoute() && route.getGateway() != null) {
+                    sb.append(route.getGateway().getHostAddress());
+                }
+            }
+            for (InetAddress dns : lp.getDnsServers()) {
+                sb.append(',').append(dns.getHostAddress());
+            }
+        }
+        return sb.toString();
+    }
+
+    @Nullable
+    private static String sha256(String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(value.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format(Locale.US, "%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package io.uslugi.streamer.conditioner;
+
+import android.os.PowerManager;
+
+/**
+ * Turns thermal status, battery level and charging state into encoding caps.
+ * <p>
+ * Caps come in levels; the governor moves up to a tighter level as soon as the device asks for it
+ * and relaxes one level per {@link #RELAX_DELAY}, so a phone cooling down near a threshold doesn't
+ * flip the encoder back and forth.
+ */
+public final class PowerGovernor {
+
+    private static final long RELAX_DELAY = 60_000;
+    private static final int LOW_BATTERY = 20; // Percent, when not charging
+    private static final int VERY_LOW_BATTERY = 10;
+
+    public static final class Caps {
+        public final double bitrateFraction; // Of the configured bitrate
+        public final int maxFps; // 0 is no limit
+        public final boolean dimPreview;
+
+        Caps(double bitrateFraction, int maxFps, boolean dimPreview) {
+            this.bitrateFraction = bitrateFraction;
+            this.maxFps = maxFps;
+            this.dimPreview = dimPreview;
+        }
+
+        @Override
+        public String toString() {
+            return "bitrate x" + bitrateFraction + ", fps " + (maxFps > 0 ? maxFps : "any")
+                    + (dimPreview ? ", preview dimmed" : "");
+        }
+    }
+
+    public static final Caps NONE = new Caps(1.0, 0, false);
+
+    private static final Caps[] LEVELS = {
+            NONE,
+            new Caps(0.75, 25, false),
+            new Caps(0.5, 20, true),
+            new Caps(0.35, 15, true)
+    };
+
+    private final Clock mClock;
+    private int mThermalStatus;
+    private int mBatteryPercent = 100;
+    private boolean mCharging;
+    private int mLevel;
+    private long mRelaxSince = -1;
+
+    public PowerGovernor() {
+        this(Clock.SYSTEM);
+    }
+
+    PowerGovernor(Clock clock) {
+        mClock = clock;
+    }
+
+    public void setThermalStatus(int status) {
+        mThermalStatus = status;
+    }
+
+    public void setBattery(int percent, boolean charging) {
+        mBatteryPercent = percent;
+        mCharging = charging;
+    }
+
+    public int thermalStatus() {
+        return mThermalStatus;
+    }
+
+    public int batteryPercent() {
+        return mBatteryPercent;
+    }
+
+    public boolean isCharging() {
+        return mCharging;
+    }
+
+    public Caps caps() {
+        return LEVELS[mLevel];
+    }
+
+    /**
+     * Re-evaluates the level. Call on every input change and periodically, relaxing depends on time.
+     *
+     * @return new caps, or null if they didn't change.
+     */
+    public Caps update() {
+        final int target = targetLevel();
+        final long now = mClock.currentTimeMillis();
+        if (target > mLevel) {
+            mLevel = target;
+            mRelaxSince = -1;
+            return caps();
+        }
+        if (target == mLevel) {
+            mRelaxSince = -1;
+            return null;
+        }
+        if (mRelaxSince < 0) {
+            mRelaxSince = now;
+            return null;
+        }
+        if (now - mRelaxSince < RELAX_DELAY) {
+            return null;
+        }
+        mLevel--;
+        mRelaxSince = mLevel > target ? now : -1;
+        return caps();
+    }
+
+    private int targetLevel() {
+        int level;
+        if (mThermalStatus >= PowerManager.THERMAL_STATUS_CRITICAL) {
+            level = 3;
+        } else if (mThermalStatus == PowerManager.THERMAL_STATUS_SEVERE) {
+            level = 2;
+        } else if (mThermalStatus == PowerManager.THERMAL_STATUS_MODERATE) {
+            level = 1;
+        } else {
+            level = 0;
+        }
+        // Charging heats the battery next to the SoC
+        if (mCharging && level > 0) {
+            level++;
+        }
+        if (!mCharging && mBatteryPercent >= 0) {
+            if (mBatteryPercent <= VERY_LOW_BATTERY) {
+                level = Math.max(level, 2);
+            } else if (mBatteryPercent <= LOW_BATTERY) {
+                level = Math.max(level, 1);
+            }
+        }
+        return Math.min(level, LEVELS.length - 1);
+    }
+}
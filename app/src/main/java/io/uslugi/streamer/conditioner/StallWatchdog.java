@@ -0,0 +1,311 @@
+package io.uslugi.streamer.conditioner;
+
+import static io.uslugi.streamer.log.EventLog.Logd;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects a stream that stays connected but stops moving, e.g. a silently stalled hardware encoder.
+ * <p>
+ * A connection is watched once it has sent its first bytes and counts as stalled when its byte
+ * counter stands still for {@link #STALL_TIMEOUT}. A stall the uplink explains is not the watchdog's
+ * business: while a stalled connection keeps dropping packets or skipping frames, or has data waiting
+ * in its SRT send buffer, the conditioner and the reconnect backoff deal with it. Only when every
+ * watched connection stalls with flat loss counters and empty send buffers, i.e. nothing is coming
+ * out of the encoder, recovery escalates: refresh the encoder, restart the connections, restart the
+ * capture pipeline, each stage given a fixed grace period to show progress and dropped back to
+ * watching if congestion shows up meanwhile. A single stalled connection among moving ones is only
+ * restarted, and recovery waits for its replacement to send. Worst case the watchdog gives up {@link #RECOVERY_TARGET} after the stall began and
+ * watches again after {@link #COOLDOWN}.
+ * <p>
+ * Runs as a {@link StatsSampler.Listener}, so all state is confined to the sampler thread;
+ * {@link Recovery} is called on that thread too. Time comes from a {@link Clock}, so detection can
+ * be replayed against a simulated one.
+ */
+public final class StallWatchdog implements StatsSampler.Listener {
+    private static final String TAG = "StallWatchdog";
+
+    static final long STALL_TIMEOUT = 4_000;
+    static final long ENCODER_GRACE = 3_000;
+    static final long RESTART_GRACE = 10_000;
+    static final long PIPELINE_GRACE = 15_000;
+    static final long CONFIRM = 2_000; // Steady progress needed to call a stage successful
+    static final long COOLDOWN = 60_000;
+    static final long RECOVERY_TARGET = STALL_TIMEOUT + ENCODER_GRACE + RESTART_GRACE + PIPELINE_GRACE;
+
+    public enum Stage {
+        NONE,
+        CONGESTED, // Stalled by the uplink, left to the conditioner and reconnect backoff
+        ENCODER, // Encoder refreshed
+        CONNECTION, // Stalled connections restarted
+        PIPELINE, // Capture pipeline restarted
+        FAILED // Gave up until the cooldown ends
+    }
+
+    /**
+     * Recovery steps, called on the sampler thread.
+     */
+    public interface Recovery {
+        void refreshEncoder();
+
+        void restartConnection(int connectionId);
+
+        void restartPipeline();
+    }
+
+    private static final class Progress {
+        long bytes;
+        long progressAt; // Clock time of the last byte counter change
+        boolean armed; // Sent something since the connection was created
+        long losses; // Dropped packets and skipped frames, total
+        long congestedAt; // Clock time of the last loss or data waiting in the send buffer
+    }
+
+    private final StatsSampler mSampler;
+    private final Recovery mRecovery;
+    private final Clock mClock;
+
+    // Sampler thread only
+    private final Map<Integer, Progress> mProgress = new HashMap<>();
+    private final Set<Integer> mStalled = new HashSet<>();
+    private final Set<Integer> mSurvivors = new HashSet<>(); // Connections left alone by the last restart
+    private int mRestarted; // Connections the last restart replaced
+    private Stage mStage = Stage.NONE;
+    private long mStallAt;
+    private long mStageAt;
+    private volatile boolean mResetPending;
+
+    public StallWatchdog(@NonNull StatsSampler sampler, @NonNull Recovery recovery) {
+        this(sampler, recovery, Clock.SYSTEM);
+    }
+
+    StallWatchdog(StatsSampler sampler, Recovery recovery, Clock clock) {
+        mSampler = sampler;
+        mRecovery = recovery;
+        mClock = clock;
+    }
+
+    /**
+     * Forgets all progress, call before a new broadcast. Applied on the next tick.
+     */
+    public void reset() {
+        mResetPending = true;
+    }
+
+    public Stage stage() {
+        return mStage;
+    }
+
+    @Override
+    public void onSampled(long uptime) {
+        if (mResetPending) {
+            mResetPending = false;
+            mProgress.clear();
+            mStalled.clear();
+            mStage = Stage.NONE;
+        }
+        final long now = mClock.currentTimeMillis();
+        final Set<Integer> connections = mSampler.connections();
+        mProgress.keySet().retainAll(connections);
+        for (int id : connections) {
+            if (mSampler.count(id) == 0) {
+                continue;
+            }
+            final double bytes = mSampler.latest(id, StatsSampler.Field.BYTES_SENT);
+            if (!Double.isNaN(bytes)) {
+                onProgress(now, id, (long) bytes,
+                        count(mSampler.latest(id, StatsSampler.Field.DROPS))
+                                + count(mSampler.latest(id, StatsSampler.Field.SKIPPED)),
+                        count(mSampler.latest(id, StatsSampler.Field.SEND_BUFFER)));
+            }
+        }
+        evaluate(now);
+    }
+
+    private static long count(double value) {
+        return Double.isNaN(value) ? 0 : (long) value;
+    }
+
+    /**
+     * @param losses     Dropped packets and skipped frames, total.
+     * @param sendBuffer Data waiting in the send buffer, ms, 0 if the protocol doesn't say.
+     */
+    void onProgress(long now, int connectionId, long bytesSent, long losses, long sendBuffer) {
+        Progress progress = mProgress.get(connectionId);
+        if (progress == null) {
+            progress = new Progress();
+            progress.bytes = bytesSent;
+            progress.progressAt = now;
+            progress.losses = losses;
+            progress.congestedAt = now - STALL_TIMEOUT;
+            mProgress.put(connectionId, progress);
+            return;
+        }
+        if (losses > progress.losses || sendBuffer > 0) {
+            progress.congestedAt = now;
+        }
+        progress.losses = losses;
+        if (bytesSent != progress.bytes) {
+            progress.armed = true;
+            progress.bytes = bytesSent;
+            progress.progressAt = now;
+        }
+    }
+
+    void evaluate(long now) {
+        int watched = 0;
+        int moving = 0;
+        boolean congested = false; // Any stalled connection shows the uplink holding it up
+        final Set<Integer> stalled = new HashSet<>();
+        for (Map.Entry<Integer, Progress> entry : mProgress.entrySet()) {
+            final Progress progress = entry.getValue();
+            if (!progress.armed) {
+                continue;
+            }
+            watched++;
+            final long idle = now - progress.progressAt;
+            if (idle >= STALL_TIMEOUT) {
+                stalled.add(entry.getKey());
+                if (now - progress.congestedAt < STALL_TIMEOUT) {
+                    congested = true;
+                }
+            } else if (idle < CONFIRM / 2) {
+                moving++;
+            }
+        }
+
+        if (mStage == Stage.NONE) {
+            if (!stalled.isEmpty()) {
+                mStallAt = now - STALL_TIMEOUT;
+                mStalled.clear();
+                mStalled.addAll(stalled);
+                if (congested) {
+                    Logd(TAG, "Connections " + stalled + " stalled by the uplink, not recovering");
+                    enter(Stage.CONGESTED, now);
+                } else if (stalled.size() == watched) {
+                    Logd(TAG, "All " + watched + " connections stalled, refreshing encoder");
+                    enter(Stage.ENCODER, now);
+                } else {
+                    Logd(TAG, "Connections " + stalled + " stalled");
+                    enter(Stage.CONNECTION, now);
+                }
+            }
+            return;
+        }
+
+        // A reconnect sends a few handshake bytes even with a dead encoder, wait for steady flow.
+        // Restarted connections count only once their replacements are sending too
+        if (mStage != Stage.FAILED && watched > 0 && moving == watched && now - mStageAt >= CONFIRM
+                && replaced()) {
+            Logd(TAG, "Recovered at stage " + mStage + " after " + (now - mStallAt) + " ms");
+            mStage = Stage.NONE;
+            return;
+        }
+        if (mProgress.isEmpty()) {
+            // Every connection dropped, reconnecting is up to the scheduler
+            Logd(TAG, "No connections left at stage " + mStage + ", standing down");
+            mStage = Stage.NONE;
+            return;
+        }
+
+        // Losses or a full send buffer mean frames are coming, the uplink doesn't take them
+        if (congested && mStage != Stage.CONGESTED && mStage != Stage.FAILED) {
+            Logd(TAG, "Congestion at stage " + mStage + ", not escalating");
+            enter(Stage.CONGESTED, now);
+            return;
+        }
+
+        switch (mStage) {
+            case CONGESTED:
+                if (watched > 0 && stalled.size() == watched && !congested) {
+                    Logd(TAG, "All " + watched + " connections stalled without losses, refreshing encoder");
+                    mStalled.clear();
+                    mStalled.addAll(stalled);
+                    enter(Stage.ENCODER, now);
+                }
+                break;
+            case ENCODER:
+                if (now - mStageAt >= ENCODER_GRACE) {
+                    Logd(TAG, "No progress after encoder refresh, restarting connections");
+                    mStalled.clear();
+                    mStalled.addAll(mProgress.keySet());
+                    enter(Stage.CONNECTION, now);
+                }
+                break;
+            case CONNECTION:
+                if (now - mStageAt >= RESTART_GRACE) {
+                    Logd(TAG, "No progress after connection restart, restarting pipeline");
+                    enter(Stage.PIPELINE, now);
+                }
+                break;
+            case PIPELINE:
+                if (now - mStageAt >= PIPELINE_GRACE) {
+                    Logd(TAG, "Stall unresolved after " + (now - mStallAt) + " ms, target "
+                            + RECOVERY_TARGET + " ms, retrying in " + COOLDOWN / 1000 + " s");
+                    mStage = Stage.FAILED;
+                    mStageAt = now;
+                }
+                break;
+            case FAILED:
+                if (now - mStageAt >= COOLDOWN) {
+                    mStage = Stage.NONE;
+                    // Start over from fresh counters
+                    for (Progress progress : mProgress.values()) {
+                        progress.progressAt = now;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private boolean replaced() {
+        if (mStage != Stage.CONNECTION && mStage != Stage.PIPELINE) {
+            return true;
+        }
+        int armed = 0;
+        for (Map.Entry<Integer, Progress> entry : mProgress.entrySet()) {
+            if (entry.getValue().armed && !mSurvivors.contains(entry.getKey())) {
+                armed++;
+            }
+        }
+        return armed >= mRestarted;
+    }
+
+    private void enter(Stage stage, long now) {
+        mStage = stage;
+        mStageAt = now;
+        switch (stage) {
+            case ENCODER:
+                mRecovery.refreshEncoder();
+                break;
+            case CONNECTION:
+                mRestarted = mStalled.size();
+                final Iterator<Integer> it = mStalled.iterator();
+                while (it.hasNext()) {
+                    final int id = it.next();
+                    // The restarted connection comes back under a new id
+                    mProgress.remove(id);
+                    it.remove();
+                    Logd(TAG, "Restarting connection " + id);
+                    mRecovery.restartConnection(id);
+                }
+                mSurvivors.clear();
+                mSurvivors.addAll(mProgress.keySet());
+                break;
+            case PIPELINE:
+                Logd(TAG, "Restarting capture pipeline");
+                mRecovery.restartPipeline();
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package io.uslugi.streamer.conditioner;
+
+/**
+ * Source of per-connection protocol statistics for the conditioner.
+ */
+public interface StatsProvider {
+
+    /**
+     * Fills the sample with the latest counters of the connection.
+     *
+     * @param connectionId The connection to poll.
+     * @param sample       Reused sample object, reset by the provider before filling.
+     * @return false if the connection has no statistics.
+     */
+    boolean poll(int connectionId, ConnectionSample sample);
+}
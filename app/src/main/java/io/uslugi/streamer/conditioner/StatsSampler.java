@@ -0,0 +1,305 @@
+package io.uslugi.streamer.conditioner;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.wmspanel.libstream.Streamer;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Polls every connection of the streamer once per tick and keeps the values in fixed-size
+ * primitive ring buffers, one set per connection.
+ * <p>
+ * The sampler thread is the only writer. A slot is filled before the sample count is published
+ * (volatile), readers copy the slots they need and check the count again, dropping any that were
+ * overwritten meanwhile. The conditioner, UI, notification and log read without locks and the
+ * sampler never waits for them.
+ * <p>
+ * The conditioner runs as a {@link Listener} on the sampler thread and gets the raw counters
+ * through {@link #poll}, so each connection costs one round of JNI stats calls per tick.
+ */
+public final class StatsSampler implements StatsProvider {
+    private static final String TAG = "StatsSampler";
+
+    public static final long INTERVAL = 500; // Shortest conditioner check interval
+    public static final int CAPACITY = 600; // 5 minutes
+
+    public enum Field {
+        BYTES_SENT, // Total, bytes
+        SEND_RATE, // bps over the last tick
+        BANDWIDTH, // SRT link estimate, bps
+        RTT, // SRT, ms
+        SEND_BUFFER, // SRT, ms of data waiting in the sender buffer
+        DROPS, // SRT packets dropped by the sender, total
+        SKIPPED, // RTMP/RTSP audio and video frames skipped, total
+        BITRATE, // Encoder target, bps
+        FPS
+    }
+
+    private static final int FIELDS = Field.values().length;
+
+    /**
+     * Called on the sampler thread after each tick.
+     */
+    public interface Listener {
+        void onSampled(long uptime);
+    }
+
+    private static final class Series {
+        final long[] time = new long[CAPACITY];
+        final double[][] values = new double[FIELDS][CAPACITY];
+        final ConnectionSample sample = new ConnectionSample(); // Sampler thread only
+        boolean valid;
+        volatile long count;
+    }
+
+    private final Map<Integer, Series> mSeries = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile int mBitrate;
+    private volatile double mFps;
+
+    // Main thread only
+    private HandlerThread mThread;
+    private Tick mTick;
+
+    public void start(@NonNull Streamer streamer) {
+        stop();
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mThread.start();
+        mTick = new Tick(new Handler(mThread.getLooper()), new StreamerControl(streamer));
+        mTick.schedule();
+    }
+
+    public void stop() {
+        if (mTick != null) {
+            mTick.cancelled = true;
+            mTick = null;
+        }
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+        }
+    }
+
+    public void addConnection(int connectionId) {
+        mSeries.put(connectionId, new Series());
+    }
+
+    public void removeConnection(int connectionId) {
+        mSeries.remove(connectionId);
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Encoder target bitrate, stored with the following samples.
+     */
+    public void setBitrate(int bitrate) {
+        mBitrate = bitrate;
+    }
+
+    public void setFps(double fps) {
+        mFps = fps;
+    }
+
+    public int bitrate() {
+        return mBitrate;
+    }
+
+    public double fps() {
+        return mFps;
+    }
+
+    @NonNull
+    public Set<Integer> connections() {
+        return mSeries.keySet();
+    }
+
+    /**
+     * Copies the last raw counters of the connection. Only valid on the sampler thread,
+     * i.e. from a {@link Listener}.
+     */
+    @Override
+    public boolean poll(int connectionId, ConnectionSample sample) {
+        final Series series = mSeries.get(connectionId);
+        if (series == null || !series.valid) {
+            sample.reset();
+            return false;
+        }
+        sample.set(series.sample);
+        return true;
+    }
+
+    /**
+     * @return number of samples taken for the connection since it was added.
+     */
+    public long count(int connectionId) {
+        final Series series = mSeries.get(connectionId);
+        return series != null ? series.count : 0;
+    }
+
+    /**
+     * @return the newest value of the field, or NaN if there is none.
+     */
+    public double latest(int connectionId, @NonNull Field field) {
+        final Series series = mSeries.get(connectionId);
+        if (series == null) {
+            return Double.NaN;
+        }
+        final long count = series.count;
+        if (count == 0) {
+            return Double.NaN;
+        }
+        final double value = series.values[field.ordinal()][(int) ((count - 1) % CAPACITY)];
+        // Lapped by the writer, the slot is rewritten once the count reaches count + CAPACITY - 1
+        return series.count - count < CAPACITY - 1 ? value : Double.NaN;
+    }
+
+    /**
+     * Copies up to {@code values.length} newest samples of the field, oldest first.
+     *
+     * @param time   Receives sample times ({@link SystemClock#uptimeMillis()}), may be null.
+     * @param values Receives the values.
+     * @return number of samples copied.
+     */
+    public int history(int connectionId, @NonNull Field field, @Nullable long[] time, @NonNull double[] values) {
+        final Series series = mSeries.get(connectionId);
+        if (series == null) {
+            return 0;
+        }
+        final long count = series.count;
+        int n = (int) Math.min(Math.min(count, CAPACITY), values.length);
+        if (time != null) {
+            n = Math.min(n, time.length);
+        }
+        final double[] column = series.values[field.ordinal()];
+        final long first = count - n;
+        for (int i = 0; i < n; i++) {
+            final int slot = (int) ((first + i) % CAPACITY);
+            values[i] = column[slot];
+            if (time != null) {
+                time[i] = series.time[slot];
+            }
+        }
+        // Samples the writer has wrapped onto since the count was read are torn, drop them. With
+        // the count at c, slot c % CAPACITY may be mid-write, so sample c - CAPACITY is gone too
+        final long overwritten = series.count + 1 - CAPACITY - first;
+        if (overwritten <= 0) {
+            return n;
+        }
+        if (overwritten >= n) {
+            return 0;
+        }
+        final int skip = (int) overwritten;
+        System.arraycopy(values, skip, values, 0, n - skip);
+        if (time != null) {
+            System.arraycopy(time, skip, time, 0, n - skip);
+        }
+        return n - skip;
+    }
+
+    /**
+     * @return one-line summary of the newest sample for the event log.
+     */
+    @NonNull
+    public String summary(int connectionId) {
+        return String.format(Locale.US, "rate=%.0f bw=%.0f rtt=%.0f drops=%.0f skipped=%.0f bitrate=%.0f fps=%.1f",
+                latest(connectionId, Field.SEND_RATE), latest(connectionId, Field.BANDWIDTH),
+                latest(connectionId, Field.RTT), latest(connectionId, Field.DROPS),
+                latest(connectionId, Field.SKIPPED), latest(connectionId, Field.BITRATE),
+                latest(connectionId, Field.FPS));
+    }
+
+    /**
+     * Takes one sample of every connection and runs the listeners. The tick calls it on the
+     * sampler thread; JVM tests without a looper call it directly.
+     */
+    public void sample(StatsProvider provider, long uptime) {
+        for (Map.Entry<Integer, Series> entry : mSeries.entrySet()) {
+            final Series series = entry.getValue();
+            final ConnectionSample sample = series.sample;
+            series.valid = provider.poll(entry.getKey(), sample);
+
+            final long count = series.count;
+            final int slot = (int) (count % CAPACITY);
+            double rate = 0.0;
+            if (count > 0) {
+                final int prev = (int) ((count - 1) % CAPACITY);
+                final long elapsed = uptime - series.time[prev];
+                final double sent = sample.bytesSent - series.values[Field.BYTES_SENT.ordinal()][prev];
+                if (elapsed > 0 && sent > 0) {
+                    rate = sent * 8_000.0 / elapsed;
+                }
+            }
+            series.time[slot] = uptime;
+            put(series, Field.BYTES_SENT, slot, sample.bytesSent);
+            put(series, Field.SEND_RATE, slot, rate);
+            put(series, Field.BANDWIDTH, slot, sample.mbpsBandwidth * 1_000_000.0);
+            put(series, Field.RTT, slot, sample.msRTT);
+            put(series, Field.SEND_BUFFER, slot, sample.msSndBuf);
+            put(series, Field.DROPS, slot, sample.pktSndDrop);
+            put(series, Field.SKIPPED, slot, sample.audioFramesSkipped + sample.videoFramesSkipped);
+            put(series, Field.BITRATE, slot, mBitrate);
+            put(series, Field.FPS, slot, mFps);
+            series.count = count + 1;
+        }
+        for (Listener listener : mListeners) {
+            listener.onSampled(uptime);
+        }
+    }
+
+    private static void put(Series series, Field field, int slot, double value) {
+        series.values[field.ordinal()][slot] = value;
+    }
+
+    /**
+     * Fixed-rate tick, same scheduling as the conditioner check: missed ticks are skipped
+     * rather than fired back to back.
+     */
+    private final class Tick implements Runnable {
+        private final Handler handler;
+        private final StatsProvider provider;
+        private long nextTick;
+        volatile boolean cancelled;
+
+        Tick(Handler handler, StatsProvider provider) {
+            this.handler = handler;
+            this.provider = provider;
+            this.nextTick = SystemClock.uptimeMillis() + INTERVAL;
+        }
+
+        void schedule() {
+            handler.postAtTime(this, nextTick);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            sample(provider, SystemClock.uptimeMillis());
+            final long now = SystemClock.uptimeMillis();
+            nextTick += INTERVAL;
+            if (nextTick <= now) {
+                nextTick += ((now - nextTick) / INTERVAL + 1) * INTERVAL;
+            }
+            schedule();
+        }
+    }
+}
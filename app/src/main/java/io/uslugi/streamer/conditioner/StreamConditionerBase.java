@@ -2,7 +2,10 @@ package io.uslugi.streamer.conditioner;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -10,33 +13,48 @@ import androidx.annotation.NonNull;
 import io.uslugi.libcommon.CameraInfo;
 
 import io.uslugi.streamer.BuildConfig;
-import com.wmspanel.libstream.RistStats;
-import com.wmspanel.libstream.SrtStats;
 import com.wmspanel.libstream.Streamer;
-import com.wmspanel.libstream.TcpStats;
+import io.uslugi.streamer.data.NetworkProfile;
 import io.uslugi.streamer.settingsutils.Settings;
 import io.uslugi.streamer.settingsutils.CameraSettings;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 
 public abstract class StreamConditionerBase {
 
     protected static final String TAG = "StreamConditioner";
 
-    private final Handler mHandler;
+    // Long enough for the longest recovery interval lookup (3 min) with margin
+    private static final long HISTORY_WINDOW = 5 * 60_000;
+    // One sample per check at the shortest check interval (500 ms) fits the window
+    private static final int HISTORY_CAPACITY = 1024;
+    // Bitrate held this long without losses is remembered as good for the network
+    private static final long STABLE_INTERVAL = 30_000;
+    // Networks losing more than this per minute resume one notch lower
+    private static final double FLAKY_LOST_PER_MINUTE = 30.0;
+    // Audio-only fallback: losses that keep coming at the lowest bitrate
+    private static final double AUDIO_ONLY_FLOOR = 0.25; // Fraction of full bitrate
+    private static final double AUDIO_ONLY_FLOOR_MARGIN = 1.2; // Probing just above the floor counts
+    private static final long AUDIO_ONLY_ENTER_DELAY = 10_000; // Losing frames at the floor this long
+    private static final long AUDIO_ONLY_LOSS_GAP = 4_000; // Quiet time that breaks a loss streak
+    private static final long AUDIO_ONLY_PROBE = 30_000; // Time until the first return to video
+    private static final long AUDIO_ONLY_PROBE_MAX = 5 * 60_000; // Doubles each failed probe up to this
+    private static final int AUDIO_ONLY_VIDEO_BITRATE = 50_000; // Enough for a static frame
+
+    // Bitrate decisions are published to listeners on the main thread; created on first use
+    private Handler mHandler;
+
+    // Guards conditioner state shared between the control thread and callers on the main thread
+    protected final Object mLock = new Object();
 
     private int mSettingsBitrate;
-    protected int mCurrentBitrate;
+    protected volatile int mCurrentBitrate;
     protected int mFullBitrate;
-    protected final List<LossHistory> mLossHistory = new ArrayList<>();
-    protected final List<BitrateHistory> mBitrateHistory = new ArrayList<>();
+    protected final LossHistory mLossHistory = new LossHistory(HISTORY_CAPACITY, HISTORY_WINDOW);
+    protected final BitrateHistory mBitrateHistory = new BitrateHistory(HISTORY_CAPACITY, HISTORY_WINDOW);
     protected final Map<Integer, StreamStats> mStreamStats = new HashMap<>();
     protected double mCurrentFps;
     protected Streamer.FpsRange mCurrentRange = new Streamer.FpsRange(30, 30);
@@ -45,9 +63,31 @@ public abstract class StreamConditionerBase {
     protected CameraInfo mCameraInfo;
     protected double mMaxFps = 30.0;
 
-    private Streamer mStreamer;
+    private StatsProvider mStatsProvider;
+    private BitrateControl mBitrateControl;
+    private Clock mClock = Clock.SYSTEM;
+    private final ConnectionSample mSample = new ConnectionSample();
     protected final Set<Integer> mConnectionId = new HashSet<>();
-    private Timer mCheckTimer;
+    private HandlerThread mControlThread;
+    private CheckTask mCheckTask;
+    private StatsSampler mSampler;
+    private SamplerTask mSamplerTask;
+    private Listener mListener;
+    private WarmStartStore mWarmStartStore;
+    private long mSessionStart;
+    private long mSessionLost;
+    private long mLastLost;
+    private long mStableSince;
+    private int mStableCandidate;
+    private int mStableBitrate;
+    private boolean mAudioOnly;
+    private long mStarvingSince;
+    private long mLastLossTs;
+    private long mAudioOnlyUntil;
+    private long mAudioOnlyExitTs;
+    private long mProbeInterval;
+    private volatile boolean mRecording;
+    private PowerGovernor.Caps mPowerCaps = PowerGovernor.NONE;
 
     protected final boolean TEST_MODE = false;
     protected boolean mSimulateLoss = false; // Used by test mode to simulate packet loss
@@ -62,103 +102,236 @@ public abstract class StreamConditionerBase {
 
     abstract void check(long audioLost, long videoLost);
 
+    /**
+     * Receives bitrate decisions made on the control thread. Called on the main thread.
+     */
+    public interface Listener {
+        void onBitrateChanged(int bitrate, Streamer.FpsRange fpsRange);
+
+        /**
+         * Video is reduced to a static frame so that audio gets through, or restored.
+         */
+        default void onAudioOnlyChanged(boolean audioOnly) {
+        }
+    }
+
     StreamConditionerBase(Context context) {
         mContext = context;
-        mHandler = new Handler(Looper.getMainLooper());
     }
 
     public static StreamConditionerBase newInstance(Context context,
                                                     int bitrate,
                                                     @NonNull CameraInfo info) {
-        StreamConditionerBase conditioner = null;
-        switch (Settings.adaptiveBitrate()) {
+        final StreamConditionerBase conditioner = create(Settings.adaptiveBitrate(), context);
+        if (conditioner != null) {
+            conditioner.mSettingsBitrate = bitrate;
+            conditioner.setCameraInfo(info);
+        }
+        return conditioner;
+    }
+
+    static StreamConditionerBase create(int mode, Context context) {
+        switch (mode) {
             case Settings.ADAPTIVE_BITRATE_LOG_DESC:
-                conditioner = new StreamConditionerLogarithmicDescend(context);
-                break;
+                return new StreamConditionerLogarithmicDescend(context);
             case Settings.ADAPTIVE_BITRATE_LADDER_ASC:
-                conditioner = new StreamConditionerLadderAscend(context);
-                break;
+                return new StreamConditionerLadderAscend(context);
             case Settings.ADAPTIVE_BITRATE_HYBRID:
-                conditioner = new StreamConditionerHybrid(context);
-                break;
+                return new StreamConditionerHybrid(context);
+            case Settings.ADAPTIVE_BITRATE_DELAY_GRADIENT:
+                return new StreamConditionerDelayGradient(context);
             case Settings.ADAPTIVE_BITRATE_OFF:
             default:
-                break;
-        }
-        if (conditioner != null) {
-            conditioner.mSettingsBitrate = bitrate;
-            conditioner.setCameraInfo(info);
+                return null;
         }
-        return conditioner;
     }
 
     public void start(Streamer streamer) {
-        start(streamer, mSettingsBitrate);
+        synchronized (mLock) {
+            final StreamerControl control = new StreamerControl(streamer);
+            mStatsProvider = control;
+            mBitrateControl = control;
+            start(mSettingsBitrate);
+            if (mPowerCaps != PowerGovernor.NONE) {
+                applyPowerCaps();
+            }
+            runTask();
+        }
+    }
+
+    /**
+     * Starts the conditioner on the sampler thread, reading the counters the sampler has already
+     * polled instead of polling the streamer again. Connections are added to both.
+     */
+    public void start(Streamer streamer, @NonNull StatsSampler sampler) {
+        synchronized (mLock) {
+            mStatsProvider = sampler;
+            mBitrateControl = new StreamerControl(streamer);
+            mSampler = sampler;
+            start(mSettingsBitrate);
+            if (mPowerCaps != PowerGovernor.NONE) {
+                applyPowerCaps();
+            }
+            updateSampler();
+            runTask();
+        }
+    }
+
+    /**
+     * Starts the conditioner without the control thread; the caller drives it with {@link #tick()}.
+     * Used by the unit tests' ConditionerSimulator to replay bandwidth traces on the JVM.
+     */
+    void startManual(StatsProvider statsProvider, BitrateControl bitrateControl, Clock clock, int bitrate) {
+        synchronized (mLock) {
+            mStatsProvider = statsProvider;
+            mBitrateControl = bitrateControl;
+            mClock = clock;
+            start(bitrate);
+            if (mPowerCaps != PowerGovernor.NONE) {
+                applyPowerCaps();
+            }
+        }
+    }
+
+    void tick() {
+        synchronized (mLock) {
+            mCheckNetwork.run();
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * The local recording shares the encoder, while it runs video is never traded for audio.
+     */
+    public void setRecording(boolean recording) {
+        mRecording = recording;
+    }
+
+    /**
+     * Sets where the last good bitrate of the current network is kept. Call before {@link #start(Streamer)}.
+     */
+    public void setWarmStartStore(WarmStartStore store) {
+        synchronized (mLock) {
+            mWarmStartStore = store;
+        }
+    }
+
+    /**
+     * Limits bitrate and frame rate on top of what the network allows, see {@link PowerGovernor}.
+     */
+    public void setPowerCaps(@NonNull PowerGovernor.Caps caps) {
+        synchronized (mLock) {
+            mPowerCaps = caps;
+            if (mBitrateControl == null || mCurrentBitrate == 0 || mAudioOnly) {
+                return;
+            }
+            applyPowerCaps();
+        }
     }
 
-    protected void start(Streamer streamer, int bitrate) {
-        mStreamer = streamer;
-        final long curTime = System.currentTimeMillis();
+    protected long now() {
+        return mClock.currentTimeMillis();
+    }
+
+    protected void start(int bitrate) {
+        final long curTime = now();
         mLossHistory.clear();
-        mLossHistory.add(new LossHistory(curTime, 0, 0));
+        mLossHistory.add(curTime, 0, 0);
         mBitrateHistory.clear();
-        mBitrateHistory.add(new BitrateHistory(curTime, bitrate));
+        mBitrateHistory.add(curTime, bitrate);
         mCurrentBitrate = bitrate;
-        final Streamer.FpsRange fpsRange = CameraSettings.fpsRange(mContext);
+        final Streamer.FpsRange fpsRange = mContext != null ? CameraSettings.fpsRange(mContext) : null;
         if (fpsRange != null) {
             mMaxFps = fpsRange.fpsMax * 1.0;
         }
         mCurrentFps = mMaxFps;
-        runTask();
+        mSessionStart = curTime;
+        mSessionLost = 0;
+        mLastLost = 0;
+        mStableSince = curTime;
+        mStableCandidate = bitrate;
+        mStableBitrate = 0;
+        mAudioOnly = false;
+        mStarvingSince = -1;
+        mLastLossTs = 0;
+        mAudioOnlyExitTs = 0;
+        mProbeInterval = AUDIO_ONLY_PROBE;
     }
 
     public void stop() {
-        cancelTask();
-        if (mFullBitrate > 0) {
-            updateFps(mFullBitrate);
+        synchronized (mLock) {
+            cancelTask();
+            saveProfile();
+            mStableBitrate = 0;
+            if (mAudioOnly) {
+                mAudioOnly = false;
+                post(listener -> listener.onAudioOnlyChanged(false));
+            }
+            if (mFullBitrate > 0 && mBitrateControl != null) {
+                updateFps(mFullBitrate);
+            }
+            mCurrentBitrate = 0;
+            mStatsProvider = null;
+            mBitrateControl = null;
+            mSampler = null;
+            mConnectionId.clear();
+            mStreamStats.clear();
         }
-        mCurrentBitrate = 0;
-        mStreamer = null;
-        mConnectionId.clear();
-        mStreamStats.clear();
     }
 
     public void pause() {
-        cancelTask();
+        synchronized (mLock) {
+            cancelTask();
+        }
     }
 
     public void resume() {
-        if (mCurrentBitrate == 0) {
-            return;
-        }
-        mCurrentBitrate = mFullBitrate;
-        Streamer.FpsRange fpsRange = CameraSettings.fpsRange(mContext);
-        if (fpsRange != null) {
-            mMaxFps = fpsRange.fpsMax * 1.0;
-            mCurrentRange = fpsRange;
-        } else {
-            mMaxFps = 30.0;
-            mCurrentRange = new Streamer.FpsRange(30, 30);
+        synchronized (mLock) {
+            if (mCurrentBitrate == 0 || mBitrateControl == null) {
+                return;
+            }
+            mCurrentBitrate = mFullBitrate;
+            Streamer.FpsRange fpsRange = CameraSettings.fpsRange(mContext);
+            if (fpsRange != null) {
+                mMaxFps = fpsRange.fpsMax * 1.0;
+                mCurrentRange = fpsRange;
+            } else {
+                mMaxFps = 30.0;
+                mCurrentRange = new Streamer.FpsRange(30, 30);
+            }
+            mCurrentFps = mMaxFps;
+            if (mAudioOnly) {
+                mAudioOnly = false;
+                post(listener -> listener.onAudioOnlyChanged(false));
+            }
+            runTask();
+            applyBitrate(mFullBitrate);
         }
-        mCurrentFps = mMaxFps;
-        runTask();
-        mStreamer.changeBitRate(mFullBitrate);
     }
 
     public void addConnection(int connectionId) {
         final int capacity = StreamConditionerHybrid.STATS_INTERVAL / (int) checkDelay();
-        mStreamStats.put(connectionId, new StreamStats(capacity));
-        mConnectionId.add(connectionId);
+        synchronized (mLock) {
+            mStreamStats.put(connectionId, new StreamStats(capacity));
+            mConnectionId.add(connectionId);
+        }
     }
 
     public void removeConnection(int connectionId) {
-        mConnectionId.remove(connectionId);
-        mStreamStats.remove(connectionId);
+        synchronized (mLock) {
+            mConnectionId.remove(connectionId);
+            mStreamStats.remove(connectionId);
+        }
     }
 
     public void setCameraInfo(final CameraInfo info) {
-        if (mCameraInfo != null) {
-            mCameraInfo = info;
+        synchronized (mLock) {
+            if (info != null) {
+                mCameraInfo = info;
+            }
         }
     }
 
@@ -166,101 +339,335 @@ public abstract class StreamConditionerBase {
         return mCurrentBitrate;
     }
 
+    // Runs on the control thread with mLock held
     private final Runnable mCheckNetwork = new Runnable() {
         @Override
         public void run() {
-            if (mStreamer == null || mConnectionId.size() == 0) {
+            if (mStatsProvider == null || mConnectionId.size() == 0) {
                 return;
             }
+            final ConnectionSample sample = mSample;
             long audioLost = 0;
             long videoLost = 0;
             for (int id : mConnectionId) {
                 final StreamStats stats = mStreamStats.get(id);
-                if (stats == null) {
+                if (stats == null || !mStatsProvider.poll(id, sample)) {
                     continue;
                 }
 
-                final TcpStats tcpStats = mStreamer.getTcpStats(id);
-                if (tcpStats != null) {
-                    audioLost += tcpStats.audioFramesSkipped;
-                    videoLost += tcpStats.videoFramesSkipped;
+                if (sample.hasTcp) {
+                    audioLost += sample.audioFramesSkipped;
+                    videoLost += sample.videoFramesSkipped;
                 }
 
-                final SrtStats srtStats = mStreamer.getSrtStats(id);
-                if (srtStats != null) {
-                    videoLost += srtStats.pktSndDrop;
-                    stats.put(srtStats, checkInterval());
+                if (sample.hasSrt) {
+                    videoLost += sample.pktSndDrop;
                 }
 
-                final RistStats ristStats = mStreamer.getRistStats(id);
-                if (ristStats != null && ristStats.sent > 100 && ristStats.quality < 90) {
-                    videoLost += 90 - ristStats.quality;
+                if (sample.hasRist && sample.ristSent > 100 && sample.ristQuality < 90) {
+                    videoLost += 90 - sample.ristQuality;
                 }
+
+                stats.put(sample, checkInterval(), mCurrentBitrate);
             }
             if (TEST_MODE) {
-                LossHistory prevLost = ListUtils.getLast(mLossHistory);
                 if (mSimulateLoss) {
-                    audioLost = prevLost.audio + 3;
-                    videoLost = prevLost.video + 3;
+                    audioLost = mLossHistory.lastAudio() + 3;
+                    videoLost = mLossHistory.lastVideo() + 3;
                 } else {
-                    audioLost = prevLost.audio;
-                    videoLost = prevLost.video;
+                    audioLost = mLossHistory.lastAudio();
+                    videoLost = mLossHistory.lastVideo();
                 }
             }
 
+            final long lost = newLost(audioLost + videoLost);
+            if (mAudioOnly) {
+                updateAudioOnly(lost);
+                return;
+            }
             check(audioLost, videoLost);
+            updateStable(lost);
+            updateAudioOnly(lost);
         }
     };
 
+    /**
+     * Fixed-rate tick on the control thread. Tick times are derived from the start time rather
+     * than from the previous run, so a slow stats poll does not push later decisions back.
+     */
+    private final class CheckTask implements Runnable {
+        private final Handler handler;
+        private final long interval;
+        private long nextTick;
+
+        CheckTask(Handler handler, long delay, long interval) {
+            this.handler = handler;
+            this.interval = interval;
+            this.nextTick = SystemClock.uptimeMillis() + delay;
+        }
+
+        void schedule() {
+            handler.postAtTime(this, nextTick);
+        }
+
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mCheckTask != this) {
+                    return;
+                }
+                mCheckNetwork.run();
+            }
+            final long now = SystemClock.uptimeMillis();
+            nextTick += interval;
+            if (nextTick <= now) {
+                // Skip ticks missed while stalled instead of firing them back to back
+                nextTick += ((now - nextTick) / interval + 1) * interval;
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * Same schedule as {@link CheckTask}, counted in sampler ticks.
+     */
+    private final class SamplerTask implements StatsSampler.Listener {
+        private final long interval;
+        private long nextTick;
+
+        SamplerTask(long delay, long interval) {
+            this.interval = interval;
+            this.nextTick = SystemClock.uptimeMillis() + delay;
+        }
+
+        @Override
+        public void onSampled(long uptime) {
+            if (uptime < nextTick) {
+                return;
+            }
+            synchronized (mLock) {
+                if (mSamplerTask != this) {
+                    return;
+                }
+                mCheckNetwork.run();
+            }
+            nextTick += interval;
+            if (nextTick <= uptime) {
+                nextTick += ((uptime - nextTick) / interval + 1) * interval;
+            }
+        }
+    }
+
     private void runTask() {
         if (checkDelay() == 0 || checkInterval() == 0) {
             return;
         }
         cancelTask();
-        mCheckTimer = new Timer();
-        mCheckTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                mHandler.post(mCheckNetwork);
-            }
-        }, checkDelay(), checkInterval());
+        if (mSampler != null) {
+            // Checks land on sampler ticks, a few ms late at most
+            mSamplerTask = new SamplerTask(checkDelay(), checkInterval());
+            mSampler.addListener(mSamplerTask);
+            return;
+        }
+        mControlThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mControlThread.start();
+        mCheckTask = new CheckTask(new Handler(mControlThread.getLooper()), checkDelay(), checkInterval());
+        mCheckTask.schedule();
     }
 
     private void cancelTask() {
-        if (mCheckTimer != null) {
-            mCheckTimer.cancel();
-            mCheckTimer = null;
+        mCheckTask = null;
+        if (mSamplerTask != null) {
+            if (mSampler != null) {
+                mSampler.removeListener(mSamplerTask);
+            }
+            mSamplerTask = null;
+        }
+        if (mControlThread != null) {
+            mControlThread.quitSafely();
+            mControlThread = null;
+        }
+        if (mHandler != null) {
+            mHandler.removeCallbacksAndMessages(null);
         }
-        mHandler.removeCallbacksAndMessages(null);
     }
 
-    protected long countLostForInterval(long interval) {
-        long lost = 0;
-        LossHistory last = ListUtils.getLast(mLossHistory);
-        for (int i = mLossHistory.size() - 1; i >= 0; i--) {
-            if (mLossHistory.get(i).ts < interval) {
-                LossHistory h = mLossHistory.get(i);
-                lost = (last.video - h.video) + (last.audio - h.audio);
-                break;
-            }
+    private interface Event {
+        void deliver(Listener listener);
+    }
+
+    private void post(final Event event) {
+        final Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        if (mHandler == null) {
+            mHandler = new Handler(Looper.getMainLooper());
+        }
+        mHandler.post(() -> event.deliver(listener));
+    }
+
+    private void publishBitrate(final int bitrate, final Streamer.FpsRange fpsRange) {
+        post(listener -> listener.onBitrateChanged(bitrate, fpsRange));
+    }
+
+    /**
+     * @return bitrate the network held last time, adjusted for its losses, or 0 if unknown.
+     * Subclasses call it from {@link #start(int)} after setting {@link #mFullBitrate}.
+     */
+    protected int warmStartBitrate() {
+        final NetworkProfile profile = mWarmStartStore != null ? mWarmStartStore.load(mFullBitrate) : null;
+        if (profile == null || profile.bitrate <= 0) {
+            return 0;
         }
+        final int bitrate = Math.min(profile.bitrate, mFullBitrate);
+        return profile.lostPerMinute > FLAKY_LOST_PER_MINUTE ? bitrate * 3 / 4 : bitrate;
+    }
+
+    private long newLost(long totalLost) {
+        // Counters restart with each connection
+        final long lost = totalLost > mLastLost ? totalLost - mLastLost : 0;
+        mLastLost = totalLost;
+        mSessionLost += lost;
         return lost;
     }
 
+    private void updateStable(long lost) {
+        final long curTime = now();
+        if (lost > 0 || mCurrentBitrate != mStableCandidate || mPowerCaps != PowerGovernor.NONE) {
+            // Bitrate held down by the power caps says nothing about the network
+            mStableSince = curTime;
+            mStableCandidate = mCurrentBitrate;
+        } else if (curTime - mStableSince >= STABLE_INTERVAL && mStableBitrate != mCurrentBitrate) {
+            mStableBitrate = mCurrentBitrate;
+            saveProfile();
+        }
+    }
+
+    private void saveProfile() {
+        if (mWarmStartStore == null || mStableBitrate <= 0 || mFullBitrate <= 0) {
+            return;
+        }
+        final NetworkProfile profile = new NetworkProfile();
+        profile.bitrate = mStableBitrate;
+        profile.fullBitrate = mFullBitrate;
+        profile.lostPerMinute = mSessionLost * 60_000.0 / Math.max(60_000, now() - mSessionStart);
+        mWarmStartStore.save(profile);
+    }
+
+    private void updateAudioOnly(long lost) {
+        final long curTime = now();
+        if (lost > 0) {
+            mLastLossTs = curTime;
+        }
+        if (mAudioOnly) {
+            if (curTime >= mAudioOnlyUntil || mRecording) {
+                // Probe: back to the last video bitrate, the subclass takes over from there
+                // Not recorded in the history, subclasses still see the drop that led here
+                mAudioOnly = false;
+                mAudioOnlyExitTs = curTime;
+                mStarvingSince = -1;
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Leaving audio-only mode");
+                }
+                applyBitrate(mBitrateHistory.lastBitrate());
+                post(listener -> listener.onAudioOnlyChanged(false));
+            }
+            return;
+        }
+
+        if (mRecording) {
+            mStarvingSince = -1;
+            return;
+        }
+        final boolean atFloor = mCurrentBitrate <= mFullBitrate * AUDIO_ONLY_FLOOR * AUDIO_ONLY_FLOOR_MARGIN;
+        if (!atFloor || curTime - mLastLossTs > AUDIO_ONLY_LOSS_GAP) {
+            mStarvingSince = -1;
+            return;
+        }
+        if (mStarvingSince < 0) {
+            mStarvingSince = curTime;
+        }
+        if (curTime - mStarvingSince < AUDIO_ONLY_ENTER_DELAY) {
+            return;
+        }
+
+        // Failed right after the previous probe, wait longer before the next one
+        if (mAudioOnlyExitTs > 0 && curTime - mAudioOnlyExitTs < mProbeInterval * 2) {
+            mProbeInterval = Math.min(mProbeInterval * 2, AUDIO_ONLY_PROBE_MAX);
+        } else {
+            mProbeInterval = AUDIO_ONLY_PROBE;
+        }
+        mAudioOnly = true;
+        mAudioOnlyUntil = curTime + mProbeInterval;
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Entering audio-only mode for " + mProbeInterval + " ms");
+        }
+        mBitrateControl.changeBitRate(AUDIO_ONLY_VIDEO_BITRATE);
+        mCurrentBitrate = AUDIO_ONLY_VIDEO_BITRATE;
+        updateSampler();
+        post(listener -> listener.onAudioOnlyChanged(true));
+    }
+
+    public boolean isAudioOnly() {
+        return mAudioOnly;
+    }
+
+    protected long countLostForInterval(long interval) {
+        final int i = mLossHistory.lastIndexBefore(interval);
+        if (i < 0) {
+            return 0;
+        }
+        return (mLossHistory.lastVideo() - mLossHistory.video(i))
+                + (mLossHistory.lastAudio() - mLossHistory.audio(i));
+    }
+
     protected void changeBitrate(long newBitrate) {
-        mBitrateHistory.add(new BitrateHistory(System.currentTimeMillis(), newBitrate));
+        if (newBitrate > powerCapBitrate() && mCurrentBitrate == powerCapBitrate()
+                && newBitrate == mBitrateHistory.lastBitrate()) {
+            // Held at the power cap, nothing to apply
+            return;
+        }
+        // Subclasses reason about the bitrate they asked for, the encoder gets it capped
+        mBitrateHistory.add(now(), newBitrate);
+        applyBitrate(newBitrate);
+    }
+
+    private void applyBitrate(long requested) {
+        final long bitrate = Math.min(requested, powerCapBitrate());
         if (Settings.adaptiveFps()) {
-            updateFps(newBitrate);
+            updateFps(bitrate);
         }
-        mStreamer.changeBitRate((int) newBitrate);
-        mCurrentBitrate = (int) newBitrate;
+        mBitrateControl.changeBitRate((int) bitrate);
+        mCurrentBitrate = (int) bitrate;
+        updateSampler();
         if (BuildConfig.DEBUG) {
-            Log.d(TAG, "Changing bitrate to " + newBitrate);
+            Log.d(TAG, "Changing bitrate to " + bitrate);
+        }
+        publishBitrate(mCurrentBitrate, mCurrentRange);
+    }
+
+    private long powerCapBitrate() {
+        return mFullBitrate > 0 ? Math.round(mFullBitrate * mPowerCaps.bitrateFraction) : Long.MAX_VALUE;
+    }
+
+    // Called with mLock held once the subclass has settled its start bitrate
+    private void applyPowerCaps() {
+        if (!Settings.adaptiveFps()) {
+            updateFps(mFullBitrate);
+        }
+        applyBitrate(mBitrateHistory.lastBitrate());
+    }
+
+    private void updateSampler() {
+        if (mSampler != null) {
+            mSampler.setBitrate(mCurrentBitrate);
+            mSampler.setFps(mCurrentFps);
         }
     }
 
     protected void changeBitrateQuiet(long newBitrate) {
-        mStreamer.changeBitRate((int) newBitrate);
+        mBitrateControl.changeBitRate((int) newBitrate);
     }
 
     protected void updateFps(long newBitrate) {
@@ -272,6 +679,9 @@ public abstract class StreamConditionerBase {
         if (bitrateRel < 0.5) {
             relFps = Math.max(15.0, Math.floor(mMaxFps * bitrateRel * 2.0 / 5.0) * 5.0);
         }
+        if (mPowerCaps.maxFps > 0) {
+            relFps = Math.min(relFps, mPowerCaps.maxFps);
+        }
         if (Math.abs(relFps - mCurrentFps) < 1.0) {
             return;
         }
@@ -286,7 +696,7 @@ public abstract class StreamConditionerBase {
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "Changing FPS range to " + newRange.fpsMin + "..." + newRange.fpsMax);
         }
-        mStreamer.changeFpsRange(newRange);
+        mBitrateControl.changeFpsRange(newRange);
         mCurrentRange = newRange;
     }
 
@@ -0,0 +1,130 @@
+package io.uslugi.streamer.conditioner;
+
+import android.content.Context;
+
+/**
+ * Delay-based congestion control: reacts to growing queueing delay (SRT RTT and send buffer)
+ * before frames are dropped, then probes back up gently.
+ * <p>
+ * Connections without SRT statistics fall back to lost frames as the congestion signal.
+ */
+class StreamConditionerDelayGradient extends StreamConditionerBase {
+
+    private static final long NORMALIZATION_DELAY = 2_000; // Hold after a decrease before probing up
+    private static final double QUEUE_DELAY_LIMIT_MS = 400.0; // Overuse regardless of trend
+    private static final double THRESHOLD_INIT = 12.5; // Delay gradient threshold, ms per second
+    private static final double THRESHOLD_MIN = 6.0;
+    private static final double THRESHOLD_MAX = 60.0;
+    private static final double THRESHOLD_GAIN_UP = 0.04; // Adapt fast to noise growth
+    private static final double THRESHOLD_GAIN_DOWN = 0.01;
+    private static final int OVERUSE_CHECKS = 2; // Consecutive checks above the threshold
+    private static final double DECREASE_FACTOR = 0.85;
+    private static final double INCREASE_FACTOR_PER_SEC = 1.08; // Away from the last congestion point
+    private static final double PROBE_STEP_PER_SEC = 25_000.0; // Near the last congestion point
+    private static final double PROBE_RANGE = 0.1; // "Near" is within 10% of the last congestion point
+    private static final long MIN_CHANGE = 100_000;
+
+    private double mMinBitrate;
+    private double mTargetBitrate;
+    private double mLastCongestionBitrate;
+    private double mThreshold;
+    private int mOveruseCount;
+    private long mLastDecreaseTs;
+    private long mLastAudioLost;
+    private long mLastVideoLost;
+
+    StreamConditionerDelayGradient(Context context) {
+        super(context);
+    }
+
+    @Override
+    protected void start(int bitrate) {
+        mFullBitrate = bitrate;
+        mMinBitrate = bitrate * 0.25;
+        mTargetBitrate = bitrate;
+        mLastCongestionBitrate = bitrate;
+        mThreshold = THRESHOLD_INIT;
+        mOveruseCount = 0;
+        mLastDecreaseTs = 0;
+        mLastAudioLost = 0;
+        mLastVideoLost = 0;
+        super.start(bitrate);
+    }
+
+    @Override
+    protected void check(long audioLost, long videoLost) {
+        final long curTime = now();
+        final double intervalSec = checkInterval() / 1000.0;
+
+        boolean overuse = false;
+        boolean underuse = false;
+        double sendRate = 0.0;
+        for (int id : mConnectionId) {
+            final StreamStats stats = mStreamStats.get(id);
+            if (stats == null) {
+                continue;
+            }
+            final DelayTrend trend = stats.getDelayTrend();
+            if (!trend.isReady()) {
+                continue;
+            }
+            final double gradient = trend.slope() / intervalSec; // ms per second
+            final double absGradient = Math.abs(gradient);
+            final double gain = absGradient > mThreshold ? THRESHOLD_GAIN_UP : THRESHOLD_GAIN_DOWN;
+            mThreshold += gain * (Math.min(absGradient, THRESHOLD_MAX) - mThreshold) * intervalSec;
+            mThreshold = Math.max(THRESHOLD_MIN, Math.min(THRESHOLD_MAX, mThreshold));
+            //Log.d(TAG, String.format("delay %.1f gradient %.2f threshold %.2f", trend.queueDelayMs(), gradient, mThreshold));
+
+            if (gradient > mThreshold || trend.queueDelayMs() > QUEUE_DELAY_LIMIT_MS) {
+                overuse = true;
+                final double sentBps = stats.getRequiredBps() * 8.0;
+                if (sentBps > 0.0 && (sendRate == 0.0 || sentBps < sendRate)) {
+                    sendRate = sentBps;
+                }
+            } else if (gradient < -mThreshold) {
+                underuse = true;
+            }
+        }
+        mOveruseCount = overuse ? mOveruseCount + 1 : 0;
+
+        // Dropped frames mean the delay signal came too late (or the connection has no SRT stats)
+        final boolean lost = audioLost > mLastAudioLost || videoLost > mLastVideoLost;
+        mLastAudioLost = audioLost;
+        mLastVideoLost = videoLost;
+
+        final long dtDecrease = curTime - mLastDecreaseTs;
+        if ((mOveruseCount >= OVERUSE_CHECKS || lost) && mCurrentBitrate > mMinBitrate) {
+            if (dtDecrease < NORMALIZATION_DELAY) {
+                // Give the previous decrease time to drain the queue
+                return;
+            }
+            double base = mCurrentBitrate;
+            if (sendRate > 0.0) {
+                base = Math.min(base, sendRate);
+            }
+            mLastCongestionBitrate = mCurrentBitrate;
+            mTargetBitrate = Math.max(mMinBitrate, base * DECREASE_FACTOR);
+            mOveruseCount = 0;
+            mLastDecreaseTs = curTime;
+            changeBitrate(Math.round(mTargetBitrate));
+            return;
+        }
+
+        if (overuse || underuse || mCurrentBitrate >= mFullBitrate || dtDecrease < NORMALIZATION_DELAY) {
+            // Hold while the queue is building or draining
+            mTargetBitrate = mCurrentBitrate;
+            return;
+        }
+
+        if (Math.abs(mTargetBitrate - mLastCongestionBitrate) < mLastCongestionBitrate * PROBE_RANGE) {
+            mTargetBitrate += Math.max(PROBE_STEP_PER_SEC, mTargetBitrate * 0.02) * intervalSec;
+        } else {
+            mTargetBitrate *= Math.pow(INCREASE_FACTOR_PER_SEC, intervalSec);
+        }
+        mTargetBitrate = Math.min(mTargetBitrate, mFullBitrate);
+        if (mTargetBitrate - mCurrentBitrate >= MIN_CHANGE || mTargetBitrate >= mFullBitrate) {
+            changeBitrate(Math.round(mTargetBitrate));
+        }
+    }
+
+}
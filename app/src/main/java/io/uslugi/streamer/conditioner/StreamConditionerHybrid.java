@@ -2,14 +2,13 @@ package io.uslugi.streamer.conditioner;
 
 import android.content.Context;
 
-import com.wmspanel.libstream.Streamer;
-
 class StreamConditionerHybrid extends StreamConditionerBase {
 
     private static final int NORMALIZATION_DELAY = 5_000; // Ignore lost packets during this time after bitrate change
     private static final int RECOVERY_ATTEMPT_INTERVAL = 30_000;
     private static final int RECOVERY_STEP_INTERVAL = 10_000;
     static final int STATS_INTERVAL = 5_000;
+    private static final double MAX_RECOVERY_JITTER = 0.25; // Send rate deviation relative to the required rate
 
     private double mMinBitrate;
 
@@ -23,30 +22,38 @@ class StreamConditionerHybrid extends StreamConditionerBase {
     }
 
     @Override
-    public void start(Streamer streamer, int bitrate) {
+    protected void start(int bitrate) {
         mFullBitrate = bitrate;
         mMinBitrate = bitrate * 0.25;
-        super.start(streamer, bitrate);
+        super.start(bitrate);
     }
 
     @Override
     protected void check(long audioLost, long videoLost) {
         double newBitrate = mFullBitrate;
+        boolean unstable = false;
         for (int id : mConnectionId) {
             final StreamStats stats = mStreamStats.get(id);
-            if (stats == null) {
+            if (stats == null || !stats.isReady()) {
                 continue;
             }
 
             final double requiredBps = stats.getRequiredBps();
             final double realBps = stats.getRealBps();
 
+            if (stats.getJitterBps() > requiredBps * MAX_RECOVERY_JITTER
+                    || stats.getLowBps() < requiredBps * (1.0 - MAX_RECOVERY_JITTER)) {
+                // Send rate is jumping around or keeps dipping, don't step up until it settles
+                unstable = true;
+            }
+
             final int currentBitrateBps = mCurrentBitrate / 8;
 
             double reducedBitrate = mCurrentBitrate;
             //Log.d(TAG, String.format("Real %f Required %f", realBps, requiredBps));
 
-            if (realBps < currentBitrateBps * 0.95
+            if (requiredBps > 0.0
+                    && realBps < currentBitrateBps * 0.95
                     && realBps < requiredBps * 0.95) {
                 final double ratio = realBps / requiredBps;
                 reducedBitrate = Math.floor((mCurrentBitrate * ratio + 30_000) / 100_000.0) * 100_000.0;
@@ -57,15 +64,15 @@ class StreamConditionerHybrid extends StreamConditionerBase {
             }
         }
 
-        final BitrateHistory prevBitrate = ListUtils.getLast(mBitrateHistory);
-        final long curTime = System.currentTimeMillis();
-        final long dtChange = curTime - prevBitrate.ts;
+        final long curTime = now();
+        final long dtChange = curTime - mBitrateHistory.lastTs();
         if (dtChange < NORMALIZATION_DELAY) {
             return;
         }
         //Log.d(TAG, String.format(" currentBitrate %d newBitrate %7.0f", mCurrentBitrate, newBitrate));
         if (newBitrate >= mCurrentBitrate
                 && mCurrentBitrate < mFullBitrate
+                && !unstable
                 && canTryToRecover()) {
             final double step = Math.min(500_000.0, mFullBitrate * 0.1);
             newBitrate = Math.min(mFullBitrate, mCurrentBitrate + Math.max(100_000.0, step));
@@ -77,19 +84,19 @@ class StreamConditionerHybrid extends StreamConditionerBase {
     }
 
     boolean canTryToRecover() {
-        final long curTime = System.currentTimeMillis();
+        final long curTime = now();
         if (mBitrateHistory.size() < 2) {
             return false;
         }
         final int i = mBitrateHistory.size() - 1;
-        final BitrateHistory last = mBitrateHistory.get(i);
-        final BitrateHistory prev = mBitrateHistory.get(i - 1);
-        //Log.d(TAG, String.format("canTryToRecover: last %d prev %d", (int)last.bitrate, (int)prev.bitrate));
-        final long dtChange = curTime - last.ts;
-        if (last.bitrate < prev.bitrate && dtChange > RECOVERY_ATTEMPT_INTERVAL) {
+        final long last = mBitrateHistory.bitrate(i);
+        final long prev = mBitrateHistory.bitrate(i - 1);
+        //Log.d(TAG, String.format("canTryToRecover: last %d prev %d", (int)last, (int)prev));
+        final long dtChange = curTime - mBitrateHistory.ts(i);
+        if (last < prev && dtChange > RECOVERY_ATTEMPT_INTERVAL) {
             // First step after drop
             return true;
-        } else if (last.bitrate > prev.bitrate && dtChange > RECOVERY_STEP_INTERVAL) {
+        } else if (last > prev && dtChange > RECOVERY_STEP_INTERVAL) {
             // Continue restoring bitrate
             return true;
         }
@@ -2,8 +2,6 @@ package io.uslugi.streamer.conditioner;
 
 import android.content.Context;
 
-import com.wmspanel.libstream.Streamer;
-
 class StreamConditionerLadderAscend extends StreamConditionerBase {
 
     private static final long NORMALIZATION_DELAY = 2_000; //Ignore lost frames during this time after bitrate change
@@ -30,11 +28,20 @@ class StreamConditionerLadderAscend extends StreamConditionerBase {
     }
 
     @Override
-    public void start(Streamer streamer, int bitrate) {
+    protected void start(int bitrate) {
         mFullBitrate = bitrate;
         mStep = 2;
+        final int warmBitrate = warmStartBitrate();
+        if (warmBitrate > 0) {
+            // Resume from the highest step this network held last time
+            mStep = 0;
+            while (mStep < BANDWIDTH_STEPS.length - 1
+                    && Math.round(bitrate * BANDWIDTH_STEPS[mStep + 1]) <= warmBitrate) {
+                mStep++;
+            }
+        }
         int startBitrate = (int) Math.round(bitrate * BANDWIDTH_STEPS[mStep]);
-        super.start(streamer, startBitrate);
+        super.start(startBitrate);
         changeBitrateQuiet(startBitrate);
         if (TEST_MODE) {
             mSimulateLoss = false;
@@ -43,20 +50,20 @@ class StreamConditionerLadderAscend extends StreamConditionerBase {
 
     @Override
     protected void check(long audioLost, long videoLost) {
-        long curTime = System.currentTimeMillis();
-        LossHistory prevLost = ListUtils.getLast(mLossHistory);
-        BitrateHistory prevBitrate = ListUtils.getLast(mBitrateHistory);
-        if (prevLost.audio != audioLost || prevLost.video != videoLost) {
+        long curTime = now();
+        long prevBitrateTs = mBitrateHistory.lastTs();
+        long prevBitrate = mBitrateHistory.lastBitrate();
+        if (mLossHistory.lastAudio() != audioLost || mLossHistory.lastVideo() != videoLost) {
 
             // Log.d(TAG, "Lost frames " + audioLost + "+" + videoLost);
 
-            long dtChange = curTime - prevBitrate.ts;
-            mLossHistory.add(new LossHistory(curTime, audioLost, videoLost));
+            long dtChange = curTime - prevBitrateTs;
+            mLossHistory.add(curTime, audioLost, videoLost);
             if (mStep == 0 || dtChange < NORMALIZATION_DELAY) {
                 return;
             }
-            long estimatePeriod = Math.max(prevBitrate.ts + NORMALIZATION_DELAY, curTime - LOST_ESTIMATE_INTERVAL);
-            long lostTolerance = prevBitrate.bitrate / LOST_BANDWIDTH_TOLERANCE_FRAC;
+            long estimatePeriod = Math.max(prevBitrateTs + NORMALIZATION_DELAY, curTime - LOST_ESTIMATE_INTERVAL);
+            long lostTolerance = prevBitrate / LOST_BANDWIDTH_TOLERANCE_FRAC;
             if (countLostForInterval(estimatePeriod) >= lostTolerance) {
                 long newBitrate = Math.round(mFullBitrate * BANDWIDTH_STEPS[--mStep]);
                 changeBitrate(newBitrate);
@@ -65,7 +72,7 @@ class StreamConditionerLadderAscend extends StreamConditionerBase {
                 }
 
             }
-        } else if (prevBitrate.bitrate < mFullBitrate && canTryToRecover()) {
+        } else if (prevBitrate < mFullBitrate && canTryToRecover()) {
 
             // Log.d(TAG, "Increasing bitrate");
 
@@ -78,27 +85,26 @@ class StreamConditionerLadderAscend extends StreamConditionerBase {
     }
 
     private boolean canTryToRecover() {
-        long curTime = System.currentTimeMillis();
+        long curTime = now();
         int len = mBitrateHistory.size();
         int numDrops = 0;
         int numIntervals = RECOVERY_ATTEMPT_INTERVALS.length;
         long prevDropTime = 0;
         for (int i = len - 1; i > 0; i--) {
-            BitrateHistory last = mBitrateHistory.get(i);
-            BitrateHistory prev = mBitrateHistory.get(i - 1);
-            long dt = curTime - last.ts;
-            if (last.bitrate < prev.bitrate) {
-                if (prevDropTime != 0 && prevDropTime - last.ts < DROP_MERGE_INTERVAL) {
+            long lastTs = mBitrateHistory.ts(i);
+            long dt = curTime - lastTs;
+            if (mBitrateHistory.bitrate(i) < mBitrateHistory.bitrate(i - 1)) {
+                if (prevDropTime != 0 && prevDropTime - lastTs < DROP_MERGE_INTERVAL) {
                     continue;
                 }
                 if (dt <= RECOVERY_ATTEMPT_INTERVALS[numDrops]) {
                     return false;
                 }
                 numDrops++;
-                prevDropTime = last.ts;
+                prevDropTime = lastTs;
             }
 
-            if (numDrops == numIntervals || curTime - last.ts >= RECOVERY_ATTEMPT_INTERVALS[numIntervals - 1]) {
+            if (numDrops == numIntervals || dt >= RECOVERY_ATTEMPT_INTERVALS[numIntervals - 1]) {
                 break;
             }
         }
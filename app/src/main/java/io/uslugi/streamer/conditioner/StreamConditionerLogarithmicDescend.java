@@ -2,8 +2,6 @@ package io.uslugi.streamer.conditioner;
 
 import android.content.Context;
 
-import com.wmspanel.libstream.Streamer;
-
 class StreamConditionerLogarithmicDescend extends StreamConditionerBase {
 
     private static final long NORMALIZATION_DELAY = 1_500; //Ignore lost frames during this time after bitrate change
@@ -18,10 +16,10 @@ class StreamConditionerLogarithmicDescend extends StreamConditionerBase {
     }
 
     @Override
-    public void start(Streamer streamer, int bitrate) {
+    protected void start(int bitrate) {
         mFullBitrate = bitrate;
         mMinBitRate = bitrate / 4;
-        super.start(streamer, bitrate);
+        super.start(bitrate);
         if (TEST_MODE) {
             mSimulateLoss = true;
         }
@@ -29,30 +27,31 @@ class StreamConditionerLogarithmicDescend extends StreamConditionerBase {
 
     @Override
     protected void check(long audioLost, long videoLost) {
-        long curTime = System.currentTimeMillis();
-        LossHistory prevLost = ListUtils.getLast(mLossHistory);
-        BitrateHistory prevBitrate = ListUtils.getLast(mBitrateHistory);
-        long lastChange = Math.max(prevBitrate.ts, prevLost.ts);
-        if (prevLost.audio != audioLost || prevLost.video != videoLost) {
+        long curTime = now();
+        long prevBitrateTs = mBitrateHistory.lastTs();
+        long prevBitrate = mBitrateHistory.lastBitrate();
+        long lastChange = Math.max(prevBitrateTs, mLossHistory.lastTs());
+        if (mLossHistory.lastAudio() != audioLost || mLossHistory.lastVideo() != videoLost) {
 
             // Log.d(TAG, "Lost frames " + audioLost + "+" + videoLost);
 
-            long dtChange = curTime - prevBitrate.ts;
-            mLossHistory.add(new LossHistory(curTime, audioLost, videoLost));
-            if (prevBitrate.bitrate <= mMinBitRate || dtChange < NORMALIZATION_DELAY) {
+            long dtChange = curTime - prevBitrateTs;
+            mLossHistory.add(curTime, audioLost, videoLost);
+            if (prevBitrate <= mMinBitRate || dtChange < NORMALIZATION_DELAY) {
                 return;
             }
-            long estimatePeriod = Math.max(prevBitrate.ts + NORMALIZATION_DELAY, curTime - LOST_ESTIMATE_INTERVAL);
+            long estimatePeriod = Math.max(prevBitrateTs + NORMALIZATION_DELAY, curTime - LOST_ESTIMATE_INTERVAL);
             if (countLostForInterval(estimatePeriod) >= LOST_TOLERANCE) {
-                long newBitrate = Math.max(mMinBitRate, prevBitrate.bitrate * 1000 / 1414);
+                long newBitrate = Math.max(mMinBitRate, prevBitrate * 1000 / 1414);
                 changeBitrate(newBitrate);
                 if (TEST_MODE && newBitrate == mMinBitRate) {
                     mSimulateLoss = false;
                 }
             }
-        } else if (prevBitrate.bitrate != ListUtils.getFirst(mBitrateHistory).bitrate &&
+        } else if (prevBitrate != mFullBitrate &&
                 curTime - lastChange >= RECOVERY_ATTEMPT_INTERVAL) {
-            long newBitrate = Math.min(mFullBitrate, prevBitrate.bitrate * 1415 / 1000);
+            // History is time-windowed, so compare against the start bitrate rather than the oldest sample
+            long newBitrate = Math.min(mFullBitrate, prevBitrate * 1415 / 1000);
             if (TEST_MODE && newBitrate == mFullBitrate) {
                 mSimulateLoss = true;
             }
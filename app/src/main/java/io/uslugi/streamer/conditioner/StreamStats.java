@@ -1,21 +1,68 @@
 package io.uslugi.streamer.conditioner;
 
-import com.wmspanel.libstream.SrtStats;
-
 final class StreamStats {
+    private static final int DELAY_TREND_WINDOW = 8;
+    private static final int SRT_HEADER_SIZE = 44;
+    private static final double QUEUE_CONGESTED_SEC = 0.5; // Backlog that means the link can't keep up
+    private static final double QUEUE_LIMIT_SEC = 2.0; // libstream drops frames beyond roughly this backlog
+    private static final double LOW_PERCENTILE = 10.0;
+
     private final TrafficHistory avgToSend;
+    private final DelayTrend delayTrend = new DelayTrend(DELAY_TREND_WINDOW);
 
     private double requiredBps;
     private double realBps;
+    private double jitterBps;
+    private double lowBps;
+    private double queuedBytes;
+    private boolean ready;
 
     StreamStats(int capacity) {
         avgToSend = new TrafficHistory(capacity);
     }
 
-    void put(SrtStats stats, long checkInterval) {
-        avgToSend.put(stats.byteSentUnique - stats.pktSentUnique * 44); // Subtract UDT/SRT header size
-        realBps = stats.mbpsBandwidth * 125_000;
-        requiredBps = avgToSend.avg() / (checkInterval / 1000.0);
+    /**
+     * Updates the estimate with a new sample.
+     *
+     * @param sample        Connection counters.
+     * @param checkInterval Time since the previous sample, ms.
+     * @param bitrate       Current encoder bitrate, bps.
+     */
+    void put(ConnectionSample sample, long checkInterval, int bitrate) {
+        final double intervalSec = checkInterval / 1000.0;
+        if (sample.hasSrt) {
+            avgToSend.put(sample.byteSentUnique - sample.pktSentUnique * SRT_HEADER_SIZE);
+            realBps = sample.mbpsBandwidth * 125_000;
+            requiredBps = avgToSend.avg() / intervalSec;
+            delayTrend.put(sample.msRTT, sample.msSndBuf);
+        } else {
+            // RTMP and RIST don't report link bandwidth; compare what the encoder produced
+            // with what was actually sent and track the difference as an estimated backlog
+            avgToSend.put(sample.bytesSent);
+            final double producedBps = bitrate / 8.0;
+            final double sentBps = avgToSend.avg() / intervalSec;
+            queuedBytes += producedBps * intervalSec - avgToSend.last();
+            queuedBytes = Math.max(0.0, Math.min(queuedBytes, producedBps * QUEUE_LIMIT_SEC));
+            requiredBps = producedBps;
+            if (queuedBytes > producedBps * QUEUE_CONGESTED_SEC) {
+                // Link is saturated, so the send rate is its capacity
+                realBps = sentBps;
+            } else {
+                // Link keeps up, its capacity is at least what we need
+                realBps = Math.max(sentBps, producedBps);
+            }
+        }
+        jitterBps = avgToSend.stdDev() / intervalSec;
+        lowBps = avgToSend.percentile(LOW_PERCENTILE) / intervalSec;
+        ready = true;
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    DelayTrend getDelayTrend() {
+        return delayTrend;
     }
 
     double getRequiredBps() {
@@ -25,4 +72,18 @@ final class StreamStats {
     double getRealBps() {
         return realBps;
     }
+
+    /**
+     * @return standard deviation of the per-interval send rate over the stats window.
+     */
+    double getJitterBps() {
+        return jitterBps;
+    }
+
+    /**
+     * @return 10th percentile of the per-interval send rate over the stats window.
+     */
+    double getLowBps() {
+        return lowBps;
+    }
 }
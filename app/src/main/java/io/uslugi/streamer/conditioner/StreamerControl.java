@@ -0,0 +1,61 @@
+package io.uslugi.streamer.conditioner;
+
+import com.wmspanel.libstream.RistStats;
+import com.wmspanel.libstream.SrtStats;
+import com.wmspanel.libstream.Streamer;
+import com.wmspanel.libstream.TcpStats;
+
+/**
+ * Live {@link StatsProvider} and {@link BitrateControl} backed by libstream.
+ */
+final class StreamerControl implements StatsProvider, BitrateControl {
+
+    private final Streamer mStreamer;
+
+    StreamerControl(Streamer streamer) {
+        mStreamer = streamer;
+    }
+
+    @Override
+    public boolean poll(int connectionId, ConnectionSample sample) {
+        sample.reset();
+        sample.bytesSent = mStreamer.getBytesSent(connectionId);
+
+        final TcpStats tcpStats = mStreamer.getTcpStats(connectionId);
+        if (tcpStats != null) {
+            sample.hasTcp = true;
+            sample.audioFramesSkipped = tcpStats.audioFramesSkipped;
+            sample.videoFramesSkipped = tcpStats.videoFramesSkipped;
+        }
+
+        final SrtStats srtStats = mStreamer.getSrtStats(connectionId);
+        if (srtStats != null) {
+            sample.hasSrt = true;
+            sample.byteSentUnique = srtStats.byteSentUnique;
+            sample.pktSentUnique = srtStats.pktSentUnique;
+            sample.pktSndDrop = srtStats.pktSndDrop;
+            sample.mbpsBandwidth = srtStats.mbpsBandwidth;
+            sample.msRTT = srtStats.msRTT;
+            sample.msSndBuf = srtStats.msSndBuf;
+        }
+
+        final RistStats ristStats = mStreamer.getRistStats(connectionId);
+        if (ristStats != null) {
+            sample.hasRist = true;
+            sample.ristSent = ristStats.sent;
+            sample.ristQuality = ristStats.quality;
+        }
+
+        return sample.hasTcp || sample.hasSrt || sample.hasRist;
+    }
+
+    @Override
+    public void changeBitRate(int bitrate) {
+        mStreamer.changeBitRate(bitrate);
+    }
+
+    @Override
+    public void changeFpsRange(Streamer.FpsRange fpsRange) {
+        mStreamer.changeFpsRange(fpsRange);
+    }
+}
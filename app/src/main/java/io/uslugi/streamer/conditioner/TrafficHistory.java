@@ -1,39 +1,108 @@
 package io.uslugi.streamer.conditioner;
 
-import java.util.ArrayList;
-import java.util.List;
-
+/**
+ * Per-interval deltas of a growing counter over a fixed window, with O(1) average and variance
+ * and O(n) percentiles. Doesn't allocate after construction.
+ */
 final class TrafficHistory {
-    List<Long> values;
-    int pos;
-    int capacity;
-    long prev;
+    private final long[] values;
+    private final long[] scratch; // Reordered by percentile()
+    private int pos;
+    private int size;
+    private long prev;
+    private long last;
+    private long sum;
+    private double sumSq;
 
     TrafficHistory(int capacity) {
-        this.capacity = capacity;
-        values = new ArrayList<>(capacity);
-        prev = 0;
+        values = new long[Math.max(1, capacity)];
+        scratch = new long[values.length];
     }
 
     void put(long value) {
         final long delta = value > prev ? value - prev : 0;
-        if (values.size() < capacity) {
-            values.add(delta);
+        if (size < values.length) {
+            size++;
         } else {
-            values.set(pos, delta);
+            final long old = values[pos];
+            sum -= old;
+            sumSq -= (double) old * old;
         }
-        pos = (pos + 1) % capacity;
+        values[pos] = delta;
+        sum += delta;
+        sumSq += (double) delta * delta;
+        pos = (pos + 1) % values.length;
         prev = value;
+        last = delta;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long last() {
+        return last;
     }
 
     double avg() {
-        if (values.isEmpty()) {
+        return size == 0 ? 0.0 : (double) sum / size;
+    }
+
+    double variance() {
+        if (size < 2) {
             return 0.0;
         }
-        Long sum = 0L;
-        for (Long value : values) {
-            sum += value;
+        final double mean = (double) sum / size;
+        // Running sums lose precision over time, don't let it go negative
+        return Math.max(0.0, (sumSq - mean * sum) / (size - 1));
+    }
+
+    double stdDev() {
+        return Math.sqrt(variance());
+    }
+
+    /**
+     * @param p Percentile, 0..100.
+     * @return nearest-rank percentile of the values in the window, 0 if empty.
+     */
+    long percentile(double p) {
+        if (size == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(Math.max(0.0, Math.min(100.0, p)) / 100.0 * size);
+        System.arraycopy(values, 0, scratch, 0, size);
+        return select(scratch, size, Math.max(0, rank - 1));
+    }
+
+    // Hoare's selection: the k-th smallest of a[0..n) without sorting all of it
+    private static long select(long[] a, int n, int k) {
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) {
+            final long pivot = a[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (a[i] < pivot) {
+                    i++;
+                }
+                while (a[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    final long t = a[i];
+                    a[i++] = a[j];
+                    a[j--] = t;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                break;
+            }
         }
-        return sum.doubleValue() / values.size();
+        return a[k];
     }
 }
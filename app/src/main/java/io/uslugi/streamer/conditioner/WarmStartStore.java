@@ -0,0 +1,20 @@
+package io.uslugi.streamer.conditioner;
+
+import androidx.annotation.Nullable;
+
+import io.uslugi.streamer.data.NetworkProfile;
+
+/**
+ * Remembers the last known good bitrate of the current network between sessions.
+ */
+public interface WarmStartStore {
+
+    /**
+     * @param fullBitrate Configured bitrate; profiles measured against another one are ignored.
+     * @return the stored profile or null.
+     */
+    @Nullable
+    NetworkProfile load(int fullBitrate);
+
+    void save(NetworkProfile profile);
+}
@@ -0,0 +1,23 @@
+package io.uslugi.streamer.data;
+
+import io.objectbox.annotation.Entity;
+import io.objectbox.annotation.Id;
+import io.objectbox.annotation.Index;
+
+/**
+ * Last known good adaptive bitrate for a network and ingest host pair.
+ */
+@Entity
+public class NetworkProfile {
+    @Id
+    public long id;
+
+    // SHA-256 of the network identity (Wi-Fi SSID or gateway, cellular operator) and ingest host
+    @Index
+    public String key;
+
+    public int bitrate; // Last bitrate held without losses, bps
+    public int fullBitrate; // Configured bitrate at the time, bps
+    public double lostPerMinute; // Lost frames or packets per minute over the last session
+    public long updated; // System.currentTimeMillis()
+}
@@ -3,5 +3,7 @@ package io.uslugi.streamer.data
 data class RTMPUrlResult (
     val stream_url: String?,
     val election: String?,
-    val keyenc: String?
+    val keyenc: String?,
+    // Lifetime of stream_url in seconds, if the server sends it
+    val expires_in: Long? = null
 )
\ No newline at end of file
@@ -0,0 +1,20 @@
+package io.uslugi.streamer.data;
+
+import io.objectbox.annotation.Entity;
+import io.objectbox.annotation.Id;
+
+/**
+ * Completed recording waiting to reach the home server, see {@link io.uslugi.streamer.upload.SegmentUploader}.
+ */
+@Entity
+public class SegmentUpload {
+    @Id
+    public long id;
+
+    public String uri; // Content or file URI of the recording
+    public String name; // File name on the server
+    public long size; // Bytes, 0 until first opened
+    public long offset; // Bytes the server has confirmed
+    public long created; // System.currentTimeMillis()
+    public int failures; // Consecutive failed chunks
+}
@@ -0,0 +1,17 @@
+package io.uslugi.streamer.data;
+
+import io.objectbox.annotation.Entity;
+import io.objectbox.annotation.Id;
+
+/**
+ * Sealed telemetry batch waiting for upload, see {@link io.uslugi.streamer.metrics.TelemetryUploader}.
+ */
+@Entity
+public class TelemetryBatch {
+    @Id
+    public long id;
+
+    public long created; // System.currentTimeMillis()
+    public int records;
+    public byte[] payload; // Gzipped TelemetryEncoder output
+}
@@ -67,6 +67,14 @@ object Constants {
             const val OPTICAL_IMAGE_STABILIZATION = 1 // ON
             const val NOISE_REDUCTION = 1 // Fast
 
+            /**
+             * Possible values
+             * 0 -> OFF
+             * 1 -> Logarithmic descend
+             * 2 -> Ladder ascend
+             * 3 -> Hybrid
+             * 4 -> Delay gradient (SRT)
+             */
             const val ADAPTIVE_BITRATE_STREAMING_MODE_VALUE = 2 // Ladder ascend
             const val ADAPTIVE_FRAME_RATE = true // Enabled
         }
@@ -83,6 +91,12 @@ object Constants {
             const val SPLIT_VIDEO_DURATION = 1 // Minutes. Depends on `IS_SPLIT_VIDEO_ENABLED
 
             const val LOG_TO_FILE = false
+
+            /**
+             * Send finished recordings to the home server in the background, resuming after outages.
+             * Off until the home server serves segment.php
+             */
+            const val UPLOAD_SEGMENTS = false
         }
 
         object Connection {
@@ -90,6 +104,17 @@ object Constants {
             const val IDLE_TIMEOUT = 10 // Seconds
             const val RECONNECT_TIMEOUT = 3 // Seconds
             const val RECONNECT_TIMEOUT_NO_NETWORK = 10 // Seconds
+            const val RECONNECT_TIMEOUT_MAX = 60 // Seconds, backoff cap for repeated failures
+        }
+
+        object Metrics {
+            // Local HTTP endpoint with stream metrics, for devices nobody can look at
+            const val ENDPOINT_ENABLED = false
+            const val PORT = 9100
+            const val LAN_ACCESS = false // Loopback only when false, use adb forward
+
+            // Stream health batches uploaded to the home server, off until it serves telemetry.php
+            const val TELEMETRY_ENABLED = false
         }
 
         object Display {
@@ -100,6 +125,7 @@ object Constants {
         object Overlays {
             const val SHOW_LAYERS_ON_PREVIEW = true
             const val STANDBY_LAYERS_ENABLED = false
+            const val BITMAP_CACHE_SIZE = 48 // MiB of decoded layer bitmaps kept in memory
         }
 
         object Advanced {
@@ -11,6 +11,7 @@ private const val SIK_SHARED_PREFERENCES = "SIK_SHARED_PREFERENCES"
 private const val UDI_SHARED_PREFERENCES = "UDI_SHARED_PREFERENCES"
 private const val RTMP_URL_SHARED_PREFERENCES = "RTMP_URL_SHARED_PREFERENCES"
 private const val ELECTION_SHARED_PREFERENCES = "ELECTION_SHARED_PREFERENCES"
+private const val RTMP_URL_EXPIRY_SHARED_PREFERENCES = "RTMP_URL_EXPIRY_SHARED_PREFERENCES"
 private const val ANDROID_KEY_STORE = "AndroidKeyStore"
 private const val MASTER_KEY_SIZE = 256
 private const val KEYENC = "app_keyenc"
@@ -96,6 +97,30 @@ object SharedPreferencesHelper {
             ?: Constants.StringPlaceholders.EMPTY
     }
 
+    /**
+     * Save when the stored RTMP URL stops being valid
+     * @param [expiry] wall clock time, ms; 0 if unknown
+     * @param [context] the context
+     */
+    fun storeRtmpUrlExpiry(expiry: Long, context: Context) {
+        val preferences = getSharedPreferences(context)
+        val preferencesEditor = preferences?.edit()
+
+        preferencesEditor?.putLong(RTMP_URL_EXPIRY_SHARED_PREFERENCES, expiry)
+        preferencesEditor?.apply()
+    }
+
+    /**
+     * Get when the stored RTMP URL stops being valid
+     * @param [context] the context
+     *
+     * @return[Long] - wall clock time, ms; 0 if unknown
+     */
+    fun getRtmpUrlExpiry(context: Context): Long {
+        val preferences = getSharedPreferences(context)
+        return preferences?.getLong(RTMP_URL_EXPIRY_SHARED_PREFERENCES, 0L) ?: 0L
+    }
+
     /**
      * Get the election name
      */
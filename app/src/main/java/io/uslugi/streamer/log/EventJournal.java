@@ -0,0 +1,170 @@
+package io.uslugi.streamer.log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Event log on disk as a series of binary chunk files, see {@link JournalDecoder} for reading.
+ * <p>
+ * A chunk starts with {@link #MAGIC} and {@link #VERSION}, then records: body length (int), body
+ * (time ms, severity byte, tag as UTF, message as UTF-8 to the end), CRC32 of the body (int).
+ * The writer flushes after every batch, so a killed process leaves a readable chunk whose last
+ * record at most is torn. Chunks rotate at {@link #MAX_CHUNK_BYTES} or {@link #MAX_CHUNK_AGE} and
+ * are handed to the {@link ChunkListener} for export. Writer thread only.
+ */
+final class EventJournal {
+
+    static final byte[] MAGIC = {'U', 'L', 'O', 'G'};
+    static final int VERSION = 1;
+    static final String SUFFIX = ".ulog";
+
+    private static final long MAX_CHUNK_BYTES = 256 * 1024;
+    private static final long MAX_CHUNK_AGE = 10 * 60_000;
+    private static final int MAX_CHUNKS = 32; // Kept while export fails, oldest dropped
+
+    interface ChunkListener {
+        void onChunkClosed(File chunk);
+    }
+
+    private final File mDir;
+    private final ChunkListener mListener;
+    private final ByteArrayOutputStream mBody = new ByteArrayOutputStream(256);
+    private final DataOutputStream mBodyOut = new DataOutputStream(mBody);
+    private final CRC32 mCrc = new CRC32();
+
+    private File mChunk;
+    private DataOutputStream mOut;
+    private long mChunkStart;
+    private long mChunkBytes;
+
+    EventJournal(File dir, ChunkListener listener) {
+        mDir = dir;
+        mListener = listener;
+    }
+
+    /**
+     * @return chunks left by an earlier session, a killed process included, oldest first.
+     */
+    List<File> leftovers() {
+        final List<File> chunks = chunks();
+        chunks.remove(mChunk);
+        return chunks;
+    }
+
+    void append(long time, int severity, String tag, String message) throws IOException {
+        if (mOut == null) {
+            open(time);
+        }
+        mBody.reset();
+        mBodyOut.writeLong(time);
+        mBodyOut.writeByte(severity);
+        mBodyOut.writeUTF(tag != null ? tag : "");
+        mBodyOut.write((message != null ? message : "").getBytes(StandardCharsets.UTF_8));
+        final byte[] body = mBody.toByteArray();
+        mCrc.reset();
+        mCrc.update(body, 0, body.length);
+        mOut.writeInt(body.length);
+        mOut.write(body);
+        mOut.writeInt((int) mCrc.getValue());
+        mChunkBytes += body.length + 8;
+        if (mChunkBytes >= MAX_CHUNK_BYTES) {
+            rotate();
+        }
+    }
+
+    /**
+     * End of a writer batch: push it to the file, rotate if the chunk is old enough.
+     */
+    void flush(long now) throws IOException {
+        if (mOut == null) {
+            return;
+        }
+        mOut.flush();
+        if (now - mChunkStart >= MAX_CHUNK_AGE) {
+            rotate();
+        }
+    }
+
+    /**
+     * @return time the open chunk is due for rotation by {@link #flush}, 0 if none is open.
+     */
+    long rotateAt() {
+        return mOut != null ? mChunkStart + MAX_CHUNK_AGE : 0;
+    }
+
+    void close() throws IOException {
+        rotate();
+    }
+
+    private void open(long time) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Can't create " + mDir);
+        }
+        trim();
+        // Zero-padded start time, names sort in time order
+        long start = time;
+        File chunk;
+        do {
+            chunk = new File(mDir, String.format(Locale.US, "%013d%s", start++, SUFFIX));
+        } while (chunk.exists());
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(chunk), 16 * 1024));
+        mChunk = chunk;
+        mChunkStart = time;
+        mChunkBytes = MAGIC.length + 1;
+        mOut.write(MAGIC);
+        mOut.writeByte(VERSION);
+    }
+
+    private void rotate() throws IOException {
+        if (mOut == null) {
+            return;
+        }
+        final File chunk = mChunk;
+        try {
+            mOut.close();
+        } finally {
+            mOut = null;
+            mChunk = null;
+            mListener.onChunkClosed(chunk);
+        }
+    }
+
+    private void trim() {
+        final List<File> chunks = chunks();
+        for (int i = 0; i <= chunks.size() - MAX_CHUNKS; i++) {
+            //noinspection ResultOfMethodCallIgnored
+            chunks.get(i).delete();
+        }
+    }
+
+    private List<File> chunks() {
+        final File[] files = mDir.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    /**
+     * @return chunk start time from its name, 0 if not a chunk name.
+     */
+    static long startTime(File chunk) {
+        final String name = chunk.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+}
@@ -6,48 +6,73 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.net.Uri;
-import android.os.ParcelFileDescriptor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.provider.DocumentsContract;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import io.uslugi.streamer.R;
 import com.wmspanel.libstream.Streamer;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Application event log.
+ * <p>
+ * {@link #put} only queues the event on a lock-free queue and returns, a single writer thread
+ * keeps it in the {@link EventRing}, appends it to the {@link EventJournal} and logcat in batches and
+ * tells the listener. Lines are formatted only when read, {@link #read} returns just the new ones. Closed journal chunks are exported to the SAF tree as text in the background.
+ * When the writer falls behind INFO events are dropped, warnings and errors only at a hard limit;
+ * the writer logs how many were lost. {@link #init} and {@link #close} are queued too, in order
+ * with the events.
+ */
 public class EventLog {
     private final String TAG = "EventLog";
 
-    private final Object lock = new Object();
+    private final Object lock = new Object(); // Guards mLog and the formatting fields
+
+    private static final int QUEUE_CAPACITY = 1_024; // INFO dropped above
+    private static final int QUEUE_HARD_CAPACITY = 4_096; // Everything dropped above
 
     public interface EventLogListener {
         void onEvent(String text);
+
+        /**
+         * Same event with its parts, for listeners that filter. Called on the log writer thread.
+         */
+        default void onEvent(Streamer.LoggerListener.Severity severity, String tag, String message, String text) {
+            onEvent(text);
+        }
     }
 
     private class Element {
-        Date date = new Date();
+        final long time = System.currentTimeMillis();
         Streamer.LoggerListener.Severity severity;
         String tag;
         String message;
-
-        @NonNull
-        @Override
-        public String toString() {
-            return String.format(mLocale, mFmtLog, mDateFormat.format(date), message);
-        }
+        Runnable command; // init/close, run in order on the writer thread
 
         Element(Streamer.LoggerListener.Severity severity, String tag, String message) {
             this.severity = severity;
@@ -55,6 +80,10 @@ public class EventLog {
             this.message = message;
         }
 
+        Element(Runnable command) {
+            this.command = command;
+        }
+
         void toLogcat() {
             switch (severity) {
                 case ERROR:
@@ -72,9 +101,8 @@ public class EventLog {
 
     }
 
-    private final List<Element> mLog = new ArrayList<>();
     public static final int MAX_COUNT = 500;
-    private final int MAX_COUNT_DECREMENT = 250;
+    private final EventRing mLog = new EventRing(MAX_COUNT);
 
     private Locale mLocale = new Locale("en", "US");
     private String mFmtLog = "%1$s %2$s";
@@ -84,10 +112,17 @@ public class EventLog {
     private ContentResolver mResolver;
     private boolean mWriteLogcat;
 
-    private File mTempFile;
-    private PrintWriter mTempWriter;
+    private EventJournal mJournal; // Writer thread
+    private Handler mExportHandler;
+    // Queued or running exports; a chunk closed by close() is a leftover again at the next init()
+    private final Set<File> mExporting = ConcurrentHashMap.newKeySet();
+
+    private volatile EventLogListener mListener;
 
-    private EventLogListener mListener;
+    private final ConcurrentLinkedQueue<Element> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final Thread mWriter;
 
     private static final EventLog instance = new EventLog();
 
@@ -95,80 +130,137 @@ public class EventLog {
         return instance;
     }
 
+    private EventLog() {
+        mWriter = new Thread(this::writerLoop, TAG);
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
     public void init(Context context,
                      String safUri,
                      boolean writeLogcat) {
+        final Context appContext = context.getApplicationContext();
         final Configuration configuration = context.getResources().getConfiguration();
-        mLocale = configuration.getLocales().get(0);
-        mFmtLog = context.getString(R.string.fmt_log);
-        mDateFormat = DateFormat.getTimeInstance(DateFormat.MEDIUM, mLocale);
-        mSafUri = safUri;
-        mResolver = context.getContentResolver();
-        mWriteLogcat = writeLogcat;
-        mLog.clear();
-        synchronized (lock) {
-            openTempFile(context);
-        }
+        final Locale locale = configuration.getLocales().get(0);
+        final String fmtLog = context.getString(R.string.fmt_log);
+        enqueue(new Element(() -> {
+            synchronized (lock) {
+                mLocale = locale;
+                mFmtLog = fmtLog;
+                mDateFormat = DateFormat.getTimeInstance(DateFormat.MEDIUM, mLocale);
+                mLog.clear();
+            }
+            mSafUri = safUri;
+            mResolver = appContext.getContentResolver();
+            mWriteLogcat = writeLogcat;
+            openJournal(appContext);
+        }));
     }
 
+    /**
+     * Events put before this call still reach the file, the last chunk is exported.
+     */
     public void close() {
-        synchronized (lock) {
-            if (mTempWriter != null) {
-                mTempWriter.close();
-                mTempWriter = null;
-                copyToSAF();
-            }
-            if (mTempFile != null) {
-                mTempFile.delete();
+        enqueue(new Element(() -> {
+            if (mJournal != null) {
+                try {
+                    mJournal.close();
+                } catch (IOException e) {
+                    Log.e(TAG, Log.getStackTraceString(e));
+                }
+                mJournal = null;
             }
-        }
+        }));
     }
 
-    private void openTempFile(Context context) {
-        try {
-            mTempFile = new File(context.getCacheDir(), "log.tmp");
-            if (mTempFile.exists()) {
-                copyToSAF();
-                mTempFile.delete();
-            }
-            if (mSafUri != null && mTempFile.createNewFile()) {
-                mTempWriter = new PrintWriter(new FileOutputStream(mTempFile));
-            }
-        } catch (IOException ignore) {
+    // Writer thread
+    private void openJournal(Context context) {
+        if (mJournal != null || mSafUri == null) {
+            return;
+        }
+        if (mExportHandler == null) {
+            final HandlerThread thread = new HandlerThread("EventLogExport", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mExportHandler = new Handler(thread.getLooper());
+        }
+        mJournal = new EventJournal(new File(context.getCacheDir(), "journal"), this::export);
+        // Left by a killed process or a failed export
+        for (File chunk : mJournal.leftovers()) {
+            export(chunk);
         }
     }
 
-    private void copyToSAF() {
-        if (mSafUri == null || mResolver == null || mTempFile == null) {
+    // Writer thread, the copy runs on the export thread
+    private void export(File chunk) {
+        final String safUri = mSafUri;
+        final ContentResolver resolver = mResolver;
+        final Locale locale = mLocale;
+        final String fmtLog = mFmtLog;
+        if (safUri == null || resolver == null || mExportHandler == null || !mExporting.add(chunk)) {
             return;
         }
+        mExportHandler.post(() -> {
+            if (chunk.isFile() && exportToSAF(chunk, safUri, resolver, locale, fmtLog)) {
+                //noinspection ResultOfMethodCallIgnored
+                chunk.delete();
+            }
+            mExporting.remove(chunk);
+        });
+    }
 
-        String date = new SimpleDateFormat("yyyyMMdd_HHmmss_SS", Locale.US).format(new Date());
+    /**
+     * Decodes the chunk as text into a new document in the SAF tree. A document the copy failed
+     * for is deleted again, the retry creates a fresh one.
+     *
+     * @return false if the chunk should be kept for another try.
+     */
+    private boolean exportToSAF(File chunk, String safUri, ContentResolver resolver, Locale locale, String fmtLog) {
+        final long start = EventJournal.startTime(chunk);
+        String date = new SimpleDateFormat("yyyyMMdd_HHmmss_SS", Locale.US).format(new Date(start > 0 ? start : chunk.lastModified()));
         String filename = APP_NAME + "-" + date;
 
+        Uri recordUri = null;
+        boolean copied = false;
         try {
-            final Uri treeUri = Uri.parse(mSafUri);
+            final Uri treeUri = Uri.parse(safUri);
             final String documentId = DocumentsContract.getTreeDocumentId(treeUri);
             final Uri docUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId);
-            if (docUri != null) {
-                final Uri recordUri = DocumentsContract.createDocument(mResolver, docUri, "text/plain", filename);
-                if (recordUri != null) {
-                    final ParcelFileDescriptor parcel = mResolver.openFileDescriptor(recordUri, "rw");
-                    if (parcel != null) {
-                        final FileDescriptor fd = parcel.getFileDescriptor();
-                        if (fd != null) {
-                            try (FileInputStream is = new FileInputStream(mTempFile);
-                                 FileOutputStream os = new FileOutputStream(fd)) {
-                                byte[] buf = new byte[512 * 1024];
-                                for (int len; (len = is.read(buf)) > 0; ) {
-                                    os.write(buf, 0, len);
-                                }
-                            } catch (IOException ignored) {
-                            }
-                        }
+            if (docUri == null) {
+                return false;
+            }
+            recordUri = DocumentsContract.createDocument(resolver, docUri, "text/plain", filename);
+            if (recordUri == null) {
+                return false;
+            }
+            final DateFormat dateFormat = DateFormat.getTimeInstance(DateFormat.MEDIUM, locale);
+            try (OutputStream os = resolver.openOutputStream(recordUri)) {
+                if (os == null) {
+                    return false;
+                }
+                try (JournalDecoder decoder = new JournalDecoder(new FileInputStream(chunk));
+                     Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+                    for (JournalDecoder.Record record; (record = decoder.next()) != null; ) {
+                        writer.write(String.format(locale, fmtLog, dateFormat.format(new Date(record.time)), record.message));
+                        writer.write('\n');
                     }
                 }
             }
+            copied = true;
+            return true;
+        } catch (IOException | IllegalArgumentException | IllegalStateException | SecurityException
+                | UnsupportedOperationException e) {
+            Log.e(TAG, Log.getStackTraceString(e));
+            return false;
+        } finally {
+            if (recordUri != null && !copied) {
+                deleteDocument(resolver, recordUri);
+            }
+        }
+    }
+
+    private void deleteDocument(ContentResolver resolver, Uri uri) {
+        try {
+            DocumentsContract.deleteDocument(resolver, uri);
         } catch (IOException | IllegalArgumentException | IllegalStateException | SecurityException
                 | UnsupportedOperationException e) {
             Log.e(TAG, Log.getStackTraceString(e));
@@ -179,39 +271,166 @@ public class EventLog {
         put(severity, "EventLog", message);
     }
 
+    /**
+     * Never blocks, safe from libstream callbacks and any thread.
+     */
     public void put(Streamer.LoggerListener.Severity severity, String tag, String message) {
-        synchronized (lock) {
-            final Element item = new Element(severity, tag, message);
-            if (mLog.size() >= MAX_COUNT) {
-                mLog.subList(0, MAX_COUNT_DECREMENT).clear();
+        final int queued = mQueued.getAndIncrement();
+        final boolean minor = severity != Streamer.LoggerListener.Severity.WARN
+                && severity != Streamer.LoggerListener.Severity.ERROR;
+        if (queued >= QUEUE_HARD_CAPACITY || (minor && queued >= QUEUE_CAPACITY)) {
+            mQueued.decrementAndGet();
+            mDropped.incrementAndGet();
+            return;
+        }
+        mQueue.offer(new Element(severity, tag, message));
+        // A busy writer checks the count again before it parks
+        if (queued == 0) {
+            LockSupport.unpark(mWriter);
+        }
+    }
+
+    private void enqueue(Element command) {
+        mQueue.offer(command);
+        LockSupport.unpark(mWriter);
+    }
+
+    private void writerLoop() {
+        while (true) {
+            boolean wrote = false;
+            Element item;
+            while ((item = mQueue.poll()) != null) {
+                try {
+                    if (item.command != null) {
+                        item.command.run();
+                        continue;
+                    }
+                    mQueued.decrementAndGet();
+                    wrote = true;
+                    write(item);
+                } catch (RuntimeException e) {
+                    // Keep the writer alive, a bad listener or format must not stop logging
+                    Log.e(TAG, Log.getStackTraceString(e));
+                }
             }
-            mLog.add(item);
-            if (mTempWriter != null) {
-                mTempWriter.println(item);
-                mTempWriter.checkError();
+            final long dropped = mDropped.getAndSet(0);
+            if (dropped > 0) {
+                wrote = true;
+                write(new Element(Streamer.LoggerListener.Severity.WARN, TAG,
+                        dropped + " events dropped, log writer behind"));
             }
-            if (mWriteLogcat) {
-                item.toLogcat();
+            // One flush per batch, which also rotates an old chunk
+            final long now = System.currentTimeMillis();
+            if (mJournal != null && (wrote || now >= mJournal.rotateAt())) {
+                try {
+                    mJournal.flush(now);
+                } catch (IOException e) {
+                    closeJournal(e);
+                }
             }
-            if (mListener != null) {
-                mListener.onEvent(item.toString());
+            // put() only wakes an idle writer, an event counted while this batch ran is still to come
+            if (mQueued.get() > 0 || !mQueue.isEmpty()) {
+                continue;
+            }
+            // Sleep until woken, or until the open chunk is due for rotation
+            final long rotateAt = mJournal != null ? mJournal.rotateAt() : 0;
+            if (rotateAt > 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, rotateAt - now)));
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    // Writer thread
+    private void write(Element item) {
+        synchronized (lock) {
+            mLog.add(item.time, severity(item.severity), item.tag, item.message);
+        }
+        if (mJournal != null) {
+            try {
+                mJournal.append(item.time, severity(item.severity), item.tag, item.message);
+            } catch (IOException e) {
+                closeJournal(e);
+            }
+        }
+        if (mWriteLogcat) {
+            item.toLogcat();
+        }
+        final EventLogListener listener = mListener;
+        if (listener != null) {
+            final String text;
+            synchronized (lock) {
+                text = format(item.time, item.message);
             }
+            listener.onEvent(item.severity, item.tag, item.message, text);
+        }
+    }
+
+    private void closeJournal(IOException cause) {
+        Log.e(TAG, Log.getStackTraceString(cause));
+        try {
+            mJournal.close();
+        } catch (IOException ignore) {
+        }
+        mJournal = null;
+    }
+
+    private static int severity(Streamer.LoggerListener.Severity severity) {
+        if (severity == Streamer.LoggerListener.Severity.ERROR) {
+            return JournalDecoder.ERROR;
+        }
+        if (severity == Streamer.LoggerListener.Severity.WARN) {
+            return JournalDecoder.WARN;
         }
+        return JournalDecoder.INFO;
     }
 
     public void setListener(EventLogListener listener) {
         mListener = listener;
     }
 
+    // With lock held, DateFormat is not thread-safe
+    private String format(long time, String message) {
+        return String.format(mLocale, mFmtLog, mDateFormat.format(new Date(time)), message);
+    }
+
     @NonNull
     @Override
     public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        read(0, null, null, sb);
+        return sb.toString();
+    }
+
+    /**
+     * @return the last {@code count} events, one per line.
+     */
+    public String tail(int count) {
+        final StringBuilder sb = new StringBuilder();
         synchronized (lock) {
-            final StringBuilder sb = new StringBuilder();
-            for (Element element : mLog) {
-                sb.append(element).append("\n");
-            }
-            return sb.toString();
+            mLog.forEach(mLog.last() - count, JournalDecoder.INFO, null,
+                    (sequence, time, severity, tag, message) -> sb.append(format(time, message)).append("\n"));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends the events after {@code since} to {@code out}, one per line, so a log view can poll
+     * for new lines only.
+     *
+     * @param minSeverity Skip less severe events, null for all.
+     * @param tag         Only events with this tag, null for all.
+     * @return sequence of the newest event, pass it as {@code since} next time.
+     */
+    public long read(long since,
+                     @Nullable Streamer.LoggerListener.Severity minSeverity,
+                     @Nullable String tag,
+                     @NonNull StringBuilder out) {
+        synchronized (lock) {
+            mLog.forEach(since, minSeverity != null ? severity(minSeverity) : JournalDecoder.INFO, tag,
+                    (sequence, time, severity, eventTag, message) -> out.append(format(time, message)).append("\n"));
+            return mLog.last();
         }
     }
 
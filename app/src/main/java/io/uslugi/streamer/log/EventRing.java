@@ -0,0 +1,89 @@
+package io.uslugi.streamer.log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The last events in fixed parallel arrays: time, severity, tag and message, no object per event.
+ * Every event gets a sequence number, readers ask for what came after the last one they saw.
+ * Formatting is left to the reader. Not thread-safe, {@link EventLog} guards it.
+ */
+final class EventRing {
+
+    private static final int MAX_TAGS = 256;
+
+    interface Visitor {
+        void visit(long sequence, long time, int severity, String tag, String message);
+    }
+
+    private final int mCapacity;
+    private final long[] mTime;
+    private final byte[] mSeverity;
+    private final String[] mTag;
+    private final String[] mMessage;
+    private final Map<String, String> mTags = new HashMap<>(); // One instance per tag
+    private long mNext = 1; // Sequence of the next event
+    private long mFirst = 1; // Oldest sequence since the last clear
+
+    EventRing(int capacity) {
+        mCapacity = capacity;
+        mTime = new long[capacity];
+        mSeverity = new byte[capacity];
+        mTag = new String[capacity];
+        mMessage = new String[capacity];
+    }
+
+    long add(long time, int severity, String tag, String message) {
+        final int slot = (int) (mNext % mCapacity);
+        mTime[slot] = time;
+        mSeverity[slot] = (byte) severity;
+        mTag[slot] = intern(tag);
+        mMessage[slot] = message;
+        return mNext++;
+    }
+
+    void clear() {
+        Arrays.fill(mTag, null);
+        Arrays.fill(mMessage, null);
+        mFirst = mNext;
+    }
+
+    /**
+     * @return sequence of the newest event, 0 if there was none yet.
+     */
+    long last() {
+        return mNext - 1;
+    }
+
+    /**
+     * Visits events newer than {@code since}, oldest first.
+     *
+     * @param minSeverity Skip events below this severity.
+     * @param tag         Only events with this tag, null for all.
+     */
+    void forEach(long since, int minSeverity, String tag, Visitor visitor) {
+        final long first = Math.max(Math.max(mFirst, mNext - mCapacity), since + 1);
+        for (long sequence = first; sequence < mNext; sequence++) {
+            final int slot = (int) (sequence % mCapacity);
+            if (mSeverity[slot] < minSeverity || (tag != null && !tag.equals(mTag[slot]))) {
+                continue;
+            }
+            visitor.visit(sequence, mTime[slot], mSeverity[slot], mTag[slot], mMessage[slot]);
+        }
+    }
+
+    private String intern(String tag) {
+        if (tag == null) {
+            return "";
+        }
+        final String known = mTags.get(tag);
+        if (known != null) {
+            return known;
+        }
+        if (mTags.size() < MAX_TAGS) {
+            mTags.put(tag, tag);
+        }
+        return tag;
+    }
+}
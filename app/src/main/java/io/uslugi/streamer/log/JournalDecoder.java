@@ -0,0 +1,117 @@
+package io.uslugi.streamer.log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Reads an {@link EventJournal} chunk back into records.
+ * <p>
+ * Stops at the end of the chunk or at the first torn record, which is what a process killed
+ * mid-write leaves behind. Plain Java; JournalDecoderTest prints pulled chunks as text.
+ */
+public final class JournalDecoder implements Closeable {
+
+    public static final int INFO = 0;
+    public static final int WARN = 1;
+    public static final int ERROR = 2;
+
+    private static final int MAX_RECORD = 1024 * 1024;
+
+    public static final class Record {
+        public long time; // ms since epoch
+        public int severity; // INFO, WARN, ERROR
+        public String tag;
+        public String message;
+    }
+
+    private final DataInputStream mIn;
+    private final CRC32 mCrc = new CRC32();
+    private boolean mTorn;
+
+    public JournalDecoder(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in, 16 * 1024));
+        final byte[] magic = new byte[EventJournal.MAGIC.length];
+        try {
+            mIn.readFully(magic);
+            if (!Arrays.equals(magic, EventJournal.MAGIC) || mIn.readUnsignedByte() != EventJournal.VERSION) {
+                throw new IOException("Not an event journal chunk");
+            }
+        } catch (EOFException e) {
+            throw new IOException("Empty event journal chunk", e);
+        }
+    }
+
+    /**
+     * @return the next record, null at the end of the chunk or at a torn record.
+     */
+    public Record next() throws IOException {
+        if (mTorn) {
+            return null;
+        }
+        final int length;
+        try {
+            length = mIn.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 11 || length > MAX_RECORD) {
+            mTorn = true;
+            return null;
+        }
+        final byte[] body = new byte[length];
+        final int crc;
+        try {
+            mIn.readFully(body);
+            crc = mIn.readInt();
+        } catch (EOFException e) {
+            mTorn = true;
+            return null;
+        }
+        mCrc.reset();
+        mCrc.update(body, 0, body.length);
+        if ((int) mCrc.getValue() != crc) {
+            mTorn = true;
+            return null;
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        final Record record = new Record();
+        record.time = in.readLong();
+        record.severity = in.readUnsignedByte();
+        record.tag = in.readUTF();
+        final int consumed = length - in.available();
+        record.message = new String(body, consumed, length - consumed, StandardCharsets.UTF_8);
+        return record;
+    }
+
+    /**
+     * @return true if reading stopped at a damaged record rather than the end of the chunk.
+     */
+    public boolean torn() {
+        return mTorn;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    public static String severity(int severity) {
+        switch (severity) {
+            case ERROR:
+                return "E";
+            case WARN:
+                return "W";
+            case INFO:
+            default:
+                return "I";
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package io.uslugi.streamer.metrics;
+
+import com.wmspanel.libstream.Streamer;
+
+import io.uslugi.streamer.api.HttpMetrics;
+import io.uslugi.streamer.conditioner.StatsSampler;
+import io.uslugi.streamer.data.Connection;
+import io.uslugi.streamer.log.EventLog;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Copies the streamer's state into a {@link MetricsSnapshot} on a statistics tick. Device state
+ * (power, overlay cache) is left to the activity, everything here is plain Java.
+ */
+public final class MetricsCollector {
+
+    static final int LOG_LINES = 20;
+
+    private MetricsCollector() {
+    }
+
+    /**
+     * Fills the connection, HTTP and log parts of the snapshot. Connections past
+     * {@link MetricsSnapshot#MAX_CONNECTIONS} and endpoints past
+     * {@link MetricsSnapshot#MAX_HTTP_ENDPOINTS} are left out. Values the sampler doesn't have yet
+     * stay NaN, the snapshot renders them as 0.
+     *
+     * @param connections Active connections by streamer connection id.
+     * @param states      Last reported state by streamer connection id.
+     * @param http        {@link HttpMetrics#snapshot()}.
+     */
+    public static void collect(MetricsSnapshot snapshot,
+                               StatsSampler sampler,
+                               Map<Integer, Connection> connections,
+                               Map<Integer, Streamer.ConnectionState> states,
+                               Map<String, HttpMetrics.Endpoint> http,
+                               EventLog log) {
+        snapshot.historyInterval = StatsSampler.INTERVAL;
+        snapshot.fps = sampler.fps();
+
+        snapshot.clearConnections();
+        for (Map.Entry<Integer, Connection> entry : connections.entrySet()) {
+            final int id = entry.getKey();
+            final MetricsSnapshot.ConnectionMetrics metrics = snapshot.addConnection(id);
+            if (metrics == null) {
+                break;
+            }
+            final Streamer.ConnectionState state = states.get(id);
+            metrics.name = entry.getValue().name != null ? entry.getValue().name : "";
+            metrics.state = state != null ? state.name() : "";
+            metrics.bytesSent = sampler.latest(id, StatsSampler.Field.BYTES_SENT);
+            metrics.sendRate = sampler.latest(id, StatsSampler.Field.SEND_RATE);
+            metrics.bandwidth = sampler.latest(id, StatsSampler.Field.BANDWIDTH);
+            metrics.rtt = sampler.latest(id, StatsSampler.Field.RTT);
+            metrics.drops = sampler.latest(id, StatsSampler.Field.DROPS);
+            metrics.skipped = sampler.latest(id, StatsSampler.Field.SKIPPED);
+            metrics.bitrate = sampler.latest(id, StatsSampler.Field.BITRATE);
+            metrics.historySize = sampler.history(id, StatsSampler.Field.BITRATE,
+                    null, metrics.bitrateHistory);
+        }
+
+        snapshot.clearEndpoints();
+        for (Map.Entry<String, HttpMetrics.Endpoint> entry : new TreeMap<>(http).entrySet()) {
+            final MetricsSnapshot.EndpointMetrics metrics = snapshot.addEndpoint(entry.getKey());
+            if (metrics == null) {
+                break;
+            }
+            final HttpMetrics.Endpoint endpoint = entry.getValue();
+            metrics.calls = endpoint.getCalls();
+            metrics.failures = endpoint.getFailures();
+            metrics.newConnections = endpoint.getNewConnections();
+            metrics.dnsMs = endpoint.avgDnsMs();
+            metrics.connectMs = endpoint.avgConnectMs();
+            metrics.tlsMs = endpoint.avgTlsMs();
+            metrics.ttfbMs = endpoint.avgTtfbMs();
+        }
+        snapshot.logTail = log.tail(LOG_LINES);
+    }
+}
@@ -0,0 +1,125 @@
+package io.uslugi.streamer.metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP/1.0 endpoint serving the last published {@link MetricsSnapshot}.
+ * <p>
+ * {@code GET /metrics} returns Prometheus text, {@code GET /metrics.json} the JSON document.
+ * One thread handles one request at a time and closes the connection after each response;
+ * a scraper every few seconds needs nothing more. Bound to loopback unless LAN access is asked for.
+ */
+public final class MetricsServer {
+    private static final String TAG = "MetricsServer";
+
+    private static final int SO_TIMEOUT = 2_000;
+    private static final int MAX_REQUEST_LINE = 1024;
+    private static final String PROMETHEUS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String JSON_TYPE = "application/json; charset=utf-8";
+
+    private final MetricsSnapshot mSnapshot;
+    private final int mPort;
+    private final boolean mLan;
+    private ServerSocket mServerSocket;
+    private Thread mThread;
+
+    public MetricsServer(MetricsSnapshot snapshot, int port, boolean lan) {
+        mSnapshot = snapshot;
+        mPort = port;
+        mLan = lan;
+    }
+
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) {
+            return;
+        }
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        final InetAddress address = mLan ? null : InetAddress.getLoopbackAddress();
+        serverSocket.bind(new InetSocketAddress(address, mPort));
+        mServerSocket = serverSocket;
+        mThread = new Thread(() -> serve(serverSocket), TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mServerSocket == null) {
+            return;
+        }
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+        mServerSocket = null;
+        mThread = null;
+    }
+
+    /**
+     * @return the bound port, useful when started with port 0.
+     */
+    public synchronized int port() {
+        return mServerSocket != null ? mServerSocket.getLocalPort() : -1;
+    }
+
+    private void serve(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(SO_TIMEOUT);
+                handle(socket);
+            } catch (SocketException e) {
+                // Closed by stop()
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII), MAX_REQUEST_LINE);
+        final String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        final String[] parts = requestLine.split(" ");
+        final OutputStream out = socket.getOutputStream();
+        if (parts.length < 2 || !"GET".equals(parts[0])) {
+            respond(out, "405 Method Not Allowed", PROMETHEUS_TYPE, new byte[0]);
+            return;
+        }
+        final String path = parts[1];
+        final int query = path.indexOf('?');
+        switch (query >= 0 ? path.substring(0, query) : path) {
+            case "/":
+            case "/metrics":
+                respond(out, "200 OK", PROMETHEUS_TYPE, mSnapshot.prometheus());
+                break;
+            case "/metrics.json":
+                respond(out, "200 OK", JSON_TYPE, mSnapshot.json());
+                break;
+            default:
+                respond(out, "404 Not Found", PROMETHEUS_TYPE, new byte[0]);
+                break;
+        }
+    }
+
+    private static void respond(OutputStream out, String status, String type, byte[] body) throws IOException {
+        final String header = "HTTP/1.0 " + status + "\r\n"
+                + "Content-Type: " + type + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Cache-Control: no-store\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+}
@@ -0,0 +1,386 @@
+package io.uslugi.streamer.metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Stream state rendered ahead of time for {@link MetricsServer}.
+ * <p>
+ * The owner fills the preallocated fields on its own thread and calls {@link #publish()}, which
+ * renders the Prometheus text and JSON bodies once. Scrapes only pick up the last published bodies,
+ * so a scraper polling fast costs the streaming side nothing. Plain Java, no Android dependencies.
+ */
+public final class MetricsSnapshot {
+
+    public static final int MAX_CONNECTIONS = 3;
+    public static final int HISTORY = 120; // Bitrate history points per connection
+    public static final int MAX_HTTP_ENDPOINTS = 8;
+
+    public static final class ConnectionMetrics {
+        public int id;
+        public String name = "";
+        public String state = "";
+        public double bytesSent;
+        public double sendRate;
+        public double bandwidth;
+        public double rtt;
+        public double drops;
+        public double skipped;
+        public double bitrate;
+        public final double[] bitrateHistory = new double[HISTORY];
+        public int historySize;
+    }
+
+    /**
+     * Timing of the app's own HTTP calls to one endpoint. DNS, connect and TLS are averages over
+     * the calls that opened a new connection.
+     */
+    public static final class EndpointMetrics {
+        public String endpoint = ""; // host/path
+        public long calls;
+        public long failures;
+        public long newConnections;
+        public long dnsMs;
+        public long connectMs;
+        public long tlsMs;
+        public long ttfbMs;
+    }
+
+    private final ConnectionMetrics[] mConnections = new ConnectionMetrics[MAX_CONNECTIONS];
+    private int mConnectionCount;
+    private final EndpointMetrics[] mEndpoints = new EndpointMetrics[MAX_HTTP_ENDPOINTS];
+    private int mEndpointCount;
+
+    public long timestamp; // Wall clock, ms
+    public long historyInterval; // Between bitrate history points, ms
+    public boolean broadcasting;
+    public boolean recording;
+    public double fps;
+    public int thermalStatus = -1; // PowerManager.THERMAL_STATUS_*, -1 if unknown
+    public int batteryPercent = -1;
+    public boolean charging;
+    public long overlayCacheBytes;
+    public long overlayCacheBudget;
+    public long overlayCacheHits;
+    public long overlayCacheMisses;
+    public long overlayCacheEvictions;
+    public String logTail = "";
+
+    private final StringBuilder mBuilder = new StringBuilder(8 * 1024);
+    private volatile byte[] mPrometheus = new byte[0];
+    private volatile byte[] mJson = new byte[0];
+
+    public MetricsSnapshot() {
+        for (int i = 0; i < MAX_CONNECTIONS; i++) {
+            mConnections[i] = new ConnectionMetrics();
+        }
+        for (int i = 0; i < MAX_HTTP_ENDPOINTS; i++) {
+            mEndpoints[i] = new EndpointMetrics();
+        }
+    }
+
+    public void clearConnections() {
+        mConnectionCount = 0;
+    }
+
+    /**
+     * @return the next connection slot to fill, or null if all are taken.
+     */
+    public ConnectionMetrics addConnection(int id) {
+        if (mConnectionCount == MAX_CONNECTIONS) {
+            return null;
+        }
+        final ConnectionMetrics connection = mConnections[mConnectionCount++];
+        connection.id = id;
+        connection.historySize = 0;
+        return connection;
+    }
+
+    public void clearEndpoints() {
+        mEndpointCount = 0;
+    }
+
+    /**
+     * @return the next HTTP endpoint slot to fill, or null if all are taken.
+     */
+    public EndpointMetrics addEndpoint(String endpoint) {
+        if (mEndpointCount == MAX_HTTP_ENDPOINTS) {
+            return null;
+        }
+        final EndpointMetrics metrics = mEndpoints[mEndpointCount++];
+        metrics.endpoint = endpoint;
+        return metrics;
+    }
+
+    /**
+     * Renders both bodies from the current fields.
+     */
+    public void publish() {
+        mPrometheus = render(false);
+        mJson = render(true);
+    }
+
+    public byte[] prometheus() {
+        return mPrometheus;
+    }
+
+    public byte[] json() {
+        return mJson;
+    }
+
+    private byte[] render(boolean json) {
+        final StringBuilder sb = mBuilder;
+        sb.setLength(0);
+        if (json) {
+            writeJson(sb);
+        } else {
+            writePrometheus(sb);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void writePrometheus(StringBuilder sb) {
+        gauge(sb, "streamer_broadcasting", "1 while the broadcast is on", broadcasting ? 1 : 0);
+        gauge(sb, "streamer_recording", "1 while recording to file", recording ? 1 : 0);
+        gauge(sb, "streamer_encoder_fps", "Encoder target frame rate", fps);
+        gauge(sb, "streamer_thermal_status", "PowerManager thermal status, -1 if unknown", thermalStatus);
+        gauge(sb, "streamer_battery_percent", "Battery level, -1 if unknown", batteryPercent);
+        gauge(sb, "streamer_battery_charging", "1 while charging", charging ? 1 : 0);
+        gauge(sb, "streamer_overlay_cache_bytes", "Overlay bitmaps kept in memory", overlayCacheBytes);
+        gauge(sb, "streamer_overlay_cache_budget_bytes", "Overlay bitmap cache budget", overlayCacheBudget);
+        counter(sb, "streamer_overlay_cache_hits_total", "Overlay bitmap cache hits", overlayCacheHits);
+        counter(sb, "streamer_overlay_cache_misses_total", "Overlay bitmap cache misses", overlayCacheMisses);
+        counter(sb, "streamer_overlay_cache_evictions_total", "Overlay bitmaps evicted", overlayCacheEvictions);
+
+        header(sb, "streamer_connection_info", "gauge", "Connection name and state");
+        for (int i = 0; i < mConnectionCount; i++) {
+            final ConnectionMetrics c = mConnections[i];
+            sb.append("streamer_connection_info{id=\"").append(c.id).append("\",name=\"");
+            escapeLabel(sb, c.name);
+            sb.append("\",state=\"");
+            escapeLabel(sb, c.state);
+            sb.append("\"} 1\n");
+        }
+        connectionMetric(sb, "streamer_bytes_sent_total", "counter", "Bytes sent", 0);
+        connectionMetric(sb, "streamer_send_rate_bps", "gauge", "Send rate over the last sample", 1);
+        connectionMetric(sb, "streamer_bandwidth_bps", "gauge", "SRT link bandwidth estimate", 2);
+        connectionMetric(sb, "streamer_rtt_ms", "gauge", "SRT round trip time", 3);
+        connectionMetric(sb, "streamer_dropped_packets_total", "counter", "SRT packets dropped by the sender", 4);
+        connectionMetric(sb, "streamer_skipped_frames_total", "counter", "RTMP/RTSP frames skipped", 5);
+        connectionMetric(sb, "streamer_bitrate_bps", "gauge", "Encoder target bitrate", 6);
+
+        endpointMetric(sb, "streamer_http_calls_total", "counter", "HTTP calls made by the app", 0);
+        endpointMetric(sb, "streamer_http_failures_total", "counter", "HTTP calls that failed without a response", 1);
+        endpointMetric(sb, "streamer_http_new_connections_total", "counter", "HTTP calls that opened a connection", 2);
+        endpointMetric(sb, "streamer_http_dns_ms", "gauge", "Average DNS lookup of new connections", 3);
+        endpointMetric(sb, "streamer_http_connect_ms", "gauge", "Average TCP connect of new connections", 4);
+        endpointMetric(sb, "streamer_http_tls_ms", "gauge", "Average TLS handshake of new connections", 5);
+        endpointMetric(sb, "streamer_http_ttfb_ms", "gauge", "Average time to the response headers", 6);
+    }
+
+    private void endpointMetric(StringBuilder sb, String name, String type, String help, int field) {
+        header(sb, name, type, help);
+        for (int i = 0; i < mEndpointCount; i++) {
+            final EndpointMetrics e = mEndpoints[i];
+            sb.append(name).append("{endpoint=\"");
+            escapeLabel(sb, e.endpoint);
+            sb.append("\"} ").append(value(e, field)).append('\n');
+        }
+    }
+
+    private static long value(EndpointMetrics e, int field) {
+        switch (field) {
+            case 0:
+                return e.calls;
+            case 1:
+                return e.failures;
+            case 2:
+                return e.newConnections;
+            case 3:
+                return e.dnsMs;
+            case 4:
+                return e.connectMs;
+            case 5:
+                return e.tlsMs;
+            case 6:
+            default:
+                return e.ttfbMs;
+        }
+    }
+
+    private void connectionMetric(StringBuilder sb, String name, String type, String help, int field) {
+        header(sb, name, type, help);
+        for (int i = 0; i < mConnectionCount; i++) {
+            final ConnectionMetrics c = mConnections[i];
+            sb.append(name).append("{id=\"").append(c.id).append("\"} ");
+            number(sb, value(c, field));
+            sb.append('\n');
+        }
+    }
+
+    private static double value(ConnectionMetrics c, int field) {
+        switch (field) {
+            case 0:
+                return c.bytesSent;
+            case 1:
+                return c.sendRate;
+            case 2:
+                return c.bandwidth;
+            case 3:
+                return c.rtt;
+            case 4:
+                return c.drops;
+            case 5:
+                return c.skipped;
+            case 6:
+            default:
+                return c.bitrate;
+        }
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value) {
+        header(sb, name, "gauge", help);
+        sb.append(name).append(' ');
+        number(sb, value);
+        sb.append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, double value) {
+        header(sb, name, "counter", help);
+        sb.append(name).append(' ');
+        number(sb, value);
+        sb.append('\n');
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void writeJson(StringBuilder sb) {
+        sb.append("{\"timestamp\":").append(timestamp);
+        sb.append(",\"broadcasting\":").append(broadcasting);
+        sb.append(",\"recording\":").append(recording);
+        sb.append(",\"fps\":");
+        number(sb, fps);
+        sb.append(",\"thermal_status\":").append(thermalStatus);
+        sb.append(",\"battery\":{\"percent\":").append(batteryPercent);
+        sb.append(",\"charging\":").append(charging).append('}');
+        sb.append(",\"overlay_cache\":{\"bytes\":").append(overlayCacheBytes);
+        sb.append(",\"budget\":").append(overlayCacheBudget);
+        sb.append(",\"hits\":").append(overlayCacheHits);
+        sb.append(",\"misses\":").append(overlayCacheMisses);
+        sb.append(",\"evictions\":").append(overlayCacheEvictions).append('}');
+        sb.append(",\"history_interval_ms\":").append(historyInterval);
+        sb.append(",\"connections\":[");
+        for (int i = 0; i < mConnectionCount; i++) {
+            final ConnectionMetrics c = mConnections[i];
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":").append(c.id);
+            sb.append(",\"name\":");
+            jsonString(sb, c.name);
+            sb.append(",\"state\":");
+            jsonString(sb, c.state);
+            for (int field = 0; field <= 6; field++) {
+                sb.append(",\"").append(JSON_FIELDS[field]).append("\":");
+                number(sb, value(c, field));
+            }
+            sb.append(",\"bitrate_history\":[");
+            for (int j = 0; j < c.historySize; j++) {
+                if (j > 0) {
+                    sb.append(',');
+                }
+                number(sb, c.bitrateHistory[j]);
+            }
+            sb.append("]}");
+        }
+        sb.append("],\"http\":[");
+        for (int i = 0; i < mEndpointCount; i++) {
+            final EndpointMetrics e = mEndpoints[i];
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"endpoint\":");
+            jsonString(sb, e.endpoint);
+            for (int field = 0; field <= 6; field++) {
+                sb.append(",\"").append(JSON_HTTP_FIELDS[field]).append("\":").append(value(e, field));
+            }
+            sb.append('}');
+        }
+        sb.append("],\"log\":");
+        jsonString(sb, logTail);
+        sb.append('}');
+    }
+
+    private static final String[] JSON_FIELDS = {
+            "bytes_sent", "send_rate_bps", "bandwidth_bps", "rtt_ms", "dropped_packets", "skipped_frames", "bitrate_bps"
+    };
+
+    private static final String[] JSON_HTTP_FIELDS = {
+            "calls", "failures", "new_connections", "dns_ms", "connect_ms", "tls_ms", "ttfb_ms"
+    };
+
+    private static void number(StringBuilder sb, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append('0');
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(String.format(Locale.US, "%.3f", value));
+        }
+    }
+
+    private static void escapeLabel(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char ch = value.charAt(i);
+            switch (ch) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(ch);
+                    break;
+            }
+        }
+    }
+
+    private static void jsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char ch = value.charAt(i);
+            switch (ch) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        sb.append(String.format(Locale.US, "\\u%04x", (int) ch));
+                    } else {
+                        sb.append(ch);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,121 @@
+package io.uslugi.streamer.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a gzipped {@link TelemetryEncoder} batch back into records, undoing the time and per-connection
+ * field deltas. Plain Java, for the server side and TelemetryEncoderTest.
+ */
+public final class TelemetryDecoder implements Closeable {
+
+    private static final int MAX_STRING = 64 * 1024;
+
+    public static final class Record {
+        public int type; // TelemetryEncoder.TYPE_SAMPLE or TYPE_EVENT
+        public long time; // ms since epoch
+        public int connectionId; // Samples only
+        public long[] values; // Samples only, TelemetryEncoder field order
+        public String tag; // Events only
+        public String message; // Events only
+    }
+
+    private final DataInputStream mIn;
+    private final Map<Integer, long[]> mLast = new HashMap<>();
+    private final long mStartTime;
+    private long mLastTime;
+
+    public TelemetryDecoder(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+        final byte[] magic = new byte[TelemetryEncoder.MAGIC.length];
+        try {
+            mIn.readFully(magic);
+            if (!Arrays.equals(magic, TelemetryEncoder.MAGIC) || mIn.readUnsignedByte() != TelemetryEncoder.VERSION) {
+                throw new IOException("Not a telemetry batch");
+            }
+            mStartTime = readVarint();
+        } catch (EOFException e) {
+            throw new IOException("Empty telemetry batch", e);
+        }
+        mLastTime = mStartTime;
+    }
+
+    /**
+     * @return batch start time, ms since epoch.
+     */
+    public long startTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return the next record, null at the end of the batch.
+     */
+    public Record next() throws IOException {
+        final int type = mIn.read();
+        if (type < 0) {
+            return null;
+        }
+        final Record record = new Record();
+        record.type = type;
+        mLastTime += readVarint();
+        record.time = mLastTime;
+        switch (type) {
+            case TelemetryEncoder.TYPE_SAMPLE:
+                record.connectionId = (int) readVarint();
+                long[] last = mLast.get(record.connectionId);
+                if (last == null) {
+                    last = new long[TelemetryEncoder.SAMPLE_FIELDS];
+                    mLast.put(record.connectionId, last);
+                }
+                for (int i = 0; i < TelemetryEncoder.SAMPLE_FIELDS; i++) {
+                    final long delta = readVarint();
+                    last[i] += (delta >>> 1) ^ -(delta & 1);
+                }
+                record.values = last.clone();
+                break;
+            case TelemetryEncoder.TYPE_EVENT:
+                record.tag = readString();
+                record.message = readString();
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private String readString() throws IOException {
+        final long length = readVarint();
+        if (length > MAX_STRING) {
+            throw new IOException("String of " + length + " bytes");
+        }
+        final byte[] bytes = new byte[(int) length];
+        mIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = mIn.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
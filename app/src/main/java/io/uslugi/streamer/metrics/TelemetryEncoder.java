@@ -0,0 +1,133 @@
+package io.uslugi.streamer.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds one compact telemetry batch.
+ * <p>
+ * Layout: magic "UTLM", version byte, batch start time (varint, ms since epoch), then records.
+ * Each record is a type byte followed by the time since the previous record (varint, ms).
+ * A sample carries the connection id and {@link #SAMPLE_FIELDS} zigzag varints, each the difference
+ * to the same field of that connection's previous sample, so a steady stream costs a few bytes per
+ * record. An event carries tag and message as length-prefixed UTF-8. The whole batch is gzipped.
+ * {@link TelemetryDecoder} reads it back.
+ */
+public final class TelemetryEncoder {
+
+    static final byte[] MAGIC = {'U', 'T', 'L', 'M'};
+    static final int VERSION = 1;
+    static final int TYPE_SAMPLE = 1;
+    static final int TYPE_EVENT = 2;
+
+    // Sample field order
+    public static final int SEND_RATE = 0; // kbps
+    public static final int BITRATE = 1; // kbps
+    public static final int BANDWIDTH = 2; // kbps
+    public static final int RTT = 3; // ms
+    public static final int DROPS = 4; // Total
+    public static final int SKIPPED = 5; // Total
+    public static final int FPS = 6; // Tenths
+    public static final int SAMPLE_FIELDS = 7;
+
+    static final int MAX_MESSAGE = 200; // Chars
+
+    private final ByteArrayOutputStream mOut = new ByteArrayOutputStream(4 * 1024);
+    private final Map<Integer, long[]> mLast = new HashMap<>();
+    private long mLastTime;
+    private int mRecords;
+
+    public TelemetryEncoder(long startTime) {
+        mOut.write(MAGIC, 0, MAGIC.length);
+        mOut.write(VERSION);
+        writeVarint(startTime);
+        mLastTime = startTime;
+    }
+
+    public void addSample(long time, int connectionId, long[] values) {
+        if (values.length != SAMPLE_FIELDS) {
+            throw new IllegalArgumentException("expected " + SAMPLE_FIELDS + " values");
+        }
+        long[] last = mLast.get(connectionId);
+        if (last == null) {
+            last = new long[SAMPLE_FIELDS];
+            mLast.put(connectionId, last);
+        }
+        header(TYPE_SAMPLE, time);
+        writeVarint(connectionId);
+        for (int i = 0; i < SAMPLE_FIELDS; i++) {
+            writeZigzag(values[i] - last[i]);
+            last[i] = values[i];
+        }
+    }
+
+    public void addEvent(long time, String tag, String message) {
+        header(TYPE_EVENT, time);
+        writeString(tag != null ? tag : "");
+        writeString(message == null ? "" : truncate(message));
+    }
+
+    public int records() {
+        return mRecords;
+    }
+
+    /**
+     * @return uncompressed size so far, bytes.
+     */
+    public int size() {
+        return mOut.size();
+    }
+
+    /**
+     * @return the gzipped batch.
+     */
+    public byte[] finish() {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(mOut.size() / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            mOut.writeTo(gzip);
+        } catch (IOException e) {
+            // In-memory streams don't throw
+            throw new IllegalStateException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    private void header(int type, long time) {
+        mOut.write(type);
+        // Events come from other threads and can be a little older than the last sample
+        writeVarint(Math.max(0, time - mLastTime));
+        mLastTime = Math.max(mLastTime, time);
+        mRecords++;
+    }
+
+    // Not through the middle of a surrogate pair, which would encode as '?'
+    private static String truncate(String message) {
+        if (message.length() <= MAX_MESSAGE) {
+            return message;
+        }
+        final int end = Character.isHighSurrogate(message.charAt(MAX_MESSAGE - 1)) ? MAX_MESSAGE - 1 : MAX_MESSAGE;
+        return message.substring(0, end);
+    }
+
+    private void writeString(String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        mOut.write(bytes, 0, bytes.length);
+    }
+
+    private void writeZigzag(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            mOut.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        mOut.write((int) value);
+    }
+}
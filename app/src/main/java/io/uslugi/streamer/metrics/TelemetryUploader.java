@@ -0,0 +1,303 @@
+package io.uslugi.streamer.metrics;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import com.wmspanel.libstream.Streamer;
+
+import io.objectbox.Box;
+import io.uslugi.streamer.ObjectBox;
+import io.uslugi.streamer.api.HttpClient;
+import io.uslugi.streamer.conditioner.StatsSampler;
+import io.uslugi.streamer.data.TelemetryBatch;
+import io.uslugi.streamer.data.TelemetryBatch_;
+import io.uslugi.streamer.helper.Constants;
+import io.uslugi.streamer.helper.SharedPreferencesHelper;
+import io.uslugi.streamer.log.EventLog;
+import io.uslugi.streamer.settingsutils.Settings;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Sends stream health to the home server.
+ * <p>
+ * Every {@link #AGGREGATE_INTERVAL} the sampler's latest values of each connection and the key
+ * {@link EventLog} events since the last round go into a {@link TelemetryEncoder} batch. Batches are
+ * sealed into ObjectBox on the upload interval, so nothing is lost when the activity goes away, and
+ * uploaded oldest first. While the stream shows congestion (new drops or skipped frames, send rate
+ * behind the encoder) uploads are put off and the interval doubles up to {@link #MAX_INTERVAL};
+ * with video on air one batch goes per round at most. Failed uploads back off the same way. A server
+ * that refuses the upload (no endpoint, auth, redirect) keeps the batches and is asked again after
+ * {@link #MAX_INTERVAL}.
+ */
+public final class TelemetryUploader implements EventLog.EventLogListener {
+    private static final String TAG = "TelemetryUploader";
+
+    private static final long AGGREGATE_INTERVAL = 10_000;
+    private static final long UPLOAD_INTERVAL = 60_000;
+    private static final long MAX_INTERVAL = 15 * 60_000;
+    private static final int MAX_RECORDS = 2_000; // Per batch
+    private static final int MAX_STORED = 200; // Batches kept while offline, oldest dropped
+    private static final int MAX_EVENTS = 100; // Per aggregation round
+    private static final double CONGESTED_RATE = 0.8; // Send rate below this part of the bitrate
+    private static final String PATH = "/telemetry.php";
+    private static final MediaType BINARY = MediaType.parse("application/octet-stream");
+
+    // Tags whose INFO events are worth sending, everything above INFO goes anyway
+    private static final Set<String> KEY_TAGS = new HashSet<>(Arrays.asList(
+            "MainActivityBase", "ReconnectScheduler", "ConnectionPrewarmer", "StreamConditioner",
+            "StallWatchdog"));
+
+    enum Result {
+        DELIVERED,
+        FAILED, // Unreachable or busy, back off
+        REFUSED // The server doesn't take the batch, keep it and ask again much later
+    }
+
+    private static final class Event {
+        final long time = System.currentTimeMillis();
+        final String tag;
+        final String message;
+
+        Event(String tag, String message) {
+            this.tag = tag;
+            this.message = message;
+        }
+    }
+
+    private final Context mContext;
+    private final StatsSampler mSampler;
+    private final ArrayDeque<Event> mEvents = new ArrayDeque<>(); // Guarded by itself
+
+    // Telemetry thread only
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private TelemetryEncoder mEncoder;
+    private final Map<Integer, long[]> mLastLoss = new HashMap<>();
+    private final long[] mValues = new long[TelemetryEncoder.SAMPLE_FIELDS];
+    private long mInterval = UPLOAD_INTERVAL;
+    private long mNextUpload;
+
+    public TelemetryUploader(@NonNull Context context, @NonNull StatsSampler sampler) {
+        mContext = context.getApplicationContext();
+        mSampler = sampler;
+    }
+
+    public void start() {
+        if (!Settings.telemetry() || mThread != null || ObjectBox.get() == null) {
+            return;
+        }
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(() -> {
+            mEncoder = new TelemetryEncoder(System.currentTimeMillis());
+            mInterval = UPLOAD_INTERVAL;
+            mNextUpload = System.currentTimeMillis() + UPLOAD_INTERVAL;
+        });
+        mHandler.postDelayed(mAggregate, AGGREGATE_INTERVAL);
+        EventLog.getInstance().setListener(this);
+    }
+
+    /**
+     * Seals what was collected so far, it goes out after the next start.
+     */
+    public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        EventLog.getInstance().setListener(null);
+        mHandler.removeCallbacks(mAggregate);
+        mHandler.post(() -> {
+            collect(System.currentTimeMillis());
+            seal();
+        });
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+    }
+
+    @Override
+    public void onEvent(String text) {
+    }
+
+    // Called on the event log writer thread, keep it short
+    @Override
+    public void onEvent(Streamer.LoggerListener.Severity severity, String tag, String message, String text) {
+        if (severity == Streamer.LoggerListener.Severity.INFO && !KEY_TAGS.contains(tag)) {
+            return;
+        }
+        synchronized (mEvents) {
+            if (mEvents.size() == MAX_EVENTS) {
+                mEvents.removeFirst();
+            }
+            mEvents.addLast(new Event(tag, message));
+        }
+    }
+
+    private final Runnable mAggregate = new Runnable() {
+        @Override
+        public void run() {
+            final long now = System.currentTimeMillis();
+            final boolean congested = collect(now);
+            if (mEncoder.records() >= MAX_RECORDS) {
+                seal();
+            }
+            if (now >= mNextUpload) {
+                if (congested) {
+                    mInterval = Math.min(mInterval * 2, MAX_INTERVAL);
+                } else {
+                    seal();
+                    final Result result = upload(!mSampler.connections().isEmpty());
+                    if (result == Result.DELIVERED) {
+                        mInterval = UPLOAD_INTERVAL;
+                    } else if (result == Result.REFUSED) {
+                        mInterval = MAX_INTERVAL;
+                    } else {
+                        mInterval = Math.min(mInterval * 2, MAX_INTERVAL);
+                    }
+                }
+                mNextUpload = now + mInterval;
+            }
+            final Handler handler = mHandler;
+            if (handler != null) {
+                handler.postDelayed(this, AGGREGATE_INTERVAL);
+            }
+        }
+    };
+
+    /**
+     * @return true if any connection looked congested since the last round.
+     */
+    private boolean collect(long now) {
+        boolean congested = false;
+        for (int id : mSampler.connections()) {
+            if (mSampler.count(id) == 0) {
+                continue;
+            }
+            final double sendRate = mSampler.latest(id, StatsSampler.Field.SEND_RATE);
+            final double bitrate = mSampler.latest(id, StatsSampler.Field.BITRATE);
+            final long drops = value(mSampler.latest(id, StatsSampler.Field.DROPS));
+            final long skipped = value(mSampler.latest(id, StatsSampler.Field.SKIPPED));
+            mValues[TelemetryEncoder.SEND_RATE] = value(sendRate / 1000);
+            mValues[TelemetryEncoder.BITRATE] = value(bitrate / 1000);
+            mValues[TelemetryEncoder.BANDWIDTH] = value(mSampler.latest(id, StatsSampler.Field.BANDWIDTH) / 1000);
+            mValues[TelemetryEncoder.RTT] = value(mSampler.latest(id, StatsSampler.Field.RTT));
+            mValues[TelemetryEncoder.DROPS] = drops;
+            mValues[TelemetryEncoder.SKIPPED] = skipped;
+            mValues[TelemetryEncoder.FPS] = value(mSampler.latest(id, StatsSampler.Field.FPS) * 10);
+            mEncoder.addSample(now, id, mValues);
+
+            final long[] last = mLastLoss.get(id);
+            if (last != null && (drops > last[0] || skipped > last[1])) {
+                congested = true;
+            }
+            if (bitrate > 0 && sendRate < bitrate * CONGESTED_RATE) {
+                congested = true;
+            }
+            mLastLoss.put(id, new long[]{drops, skipped});
+        }
+        mLastLoss.keySet().retainAll(mSampler.connections());
+
+        synchronized (mEvents) {
+            for (Event event : mEvents) {
+                mEncoder.addEvent(event.time, event.tag, event.message);
+            }
+            mEvents.clear();
+        }
+        return congested;
+    }
+
+    private static long value(double value) {
+        return Double.isNaN(value) ? 0 : Math.round(value);
+    }
+
+    private void seal() {
+        if (mEncoder.records() == 0) {
+            return;
+        }
+        final TelemetryBatch batch = new TelemetryBatch();
+        batch.created = System.currentTimeMillis();
+        batch.records = mEncoder.records();
+        batch.payload = mEncoder.finish();
+        final Box<TelemetryBatch> box = box();
+        box.put(batch);
+        final long excess = box.count() - MAX_STORED;
+        if (excess > 0) {
+            box.remove(box.query().order(TelemetryBatch_.created).build().find(0, excess));
+        }
+        mEncoder = new TelemetryEncoder(System.currentTimeMillis());
+    }
+
+    /**
+     * @param onAir Send one batch only, video has the uplink.
+     * @return the result of the first batch that didn't go, DELIVERED if all did.
+     */
+    private Result upload(boolean onAir) {
+        final HttpUrl base = HttpUrl.parse(Constants.HTTPConfig.BASE_URL);
+        final HttpUrl url = base != null ? base.resolve(PATH) : null;
+        if (url == null) {
+            // Placeholder server address, nowhere to upload
+            return Result.REFUSED;
+        }
+        final String udi = SharedPreferencesHelper.INSTANCE.getUdi(mContext);
+        final Box<TelemetryBatch> box = box();
+        final List<TelemetryBatch> batches = box.query()
+                .order(TelemetryBatch_.created)
+                .build()
+                .find(0, onAir ? 1 : MAX_STORED);
+        for (TelemetryBatch batch : batches) {
+            final Result result = post(HttpClient.getClient(), url, udi, batch.payload);
+            if (result != Result.DELIVERED) {
+                return result;
+            }
+            box.remove(batch);
+        }
+        return Result.DELIVERED;
+    }
+
+    static Result post(OkHttpClient client, HttpUrl url, String udi, byte[] payload) {
+        final Request request = new Request.Builder()
+                .url(url)
+                .header("X-Udi", udi)
+                .header("Content-Encoding", "gzip")
+                .post(RequestBody.create(payload, BINARY))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            final int code = response.code();
+            if (code >= 200 && code < 300) {
+                return Result.DELIVERED;
+            }
+            if (code >= 500 || code == 408 || code == 429) {
+                return Result.FAILED;
+            }
+            // 404 until the endpoint is deployed, 401/403 until the device is let in: not the
+            // batch's fault, MAX_STORED bounds what piles up meanwhile
+            return Result.REFUSED;
+        } catch (IOException e) {
+            return Result.FAILED;
+        }
+    }
+
+    private static Box<TelemetryBatch> box() {
+        return ObjectBox.get().boxFor(TelemetryBatch.class);
+    }
+}
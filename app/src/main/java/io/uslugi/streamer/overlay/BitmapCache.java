@@ -0,0 +1,187 @@
+package io.uslugi.streamer.overlay;
+
+import static io.uslugi.streamer.log.EventLog.Logd;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import io.uslugi.streamer.settingsutils.Settings;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decoded overlay bitmaps by layer id, least recently used dropped first once the byte budget
+ * is exceeded.
+ * <p>
+ * Lookups only touch a {@link ConcurrentHashMap} and stamp the entry, so loader threads never wait
+ * for each other on a hit; insertion and eviction are serialized. Evicted bitmaps are not recycled,
+ * overlays already handed to the streamer keep using them. Registered with the application to
+ * shrink on {@link ComponentCallbacks2} trim levels. The lowered budget holds until a callback with a
+ * lower level raises it, or {@link #PRESSURE_TIMEOUT} passes without a callback.
+ */
+public final class BitmapCache implements ComponentCallbacks2 {
+    private static final String TAG = "BitmapCache";
+
+    private static final long PRESSURE_TIMEOUT = 60_000; // Without trim callbacks the pressure is over
+
+    private static final BitmapCache instance = new BitmapCache(Settings.overlayCacheBytes());
+
+    private static final class Entry {
+        final Bitmap bitmap;
+        final long bytes;
+        volatile long used; // Access stamp, higher is more recent
+
+        Entry(Bitmap bitmap, long bytes, long used) {
+            this.bitmap = bitmap;
+            this.bytes = bytes;
+            this.used = used;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry> mEntries = new ConcurrentHashMap<>();
+    private final AtomicLong mClock = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final long mBudget;
+    private long mLimit; // Budget lowered by memory pressure, guarded by this
+    private long mTrimmedAt; // Uptime of the last trim, guarded by this
+    private volatile long mBytes;
+
+    public static BitmapCache getInstance() {
+        return instance;
+    }
+
+    BitmapCache(long budget) {
+        mBudget = budget;
+        mLimit = budget;
+    }
+
+    @Nullable
+    public Bitmap get(long id) {
+        final Entry entry = mEntries.get(id);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        entry.used = mClock.incrementAndGet();
+        mHits.incrementAndGet();
+        return entry.bitmap;
+    }
+
+    public void put(long id, @NonNull Bitmap bitmap) {
+        final long bytes = bitmap.getAllocationByteCount();
+        synchronized (this) {
+            if (mLimit < mBudget && SystemClock.uptimeMillis() - mTrimmedAt >= PRESSURE_TIMEOUT) {
+                Logd(TAG, "No memory pressure for " + PRESSURE_TIMEOUT / 1000 + " s, back to the full budget");
+                mLimit = mBudget;
+            }
+            if (bytes > mLimit) {
+                removeLocked(id);
+                return;
+            }
+            final Entry previous = mEntries.put(id, new Entry(bitmap, bytes, mClock.incrementAndGet()));
+            mBytes += bytes - (previous != null ? previous.bytes : 0);
+            evictLocked(mLimit);
+        }
+    }
+
+    public synchronized void remove(long id) {
+        removeLocked(id);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Drops least recently used bitmaps until at most {@code bytes} are kept, and keeps it at that
+     * until the next trim or {@link #PRESSURE_TIMEOUT}.
+     */
+    public synchronized void trimTo(long bytes) {
+        mLimit = Math.min(mBudget, Math.max(0, bytes));
+        mTrimmedAt = SystemClock.uptimeMillis();
+        evictLocked(mLimit);
+    }
+
+    public long budget() {
+        return mBudget;
+    }
+
+    public long bytes() {
+        return mBytes;
+    }
+
+    public int count() {
+        return mEntries.size();
+    }
+
+    public long hits() {
+        return mHits.get();
+    }
+
+    public long misses() {
+        return mMisses.get();
+    }
+
+    public long evictions() {
+        return mEvictions.get();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        final long before = mBytes;
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Next in line to be killed, or the foreground is about to be, nothing is worth it
+            trimTo(0);
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            trimTo(mBudget / 4);
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_MODERATE) {
+            trimTo(mBudget / 2);
+        } else {
+            return;
+        }
+        if (before != mBytes) {
+            Logd(TAG, "Trim level " + level + ", " + before / 1024 + " KiB -> " + mBytes / 1024 + " KiB");
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+
+    private void removeLocked(long id) {
+        final Entry entry = mEntries.remove(id);
+        if (entry != null) {
+            mBytes -= entry.bytes;
+        }
+    }
+
+    private void evictLocked(long limit) {
+        while (mBytes > limit && !mEntries.isEmpty()) {
+            // A handful of layers, a scan is cheaper than keeping an ordered structure up to date
+            Map.Entry<Long, Entry> oldest = null;
+            for (Map.Entry<Long, Entry> candidate : mEntries.entrySet()) {
+                if (oldest == null || candidate.getValue().used < oldest.getValue().used) {
+                    oldest = candidate;
+                }
+            }
+            mEntries.remove(oldest.getKey());
+            mBytes -= oldest.getValue().bytes;
+            mEvictions.incrementAndGet();
+        }
+    }
+}
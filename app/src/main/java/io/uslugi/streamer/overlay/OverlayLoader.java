@@ -6,7 +6,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Process;
 import android.text.Layout;
 import android.text.Spanned;
 import android.text.StaticLayout;
@@ -23,6 +23,7 @@ import com.wmspanel.libstream.StreamerGLBuilder;
 import io.uslugi.streamer.data.ImageLayerConfig;
 import io.uslugi.streamer.data.ImageLayerConfig_;
 import io.uslugi.streamer.ObjectBox;
+import io.uslugi.streamer.api.HttpClient;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -30,9 +31,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -42,6 +43,12 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -49,10 +56,22 @@ import javax.annotation.Nullable;
 
 import io.objectbox.Box;
 import io.objectbox.query.QueryBuilder;
-
-public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
-
-
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Loads overlay layers on a pool shared by all loaders. Layers are fetched and decoded in parallel
+ * and published in z-order once the last one is done, so a slow remote image delays only its own
+ * loader. Layers of an urgent loader (the pause screen being shown) are taken before the others.
+ * Listener callbacks come from a pool thread.
+ */
+public class OverlayLoader {
+
+    static final int POOL_SIZE = 3;
     static final long MAX_DOWNLOAD_SIZE = 10_000_000;
     static final long MAX_BITMAP_SIZE = 40_000_000;
     static final int BUFFER_SIZE = 64 * 1024;
@@ -65,7 +84,24 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
     static private final String IF_MODIFIED_SINCE = "If-Modified-Since";
     static private final String overlaysFolder = "overlays";
 
-    static private final HashMap<Long, Bitmap> mBitmapCache = new HashMap<>();
+    // One layer is loaded by one loader at a time, a refresh may race the initial load
+    static private final ConcurrentHashMap<Long, Object> mLayerLocks = new ConcurrentHashMap<>();
+    static private final ThreadLocal<LayerTask> mCurrentTask = new ThreadLocal<>();
+    static private final AtomicLong mSequence = new AtomicLong();
+    static private final ThreadPoolExecutor mPool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+            30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), runnable -> {
+        final Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "OverlayLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        mPool.allowCoreThreadTimeOut(true);
+    }
+
     private OverlayLoaderListener mListener;
     private final WeakReference<Context> mWeakContext;
     private Streamer.Size mVideoSize = new Streamer.Size(1920, 1080);
@@ -73,6 +109,63 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
     private final HashMap<Long, StreamerGLBuilder.OverlayConfig> mStreamerOverlays = new LinkedHashMap<>();
     private int mOverlayFlags;
     private boolean mLoadUpdatedOnly = false;
+    private boolean mUrgent = false;
+    private final ConcurrentHashMap<Long, StreamerGLBuilder.OverlayConfig> mLoaded = new ConcurrentHashMap<>();
+    private final List<LayerTask> mTasks = new ArrayList<>(); // In z-order
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile boolean mCancelled = false;
+    private boolean mStarted = false;
+
+    /**
+     * One layer, cancelled on its own or together with the loader.
+     */
+    private final class LayerTask implements Runnable, Comparable<LayerTask> {
+        final ImageLayerConfig config;
+        final boolean urgent = mUrgent;
+        final long sequence = mSequence.getAndIncrement();
+        volatile boolean cancelled;
+        volatile Call call;
+
+        LayerTask(ImageLayerConfig config) {
+            this.config = config;
+        }
+
+        void cancel(boolean abort) {
+            cancelled = true;
+            final Call running = call;
+            if (abort && running != null) {
+                running.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            mCurrentTask.set(this);
+            try {
+                if (!isCancelled()) {
+                    final Object lock = mLayerLocks.computeIfAbsent(config.id, id -> new Object());
+                    synchronized (lock) {
+                        loadLayer(config);
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Layer " + config.name + " failed", e);
+            } finally {
+                mCurrentTask.remove();
+                if (mPending.decrementAndGet() == 0) {
+                    publish();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(LayerTask other) {
+            if (urgent != other.urgent) {
+                return urgent ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
 
     public OverlayLoader(Context context) {
         mWeakContext = new WeakReference<>(context);
@@ -87,6 +180,13 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
         mLoadUpdatedOnly = true;
     }
 
+    /**
+     * Takes this loader's layers before those of other loaders, set before loading.
+     */
+    public void setUrgent(boolean urgent) {
+        mUrgent = urgent;
+    }
+
     // Get list of overlays including predefined
     HashMap<Long, StreamerGLBuilder.OverlayConfig> getOverlays() {
         return mStreamerOverlays;
@@ -108,25 +208,36 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
         }
     }
 
-    @Override
-    protected Long doInBackground(Long... id) {
-        long[] idList = new long[id.length];
-        for (int i = 0; i < id.length; i++) {
-            idList[i] = id[i];
+    /**
+     * Stops loading, the listener isn't called anymore.
+     *
+     * @param abort Also abort downloads in progress rather than let them finish in the background.
+     */
+    public void cancel(boolean abort) {
+        mCancelled = true;
+        for (LayerTask task : mTasks) {
+            task.cancel(abort);
         }
+        mWeakContext.clear();
+    }
 
-        final Box<ImageLayerConfig> layerBox = ObjectBox.get().boxFor(ImageLayerConfig.class);
-        QueryBuilder<ImageLayerConfig> query = layerBox.query();
-        query.in(ImageLayerConfig_.id, idList).order(ImageLayerConfig_.zIndex);
-        List<ImageLayerConfig> active = query.build().find();
-        loadList(active);
-
-        return null;
+    /**
+     * Drops a single layer, the others are still published.
+     */
+    public void cancelLayer(long id) {
+        for (LayerTask task : mTasks) {
+            if (task.config.id == id) {
+                task.cancel(true);
+            }
+        }
     }
 
-    @Override
-    protected void onCancelled(Long aLong) {
-        mWeakContext.clear();
+    public boolean isCancelled() {
+        if (mCancelled) {
+            return true;
+        }
+        final LayerTask task = mCurrentTask.get();
+        return task != null && task.cancelled;
     }
 
     public void loadActiveOnly() {
@@ -143,42 +254,73 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
     }
 
     public void loadIdList(Long[] list) {
-        execute(list);
+        if (mStarted) {
+            throw new IllegalStateException("Loader already started");
+        }
+        mStarted = true;
+        long[] idList = new long[list.length];
+        for (int i = 0; i < list.length; i++) {
+            idList[i] = list[i];
+        }
+
+        final Box<ImageLayerConfig> layerBox = ObjectBox.get().boxFor(ImageLayerConfig.class);
+        QueryBuilder<ImageLayerConfig> query = layerBox.query();
+        query.in(ImageLayerConfig_.id, idList).order(ImageLayerConfig_.zIndex);
+        List<ImageLayerConfig> layers = query.build().find();
+        for (ImageLayerConfig config : layers) {
+            mTasks.add(new LayerTask(config));
+        }
+        if (mTasks.isEmpty()) {
+            publish();
+            return;
+        }
+        mPending.set(mTasks.size());
+        for (LayerTask task : mTasks) {
+            mPool.execute(task);
+        }
     }
 
-    private void loadList(List<ImageLayerConfig> list) {
+    private void loadLayer(ImageLayerConfig config) {
         if (mWeakContext.get() == null) return;
-        mStreamerOverlays.clear();
-        for (ImageLayerConfig config : list) {
-            boolean loaded = false;
-            if (config.type == ImageLayerType.TEXT.ordinal()) {
-                loaded = loadHtml(config);
-            } else {
-                String urlStr = config.url;
-                if (android.text.TextUtils.isEmpty(urlStr)) {
-                    continue;
-                }
-                Uri url = Uri.parse(urlStr);
-                String scheme = url.getScheme();
-                if (scheme == null) {
-                    continue;
-                }
-                if ("content".equals(scheme)) {
-                    if (!mLoadUpdatedOnly) {
-                        loaded = loadLocalFile(url, config);
-                    }
-                } else {
-                    loaded = loadRemoteFile(url, config);
-                }
+        boolean loaded = false;
+        if (config.type == ImageLayerType.TEXT.ordinal()) {
+            loaded = loadHtml(config);
+        } else {
+            String urlStr = config.url;
+            if (android.text.TextUtils.isEmpty(urlStr)) {
+                return;
             }
-            if (isCancelled()) {
-                break;
+            Uri url = Uri.parse(urlStr);
+            String scheme = url.getScheme();
+            if (scheme == null) {
+                return;
             }
-            if (loaded && mListener != null) {
-                mListener.onImageLoaded(config.name);
+            if ("content".equals(scheme)) {
+                if (!mLoadUpdatedOnly) {
+                    loaded = loadLocalFile(url, config);
+                }
+            } else {
+                loaded = loadRemoteFile(url, config);
+            }
+        }
+        if (loaded && mListener != null && !isCancelled()) {
+            mListener.onImageLoaded(config.name);
+        }
+    }
+
+    // Called by the last layer to finish
+    private void publish() {
+        if (mCancelled) {
+            return;
+        }
+        mStreamerOverlays.clear();
+        for (LayerTask task : mTasks) {
+            final StreamerGLBuilder.OverlayConfig overlay = mLoaded.get(task.config.id);
+            if (overlay != null && !task.cancelled) {
+                mStreamerOverlays.put(task.config.id, overlay);
             }
         }
-        if (mListener != null && !isCancelled()) {
+        if (mListener != null) {
             mListener.onImageLoadComplete(this);
         }
     }
@@ -322,31 +464,15 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
         layout.draw(canvas);
 
         StreamerGLBuilder.OverlayConfig overlay = createOverlay(picture, config);
-        mStreamerOverlays.put(config.id, overlay);
+        mLoaded.put(config.id, overlay);
         return true;
     }
 
-    @Nullable
-    synchronized static Bitmap getFromCache(long id) {
-        if (mBitmapCache.containsKey(id)) {
-            return mBitmapCache.get(id);
-        }
-        return null;
-    }
-
-    synchronized static void putToMemoryCache(long id, Bitmap image) {
-        mBitmapCache.put(id, image);
-    }
-
-    synchronized static void removeFromMemoryCache(long id) {
-        mBitmapCache.remove(id);
-    }
-
     private boolean loadMemoryCachedFile(ImageLayerConfig config) {
-        Bitmap cached = getFromCache(config.id);
+        Bitmap cached = BitmapCache.getInstance().get(config.id);
         if (cached != null) {
             StreamerGLBuilder.OverlayConfig overlay = createOverlay(cached, config);
-            mStreamerOverlays.put(config.id, overlay);
+            mLoaded.put(config.id, overlay);
             //Log.d(TAG, "Loaded from memory cache:" + config.id);
             return true;
         }
@@ -409,8 +535,8 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
                 return false;
             }
             StreamerGLBuilder.OverlayConfig overlay = createOverlay(picture, config);
-            mStreamerOverlays.put(config.id, overlay);
-            putToMemoryCache(config.id, picture);
+            mLoaded.put(config.id, overlay);
+            BitmapCache.getInstance().put(config.id, picture);
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Failed to open file");
@@ -484,27 +610,39 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
         if (isCancelled() || context == null) {
             return null;
         }
-        try {
-            HttpURLConnection urlConnection = (HttpURLConnection) remoteUrl.openConnection();
-            if (config.httpEtag != null) {
-                urlConnection.setRequestProperty(IF_NONE_MATCH, "\"" + config.httpEtag + "\"");
-            }
-            // When used in combination with If-None-Match, it is ignored,
-            // unless the server doesn't support If-None-Match.
-            if (config.httpLastModified != null) {
-                urlConnection.setRequestProperty(IF_MODIFIED_SINCE, config.httpLastModified);
-            }
-            urlConnection.setConnectTimeout(3_000);
-            int code = urlConnection.getResponseCode();
+        final Request.Builder request = new Request.Builder()
+                .url(remoteUrl)
+                // Kept in the overlays folder, don't store a second copy in the HTTP cache
+                .cacheControl(new CacheControl.Builder().noStore().build());
+        if (config.httpEtag != null) {
+            request.header(IF_NONE_MATCH, "\"" + config.httpEtag + "\"");
+        }
+        // When used in combination with If-None-Match, it is ignored,
+        // unless the server doesn't support If-None-Match.
+        if (config.httpLastModified != null) {
+            request.header(IF_MODIFIED_SINCE, config.httpLastModified);
+        }
+        final OkHttpClient client = HttpClient.getClient().newBuilder()
+                .connectTimeout(3, TimeUnit.SECONDS)
+                .build();
+        final Call call = client.newCall(request.build());
+        final LayerTask task = mCurrentTask.get();
+        if (task != null) {
+            task.call = call;
+        }
+        if (isCancelled()) {
+            call.cancel();
+        }
+        try (Response response = call.execute()) {
+            int code = response.code();
             if (code >= 400) {
                 String error = String.format(context.getString(R.string.layer_error_server_status), code);
                 if (mListener != null) {
                     mListener.onLoadError(config.name, error);
                 }
-                urlConnection.disconnect();
                 return null;
             }
-            String error = validateHeader(urlConnection);
+            String error = validateHeader(response);
             if (error != null) {
                 if (mListener != null) {
                     mListener.onLoadError(config.name, error);
@@ -512,14 +650,18 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
                 return null;
             }
 
-            boolean isUpdated = isUpdated(urlConnection, config);
+            boolean isUpdated = isUpdated(response, config);
             if (mLoadUpdatedOnly && !isUpdated) {
                 return null;
             }
 
-            String filename = getFileName(remoteUrl, urlConnection);
+            String filename = getFileName(remoteUrl, response);
 
-            InputStream dataIn = urlConnection.getInputStream();
+            final ResponseBody responseBody = response.body();
+            if (responseBody == null) {
+                return null;
+            }
+            InputStream dataIn = responseBody.byteStream();
             File outDir = new File(context.getCacheDir(), overlaysFolder);
             if (!outDir.exists()) {
                 boolean created = outDir.mkdirs();
@@ -530,7 +672,7 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
                     }
                 }
             }
-            removeFromMemoryCache(config.id);
+            BitmapCache.getInstance().remove(config.id);
             File outFile = new File(outDir, filename);
             if (outFile.exists()) {
                 //Log.d(TAG, "Delete cache=" + outFile.getAbsolutePath());
@@ -554,9 +696,11 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
                 }
                 outPath = null;
             }
-            urlConnection.disconnect();
             return outPath;
         } catch (IOException e) {
+            if (isCancelled()) {
+                return null;
+            }
             Log.e(TAG, "Failed to download file:" + e.getMessage());
             if (mListener != null) {
                 mListener.onLoadError(config.name, context.getString(R.string.layer_error_download_failed));
@@ -566,18 +710,18 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
     }
 
     private @Nullable
-    String validateHeader(HttpURLConnection urlConnection) {
+    String validateHeader(Response response) {
         final Context context = mWeakContext.get();
         if (isCancelled() || context == null) {
             return null;
         }
 
-        final String contentType = urlConnection.getHeaderField(CONTENT_TYPE);
+        final String contentType = response.header(CONTENT_TYPE);
         if (contentType == null || !contentType.startsWith("image/")) {
             Log.d(TAG, CONTENT_TYPE + ": " + contentType);
             return context.getString(R.string.layer_error_mime_type);
         }
-        final String sizeStr = urlConnection.getHeaderField(CONTENT_LENGTH);
+        final String sizeStr = response.header(CONTENT_LENGTH);
         long size = 0;
         if (sizeStr != null) {
             try {
@@ -592,17 +736,17 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
         return null;
     }
 
-    private boolean isUpdated(HttpURLConnection urlConnection, ImageLayerConfig config) throws IOException {
+    private boolean isUpdated(Response response, ImageLayerConfig config) {
         //Log.d(TAG, "isUpdated? " + config.name + " id=" + config.id);
 
-        int code = urlConnection.getResponseCode();
+        int code = response.code();
         //Log.d(TAG, "HTTP code=" + code);
         if (code == 304) {
             //Log.d(TAG, "HTTP 304 Not Modified");
             return false;
         }
 
-        final String etag = urlConnection.getHeaderField(ETAG);
+        final String etag = response.header(ETAG);
         //Log.d(TAG, "Stored etag=" + config.httpEtag + " etag=" + etag);
         if (etag != null) {
             if (config.httpEtag == null) {
@@ -616,7 +760,7 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
             }
         }
 
-        final String lastModified = urlConnection.getHeaderField(LAST_MODIFIED);
+        final String lastModified = response.header(LAST_MODIFIED);
         //Log.d(TAG, "Last-Modified=" + lastModified);
         Date d = httpLastModifiedDate(lastModified);
         if (d != null) {
@@ -646,7 +790,7 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
         return d;
     }
 
-    private String getFileName(URL remoteUrl, HttpURLConnection urlConnection) {
+    private String getFileName(URL remoteUrl, Response response) {
         String filename = null;
         final String filePath = remoteUrl.getFile();
         if (filePath != null) {
@@ -656,14 +800,14 @@ public class OverlayLoader extends AsyncTask<Long, Integer, Long> {
             }
         }
         if (filename == null || filename.isEmpty()) {
-            final String disposition = urlConnection.getHeaderField("Content-Disposition");
+            final String disposition = response.header("Content-Disposition");
             if (disposition != null) {
                 filename = disposition.replaceFirst("(?i)^.*filename=\"?([^\"]+)\"?.*$", "$1");
             }
         }
         if (filename == null) {
             filename = UUID.randomUUID().toString();
-            final String contentType = urlConnection.getHeaderField(CONTENT_TYPE);
+            final String contentType = response.header(CONTENT_TYPE);
             final int slashPos = contentType.indexOf("/");
             if (slashPos > 0) {
                 final String ext = contentType.substring(slashPos + 1);
@@ -8,6 +8,8 @@ import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import io.uslugi.libcommon.sntp.SntpUpdater;
 
 import com.wmspanel.libstream.Streamer;
@@ -62,8 +64,10 @@ public class OverlayManager implements OverlayLoaderListener {
     static public long SHADE_FRAME_ID = -2;
     static public long PAUSE_FRAME_ID = -3;
     static public long STANDBY_FRAME_ID = -4;
+    static public long AUDIO_ONLY_FRAME_ID = -5;
 
     private HashMap<Long, StreamerGLBuilder.OverlayConfig> mPredefinedOverlays;
+    private boolean mAudioOnly;
 
     private long mPreciseTimeOffset;
 
@@ -101,6 +105,7 @@ public class OverlayManager implements OverlayLoaderListener {
         if (mPauseMode != PauseMode.PRE_STANDBY) {
             mOverlayLoader.cancel(true);
             mOverlayLoader = createOverlayLoader(context, mVideoSize);
+            mOverlayLoader.setUrgent(mPauseMode == PauseMode.OFF);
             mOverlayLoader.loadIdList(idList);
         } else {
             loadPreStandbyOverlays(context);
@@ -147,7 +152,12 @@ public class OverlayManager implements OverlayLoaderListener {
         if (streamer == null) {
             return;
         }
-        streamer.setOverlays(new ArrayList<>(overlays.values()));
+        final List<StreamerGLBuilder.OverlayConfig> list = new ArrayList<>(overlays.values());
+        if (mAudioOnly) {
+            // Last, indices of the layers before it stay valid for updateOverlays()
+            list.add(mPredefinedOverlays.get(AUDIO_ONLY_FRAME_ID));
+        }
+        streamer.setOverlays(list);
         maybeStartOverlayRefresh();
     }
 
@@ -190,6 +200,38 @@ public class OverlayManager implements OverlayLoaderListener {
         }
     }
 
+    /**
+     * Tells the operator that adaptive bitrate sends audio only. The caption is on the preview only,
+     * the local recording shares the encoder and must not lose the picture.
+     */
+    public void setAudioOnly(Context context, boolean audioOnly) {
+        if (audioOnly && mPredefinedOverlays == null) {
+            mPredefinedOverlays = getPredefined();
+        }
+        audioOnly = audioOnly && mPredefinedOverlays != null;
+        if (audioOnly == mAudioOnly) {
+            return;
+        }
+        mAudioOnly = audioOnly;
+        final HashMap<Long, StreamerGLBuilder.OverlayConfig> overlays = overlaysFor(mPauseMode);
+        setOverlays(overlays != null ? overlays : new LinkedHashMap<>());
+    }
+
+    @Nullable
+    private HashMap<Long, StreamerGLBuilder.OverlayConfig> overlaysFor(PauseMode mode) {
+        switch (mode) {
+            case PAUSE:
+                return mPauseOverlays;
+            case STANDBY:
+                return mStandbyOverlays;
+            case PRE_STANDBY:
+                return mPreStandbyOverlays;
+            case OFF:
+            default:
+                return mOverlays;
+        }
+    }
+
     public PauseMode getPauseMode() {
         return mPauseMode;
     }
@@ -292,12 +334,15 @@ public class OverlayManager implements OverlayLoaderListener {
         }
         mPauseLoader = createOverlayLoader(context, mVideoSize);
         mPauseLoader.setDrawOnPreview(false);
+        mPauseLoader.setUrgent(mPauseMode == PauseMode.PRE_STANDBY);
         mPauseLoading = PauseMode.PRE_STANDBY;
     }
 
     private void loadStandbyOverlays(Context context) {
         mPauseLoader = createOverlayLoader(context, mVideoSize);
         mPauseLoader.setDrawOnPreview(false);
+        // The screen being shown goes first, the others are prefetched behind it
+        mPauseLoader.setUrgent(mPauseMode == PauseMode.STANDBY);
 
         mPauseLoading = PauseMode.STANDBY;
     }
@@ -305,6 +350,7 @@ public class OverlayManager implements OverlayLoaderListener {
     private void loadPauseOverlays(Context context) {
         mPauseLoader = createOverlayLoader(context, mVideoSize);
         mPauseLoader.setDrawOnPreview(false);
+        mPauseLoader.setUrgent(mPauseMode == PauseMode.PAUSE);
 
         mPauseLoading = PauseMode.PAUSE;
     }
@@ -359,6 +405,13 @@ public class OverlayManager implements OverlayLoaderListener {
                         StreamerGLBuilder.OverlayConfig.DRAW_ON_PREVIEW);
         result.put(STANDBY_FRAME_ID, standbyOverlay);
 
+        Bitmap audioOnlyText = textUtils.createImageFromText(context.getString(R.string.audio_only_overlay));
+        StreamerGLBuilder.OverlayConfig audioOnlyOverlay =
+                new StreamerGLBuilder.OverlayConfig(audioOnlyText, 1f, 0.5f, 0.5f,
+                        StreamerGLBuilder.OverlayConfig.ScaleMode.ORIGIN, StreamerGLBuilder.OverlayConfig.PosMode.NORMALIZED,
+                        StreamerGLBuilder.OverlayConfig.DRAW_ON_PREVIEW);
+        result.put(AUDIO_ONLY_FRAME_ID, audioOnlyOverlay);
+
         return result;
     }
 
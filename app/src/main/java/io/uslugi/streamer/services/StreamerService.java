@@ -46,8 +46,12 @@ import com.wmspanel.libstream.Streamer;
 import com.wmspanel.libstream.StreamerGL;
 
 import io.uslugi.streamer.ConnectionHelper;
+import io.uslugi.streamer.ConnectionPrewarmer;
 import io.uslugi.streamer.helper.Formatter;
 import io.uslugi.streamer.R;
+import io.uslugi.streamer.ReconnectScheduler;
+import io.uslugi.streamer.conditioner.NetworkProfileStore;
+import io.uslugi.streamer.conditioner.StatsSampler;
 import io.uslugi.streamer.conditioner.StreamConditionerBase;
 import io.uslugi.streamer.data.Connection;
 import io.uslugi.streamer.log.EventLog;
@@ -66,10 +70,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Timer;
+import java.util.TimerTask;
 
 public class StreamerService extends Service implements Streamer.Listener, SensorEventListener, SntpUpdater.Listener {
 
     private static final String TAG = "StreamerService";
+    private static final long STATS_NOTIFY_INTERVAL = 5_000;
+    private static final long STATS_LOG_INTERVAL = 60_000;
 
     private StreamerGL mStreamer;
     protected boolean mBroadcastOn;
@@ -84,11 +91,15 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
     private final Map<Integer, Connection> mConnectionId = new HashMap<>();
 
     private int mRetryPending;
+    private ReconnectScheduler mReconnectScheduler;
 
     private Timer mCheckBatteryLevelTimer;
     private Timer mUpdateStatisticsTimer;
 
+    private final StatsSampler mStatsSampler = new StatsSampler();
     private StreamConditionerBase mConditioner;
+    private Formatter mFormatter;
+    private long mStatsLoggedAt;
 
     private static final String CHANNEL_ID = "com.uslugi.streamer.channel.foreground_service";
     private static final int NOTIFY_ID = 101;
@@ -230,7 +241,9 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
         if (mStreamer == null) {
             return;
         }
-        if (!MediaFileSettings.splitRecord(StreamerService.this, mStreamer)) {
+        if (MediaFileSettings.splitRecord(StreamerService.this, mStreamer)) {
+            scheduleSplit();
+        } else {
             stopRecord();
             maybeStopBroadcast();
         }
@@ -280,18 +293,22 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
 
         switch (state) {
             case INITIALIZED:
-            case CONNECTED:
             case SETUP:
             case RECORD:
                 break;
+            case CONNECTED:
+                mReconnectScheduler.onConnected(mConnectionId.get(connectionId).id);
+                ConnectionPrewarmer.getInstance().onConnected(connectionId);
+                break;
             case DISCONNECTED:
             default:
                 // save info for auto-retry
                 final Connection connection = mConnectionId.get(connectionId);
                 // remove from active connections list
                 releaseConnection(connectionId);
+                ConnectionPrewarmer.getInstance().onConnectFinished(connectionId);
 
-                final int retryTimeout = ConnectivitySettings.retryTimeoutMs(this);
+                final int retryTimeout = (int) mReconnectScheduler.onDisconnected(connection.id, status);
 
                 String errorText = Formatter.getMessage(this, connection, status, info, retryTimeout);
 
@@ -303,7 +320,8 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
 
                 // do not try to reconnect in case of wrong credentials
                 if (status != Streamer.Status.AUTH_FAIL && retryTimeout > 0) {
-                    mHandler.postDelayed(new RetryRunnable(connection), retryTimeout);
+                    mReconnectScheduler.schedule(new RetryRunnable(connection), retryTimeout,
+                            () -> ConnectionPrewarmer.getInstance().prewarm(connection.url));
                     mRetryPending++;
                 }
                 maybeStopBroadcast();
@@ -371,15 +389,11 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
         Logd(TAG, "onRecordStateChanged, state=" + state);
         switch (state) {
             case STARTED:
-                if (mRestartRecordInterval > 0) {
-                    mHandler.postDelayed(mSplitRecord, mRestartRecordInterval);
-                }
+                scheduleSplit();
                 break;
             case STOPPED:
+                // A split keeps recording in the next file, nothing to restart
                 onSaveFinished(uri, method);
-                if (mRestartRecordInterval > 0) {
-                    MediaFileSettings.startRecord(this, mStreamer, Streamer.Mode.AUDIO_ONLY);
-                }
                 break;
             case FAILED:
                 mIsRecordOn = false;
@@ -422,6 +436,9 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
         //Log.v(TAG, "onCreate");
 
         mNotificationManager = NotificationManagerCompat.from(this);
+        mFormatter = new Formatter(this);
+        mReconnectScheduler = new ReconnectScheduler(this, mHandler);
+        mReconnectScheduler.start();
 
         createNotificationChannel();
         mBuilder = new NotificationCompat.Builder(this, CHANNEL_ID);
@@ -522,6 +539,7 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
         //Log.v(TAG, "onDestroy");
 
         releaseStreamer(true);
+        mReconnectScheduler.stop();
         if (mPostmortalListener != null) {
             mPostmortalListener.serviceDied();
             mPostmortalListener = null;
@@ -602,6 +620,8 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
 
         if (connectionId != -1) {
             mConnectionId.put(connectionId, connection);
+            ConnectionPrewarmer.getInstance().onConnectStarted(connectionId);
+            mStatsSampler.addConnection(connectionId);
             if (mConditioner != null) {
                 mConditioner.addConnection(connectionId);
             }
@@ -612,6 +632,8 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
     private void releaseConnections() {
         // cancel auto-retry attempts
         mRetryPending = 0;
+        mReconnectScheduler.cancel();
+        mReconnectScheduler.reset();
         // release active connections
         final Integer[] idList = new Integer[mConnectionId.size()];
         mConnectionId.keySet().toArray(idList);
@@ -621,6 +643,7 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
         if (mConditioner != null) {
             mConditioner.stop();
         }
+        stopStatistics();
         // clear data
         mConnectionId.clear();
         // remove ongoing notification
@@ -634,12 +657,20 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
         }
         mConnectionId.remove(connectionId);
         mStreamer.releaseConnection(connectionId);
+        mStatsSampler.removeConnection(connectionId);
         if (mConditioner != null) {
             mConditioner.removeConnection(connectionId);
         }
         //Logd(TAG, String.format(Locale.US, "releaseConnection, id=%1$d", connectionId));
     }
 
+    private void scheduleSplit() {
+        mHandler.removeCallbacks(mSplitRecord);
+        if (mRestartRecordInterval > 0) {
+            mHandler.postDelayed(mSplitRecord, mRestartRecordInterval);
+        }
+    }
+
     private boolean startRecord() {
         stopRecord();
         mRestartRecordInterval = MediaFileSettings.recordingIntervalMillis();
@@ -681,12 +712,62 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
         }
     }
 
-    @SuppressLint("RestrictedApi")
-    private void releaseStreamer(boolean exitService) {
+    private final Runnable mUpdateStatistics = new Runnable() {
+        @Override
+        public void run() {
+            if (!mBroadcastOn || mConnectionId.isEmpty()) {
+                return;
+            }
+            double rate = 0.0;
+            boolean sending = false;
+            for (int id : mConnectionId.keySet()) {
+                final double connectionRate = mStatsSampler.latest(id, StatsSampler.Field.SEND_RATE);
+                if (!Double.isNaN(connectionRate)) {
+                    rate += connectionRate;
+                    sending = true;
+                }
+            }
+            if (sending) {
+                setNotificationText(getString(R.string.notification_streaming,
+                        mFormatter.bandwidthToString(Math.round(rate))));
+            }
+
+            final long curTime = System.currentTimeMillis();
+            if (curTime - mStatsLoggedAt < STATS_LOG_INTERVAL) {
+                return;
+            }
+            mStatsLoggedAt = curTime;
+            for (int id : mConnectionId.keySet()) {
+                Logd(TAG, "Connection " + id + " " + mStatsSampler.summary(id));
+            }
+        }
+    };
+
+    private void startStatistics() {
+        stopStatistics();
+        mStatsSampler.start(mStreamer);
+        mStatsLoggedAt = System.currentTimeMillis();
+        mUpdateStatisticsTimer = new Timer();
+        mUpdateStatisticsTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                mHandler.post(mUpdateStatistics);
+            }
+        }, STATS_NOTIFY_INTERVAL, STATS_NOTIFY_INTERVAL);
+    }
+
+    private void stopStatistics() {
         if (mUpdateStatisticsTimer != null) {
             mUpdateStatisticsTimer.cancel();
             mUpdateStatisticsTimer = null;
         }
+        mHandler.removeCallbacks(mUpdateStatistics);
+        mStatsSampler.stop();
+    }
+
+    @SuppressLint("RestrictedApi")
+    private void releaseStreamer(boolean exitService) {
+        stopStatistics();
         stopPowerMonitoring();
 
         stopRecord();
@@ -758,8 +839,13 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
                 }
                 mStreamer.setVideoOrientation(mOrientation);
                 mStopAction.title = getString(R.string.action_title_stop);
+                if (!mConnectionId.isEmpty()) {
+                    startStatistics();
+                }
                 if (mConditioner != null && !mConnectionId.isEmpty()) {
-                    mConditioner.start(mStreamer);
+                    mConditioner.setWarmStartStore(NetworkProfileStore.create(this,
+                            mConnectionId.values().iterator().next().url));
+                    mConditioner.start(mStreamer, mStatsSampler);
                 }
             }
             notifyClient();
@@ -815,7 +901,12 @@ public class StreamerService extends Service implements Streamer.Listener, Senso
 
     @SuppressLint("RestrictedApi")
     private void setNotificationText(int resId) {
-        final SpannableString formattedBody = formattedBody(getString(resId));
+        setNotificationText(getString(resId));
+    }
+
+    @SuppressLint("RestrictedApi")
+    private void setNotificationText(String text) {
+        final SpannableString formattedBody = formattedBody(text);
         mBuilder.setWhen(System.currentTimeMillis())
                 .setSmallIcon(mBroadcastOn ? android.R.drawable.stat_sys_upload : R.drawable.ic_stat_qwe)
                 .setStyle(new NotificationCompat.BigTextStyle().bigText(formattedBody))
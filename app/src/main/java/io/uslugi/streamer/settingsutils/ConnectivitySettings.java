@@ -4,6 +4,7 @@ import static io.uslugi.streamer.helper.Constants.Config.Advanced.DO_NOT_CHECK_N
 import static io.uslugi.streamer.helper.Constants.Config.Connection.IDLE_TIMEOUT;
 import static io.uslugi.streamer.helper.Constants.Config.Connection.MAX_CONNECTIONS;
 import static io.uslugi.streamer.helper.Constants.Config.Connection.RECONNECT_TIMEOUT;
+import static io.uslugi.streamer.helper.Constants.Config.Connection.RECONNECT_TIMEOUT_MAX;
 import static io.uslugi.streamer.helper.Constants.Config.Connection.RECONNECT_TIMEOUT_NO_NETWORK;
 
 import android.content.Context;
@@ -56,6 +57,11 @@ public class ConnectivitySettings {
         return timeoutMs(RECONNECT_TIMEOUT_NO_NETWORK);
     }
 
+    // Upper bound for the reconnect backoff
+    public static int reconnectTimeoutMaxMs() {
+        return timeoutMs(RECONNECT_TIMEOUT_MAX);
+    }
+
     private static int timeoutMs(int seconds) {
         return seconds * 1000;
     }
@@ -4,6 +4,7 @@ import static io.uslugi.streamer.helper.Constants.Config.Recording.IS_RECORDING_
 import static io.uslugi.streamer.helper.Constants.Config.Recording.IS_SPLIT_VIDEO_ENABLED;
 import static io.uslugi.streamer.helper.Constants.Config.Recording.LOG_TO_FILE;
 import static io.uslugi.streamer.helper.Constants.Config.Recording.SPLIT_VIDEO_DURATION;
+import static io.uslugi.streamer.helper.Constants.Config.Recording.UPLOAD_SEGMENTS;
 
 import android.Manifest;
 import android.content.Context;
@@ -79,6 +80,10 @@ public final class MediaFileSettings {
         return interval * 60_000;
     }
 
+    public static boolean uploadSegments() {
+        return UPLOAD_SEGMENTS;
+    }
+
     public static boolean startRecord(final Context context,
                                       final Streamer streamer) {
         return startRecord(context, streamer, Streamer.Mode.AUDIO_VIDEO);
@@ -87,12 +92,18 @@ public final class MediaFileSettings {
     public static boolean startRecord(final Context context,
                                       final Streamer streamer,
                                       final Streamer.Mode mode) {
-        return startRecord(context, streamer, mode, IS_SPLIT_VIDEO_ENABLED);
+        return startRecord(context, streamer, mode, false);
     }
 
+    /**
+     * Continues the running recording in a new file. The next file is opened while the current one
+     * keeps recording and takes over at the next key frame, so segments are contiguous. The current
+     * file is reported as STOPPED once closed, recording goes on.
+     * Checked by the unit tests' SegmentVerifier, which also takes pulled recordings.
+     */
     public static boolean splitRecord(final Context context,
                                       final Streamer streamer) {
-        return startRecord(context, streamer, Streamer.Mode.AUDIO_VIDEO, IS_SPLIT_VIDEO_ENABLED);
+        return startRecord(context, streamer, Streamer.Mode.AUDIO_VIDEO, true);
     }
 
     private static boolean startRecord(final Context context,
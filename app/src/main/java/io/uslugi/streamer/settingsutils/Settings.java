@@ -5,6 +5,11 @@ import static io.uslugi.streamer.helper.Constants.Config.Advanced.HORIZON_STREAM
 import static io.uslugi.streamer.helper.Constants.Config.Advanced.MIRROR_FRONT_CAMERA;
 import static io.uslugi.streamer.helper.Constants.Config.Display.SHOW_AUDIO_LEVEL_METER;
 import static io.uslugi.streamer.helper.Constants.Config.Display.SHOW_HORIZON_LEVEL;
+import static io.uslugi.streamer.helper.Constants.Config.Metrics.ENDPOINT_ENABLED;
+import static io.uslugi.streamer.helper.Constants.Config.Metrics.LAN_ACCESS;
+import static io.uslugi.streamer.helper.Constants.Config.Metrics.PORT;
+import static io.uslugi.streamer.helper.Constants.Config.Metrics.TELEMETRY_ENABLED;
+import static io.uslugi.streamer.helper.Constants.Config.Overlays.BITMAP_CACHE_SIZE;
 import static io.uslugi.streamer.helper.Constants.Config.Overlays.SHOW_LAYERS_ON_PREVIEW;
 import static io.uslugi.streamer.helper.Constants.Config.Overlays.STANDBY_LAYERS_ENABLED;
 import static io.uslugi.streamer.helper.Constants.Config.Advanced.USE_CUSTOM_BUFFER_DURATION;
@@ -22,6 +27,7 @@ public final class Settings {
     public static final int ADAPTIVE_BITRATE_LOG_DESC = 1;
     public static final int ADAPTIVE_BITRATE_LADDER_ASC = 2;
     public static final int ADAPTIVE_BITRATE_HYBRID = 3;
+    public static final int ADAPTIVE_BITRATE_DELAY_GRADIENT = 4;
 
     public static final int ACTION_DO_NOTHING = 0;
     public static final int ACTION_START_STOP = 1;
@@ -114,7 +120,28 @@ public final class Settings {
         return STANDBY_LAYERS_ENABLED;
     }
 
+    public static long overlayCacheBytes() {
+        return BITMAP_CACHE_SIZE * 1024L * 1024L;
+    }
+
     public static boolean fullScreenPreview() {
         return false;
     }
+
+    // Metrics endpoint
+    public static boolean metricsEndpoint() {
+        return ENDPOINT_ENABLED;
+    }
+
+    public static int metricsPort() {
+        return PORT;
+    }
+
+    public static boolean metricsLanAccess() {
+        return LAN_ACCESS;
+    }
+
+    public static boolean telemetry() {
+        return TELEMETRY_ENABLED;
+    }
 }
@@ -16,14 +16,21 @@ import io.uslugi.streamer.ui.batterymeter.BatteryMeterView;
 public class PowerIndication {
     private static final String TAG = "PowerIndication";
 
-    public static void updateBattery(Intent batteryStatus, BatteryMeterView batteryView) {
+    public static int batteryPercent(Intent batteryStatus) {
         final int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
         final int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
         final double frac = level / (double) scale;
-        final int percent = (int) Math.round(100 * frac);
+        return (int) Math.round(100 * frac);
+    }
 
+    public static boolean isCharging(Intent batteryStatus) {
         final int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
-        final boolean isCharging = status == BatteryManager.BATTERY_STATUS_CHARGING;
+        return status == BatteryManager.BATTERY_STATUS_CHARGING;
+    }
+
+    public static void updateBattery(Intent batteryStatus, BatteryMeterView batteryView) {
+        final int percent = batteryPercent(batteryStatus);
+        final boolean isCharging = isCharging(batteryStatus);
 
         batteryView.setChargeLevel(percent);
         batteryView.setCharging(isCharging);
@@ -5,6 +5,7 @@ import android.widget.Toast
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 import io.uslugi.streamer.BuildConfig
+import io.uslugi.streamer.api.CredentialLease
 import io.uslugi.streamer.api.ServerApi
 import io.uslugi.streamer.data.ErrorType
 import io.uslugi.streamer.data.Section
@@ -39,8 +40,7 @@ class SharedViewModel : ViewModel() {
             try {
                 response.let {
                     // Get successful RTMP and finalize the registration
-                    storeRtmpUrl(it?.stream_url, context)
-                    storeElection(it?.election, context)
+                    CredentialLease.store(it, context)
                     setRegistrationStatusState(RegistrationStatusState.Success)
 
                     it?.keyenc?.let { keyenc ->
@@ -99,24 +99,4 @@ class SharedViewModel : ViewModel() {
     // Set registration status state
     suspend fun setRegistrationStatusState(registrationStatusState: RegistrationStatusState) =
         _registrationStatusState.emit(registrationStatusState)
-
-    /**
-     * Store RTMP in shared preferences
-     * @param [url] the UDI to be added in shared preferences
-     */
-    private fun storeRtmpUrl(url: String?, context: Context) {
-        try {
-            SharedPreferencesHelper.storeRtmpUrl(url = url, context = context)
-        } catch (e: Exception) {
-            RegistrationStatusState.Failure(ErrorType.FAILED_STORING_RTMP_URL)
-        }
-    }
-
-    /**
-     * Store to shared preference the passed in [String]
-     * @param election - the election name
-     */
-    private fun storeElection(election: String?, context: Context) {
-        SharedPreferencesHelper.storeElection(election = election, context = context)
-    }
 }
\ No newline at end of file
@@ -0,0 +1,556 @@
+package io.uslugi.streamer.upload;
+
+import static io.uslugi.streamer.log.EventLog.Logd;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import io.objectbox.Box;
+import io.uslugi.streamer.ObjectBox;
+import io.uslugi.streamer.api.HttpClient;
+import io.uslugi.streamer.conditioner.StatsSampler;
+import io.uslugi.streamer.data.SegmentUpload;
+import io.uslugi.streamer.data.SegmentUpload_;
+import io.uslugi.streamer.helper.Constants;
+import io.uslugi.streamer.helper.SharedPreferencesHelper;
+import io.uslugi.streamer.settingsutils.MediaFileSettings;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+/**
+ * Store-and-forward upload of completed recordings.
+ * <p>
+ * Finished segments are queued in ObjectBox and sent in {@link #CHUNK_SIZE} pieces with
+ * {@code Content-Range}, the confirmed offset saved after each piece, so an outage or a restart
+ * resumes where it stopped. After a failure the server is asked for its offset first
+ * ({@code Content-Range: bytes *}{@code /total}, answered with 308 and {@code Range}).
+ * <p>
+ * Live video comes first: while connections are up one segment goes at a time, throttled to a
+ * fraction of the encoder bitrate, and nothing goes while the stream shows losses. With no live
+ * connection {@link #MAX_PARALLEL} segments go unthrottled.
+ * <p>
+ * Only a segment that is gone from the device is dropped. One the server refuses (no endpoint, auth,
+ * redirect) stays queued and is offered again after {@link #REFUSED_RETRY_DELAY}.
+ */
+public final class SegmentUploader {
+    private static final String TAG = "SegmentUploader";
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_PARALLEL = 2;
+    private static final long TICK = 5_000;
+    private static final double LIVE_RATE_FRACTION = 0.25; // Of the encoder bitrate
+    private static final long MIN_LIVE_RATE = 128_000; // bps
+    private static final double CONGESTED_RATE = 0.8; // Send rate below this part of the bitrate
+    private static final long RETRY_DELAY = 10_000;
+    private static final long MAX_RETRY_DELAY = 10 * 60_000;
+    private static final long REFUSED_RETRY_DELAY = 60 * 60_000;
+    private static final String PATH = "/segment.php";
+    private static final MediaType VIDEO = MediaType.parse("video/mp4");
+
+    enum Outcome {
+        COMPLETE, // 200/201, the server has the whole file
+        PARTIAL, // 308, Range says how much is stored
+        RETRY, // Server trouble or no answer, back off
+        REFUSED // The server won't take it for now, keep the segment and ask much later
+    }
+
+    static final class Step {
+        final Outcome outcome;
+        final String reason; // For the log
+
+        Step(Outcome outcome, String reason) {
+            this.outcome = outcome;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes of the segment at {@code position} into the start of the buffer.
+     */
+    interface ChunkSource {
+        void read(long position, byte[] buffer, int length) throws IOException;
+    }
+
+    private final Context mContext;
+    private final StatsSampler mSampler;
+    private final RateLimiter mLimiter = new RateLimiter();
+    private final Set<Long> mInFlight = ConcurrentHashMap.newKeySet();
+    private final Map<Long, Long> mRetryAt = new ConcurrentHashMap<>(); // uptime
+    private final ThreadLocal<byte[]> mBuffer = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
+    // Dispatcher thread only
+    private final Map<Integer, long[]> mLastLoss = new HashMap<>();
+    private int mParallel;
+
+    private HandlerThread mThread;
+    private volatile Handler mHandler;
+    private ExecutorService mWorkers;
+    private volatile boolean mStopped = true;
+
+    public SegmentUploader(@NonNull Context context, @NonNull StatsSampler sampler) {
+        mContext = context.getApplicationContext();
+        mSampler = sampler;
+    }
+
+    public void start() {
+        if (!MediaFileSettings.uploadSegments() || mThread != null || ObjectBox.get() == null) {
+            return;
+        }
+        mStopped = false;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mWorkers = Executors.newFixedThreadPool(MAX_PARALLEL, runnable -> {
+            final Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+        mHandler.post(mTick);
+    }
+
+    /**
+     * Chunks in flight are abandoned, their offsets are already saved.
+     */
+    public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mStopped = true;
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+        mWorkers.shutdownNow();
+        mWorkers = null;
+        mInFlight.clear();
+    }
+
+    /**
+     * Queues a completed recording. Safe to call while stopped, it goes out after the next start.
+     */
+    public void enqueue(@Nullable Uri uri, @Nullable String name) {
+        if (uri == null || ObjectBox.get() == null) {
+            return;
+        }
+        final SegmentUpload segment = new SegmentUpload();
+        segment.uri = uri.toString();
+        segment.name = !TextUtils.isEmpty(name) ? name : displayName(uri);
+        segment.created = System.currentTimeMillis();
+        box().put(segment);
+        Logd(TAG, "Queued " + segment.name);
+        final Handler handler = mHandler;
+        if (handler != null) {
+            handler.post(this::dispatch);
+        }
+    }
+
+    private String displayName(Uri uri) {
+        try (Cursor cursor = mContext.getContentResolver().query(
+                uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getString(0);
+            }
+        } catch (RuntimeException e) {
+            // File URI or provider without the column
+        }
+        return uri.getLastPathSegment();
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            updatePriority();
+            dispatch();
+            final Handler handler = mHandler;
+            if (handler != null) {
+                handler.postDelayed(this, TICK);
+            }
+        }
+    };
+
+    // Live stream first: pause on losses, throttle while on air, full speed when idle
+    private void updatePriority() {
+        boolean live = false;
+        boolean congested = false;
+        double bitrate = 0.0;
+        for (int id : mSampler.connections()) {
+            // On air from the moment the connection exists, before its first sample
+            live = true;
+            if (mSampler.count(id) == 0) {
+                continue;
+            }
+            final double sendRate = mSampler.latest(id, StatsSampler.Field.SEND_RATE);
+            final double connectionBitrate = mSampler.latest(id, StatsSampler.Field.BITRATE);
+            final long drops = Math.round(mSampler.latest(id, StatsSampler.Field.DROPS));
+            final long skipped = Math.round(mSampler.latest(id, StatsSampler.Field.SKIPPED));
+            final long[] last = mLastLoss.get(id);
+            if (last != null && (drops > last[0] || skipped > last[1])) {
+                congested = true;
+            }
+            if (connectionBitrate > 0 && sendRate < connectionBitrate * CONGESTED_RATE) {
+                congested = true;
+            }
+            mLastLoss.put(id, new long[]{drops, skipped});
+            bitrate = Math.max(bitrate, connectionBitrate);
+        }
+        mLastLoss.keySet().retainAll(mSampler.connections());
+
+        final int parallel;
+        if (!live) {
+            parallel = MAX_PARALLEL;
+            mLimiter.setRate(0);
+        } else if (congested) {
+            parallel = 0;
+            mLimiter.setRate(MIN_LIVE_RATE);
+        } else {
+            parallel = 1;
+            mLimiter.setRate(Math.max(MIN_LIVE_RATE, Math.round(bitrate * LIVE_RATE_FRACTION)));
+        }
+        if (parallel != mParallel) {
+            Logd(TAG, "Parallel uploads " + mParallel + " -> " + parallel);
+            mParallel = parallel;
+        }
+    }
+
+    private void dispatch() {
+        // Placeholder server address, nowhere to upload
+        if (mStopped || mInFlight.size() >= mParallel || HttpUrl.parse(Constants.HTTPConfig.BASE_URL) == null) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final List<SegmentUpload> queue = box().query().order(SegmentUpload_.created).build().find();
+        for (SegmentUpload segment : queue) {
+            if (mInFlight.size() >= mParallel) {
+                break;
+            }
+            final Long retryAt = mRetryAt.get(segment.id);
+            if (mInFlight.contains(segment.id) || (retryAt != null && now < retryAt)) {
+                continue;
+            }
+            final ExecutorService workers = mWorkers;
+            if (workers == null) {
+                return;
+            }
+            mInFlight.add(segment.id);
+            try {
+                workers.execute(() -> {
+                    try {
+                        sendChunk(segment);
+                    } finally {
+                        mInFlight.remove(segment.id);
+                        final Handler handler = mHandler;
+                        if (handler != null) {
+                            handler.post(this::dispatch);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Stopped meanwhile
+                mInFlight.remove(segment.id);
+                return;
+            }
+        }
+    }
+
+    // Worker thread
+    private void sendChunk(SegmentUpload segment) {
+        final HttpUrl base = HttpUrl.parse(Constants.HTTPConfig.BASE_URL);
+        final HttpUrl.Builder builder = base != null ? base.newBuilder(PATH) : null;
+        if (builder == null) {
+            return;
+        }
+        final HttpUrl url = builder.addQueryParameter("name", segment.name).build();
+        final String udi = SharedPreferencesHelper.INSTANCE.getUdi(mContext);
+        try (ParcelFileDescriptor pfd = mContext.getContentResolver().openFileDescriptor(Uri.parse(segment.uri), "r")) {
+            if (pfd == null) {
+                throw new FileNotFoundException(segment.uri);
+            }
+            segment.size = pfd.getStatSize();
+            try (FileInputStream in = new FileInputStream(pfd.getFileDescriptor())) {
+                final FileChannel channel = in.getChannel();
+                final Step step = step(HttpClient.getClient(), url, udi, segment,
+                        (position, buffer, length) -> read(channel, position, buffer, length, segment.name),
+                        mBuffer.get(), mLimiter);
+                if (!mStopped) {
+                    apply(segment, step);
+                }
+            }
+        } catch (FileNotFoundException | SecurityException e) {
+            // Deleted by the user or no longer ours, nothing to resume
+            Logd(TAG, "Dropping " + segment.name + ": " + e.getMessage());
+            remove(segment);
+        } catch (IOException e) {
+            // Closing the file, the step is done
+        }
+    }
+
+    private static void read(FileChannel channel, long position, byte[] buffer, int length, String name)
+            throws IOException {
+        final ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            final int read = channel.read(target, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + name);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * One upload step: after a failure asks for the server's offset first, then sends the chunk at
+     * the confirmed offset. Updates {@code segment.offset} and {@code segment.failures}, the caller
+     * saves the segment and schedules the next step.
+     *
+     * @param segment Segment with {@code size} set.
+     * @param buffer  Chunk buffer, its length is the chunk size.
+     */
+    static Step step(OkHttpClient client, HttpUrl url, String udi, SegmentUpload segment,
+                     ChunkSource source, byte[] buffer, RateLimiter limiter) {
+        try {
+            if (segment.failures > 0) {
+                try (Response response = client.newCall(offsetRequest(url, udi, segment.size)).execute()) {
+                    if (outcome(response.code()) != Outcome.PARTIAL) {
+                        return onResponse(segment, response, segment.size);
+                    }
+                    segment.offset = confirmedOffset(response, 0);
+                }
+            }
+            if (segment.offset >= segment.size) {
+                return new Step(Outcome.COMPLETE, null);
+            }
+            final int length = (int) Math.min(buffer.length, segment.size - segment.offset);
+            source.read(segment.offset, buffer, length);
+            final Request request = chunkRequest(url, udi, segment.offset, length, segment.size,
+                    new ThrottledBody(buffer, length, limiter));
+            try (Response response = client.newCall(request).execute()) {
+                return onResponse(segment, response, segment.offset + length);
+            }
+        } catch (IOException e) {
+            segment.failures++;
+            return new Step(Outcome.RETRY, e.getMessage());
+        }
+    }
+
+    private static Step onResponse(SegmentUpload segment, Response response, long sent) {
+        final int code = response.code();
+        final Outcome outcome = outcome(code);
+        if (outcome == Outcome.PARTIAL) {
+            segment.offset = confirmedOffset(response, sent);
+            segment.failures = 0;
+        } else if (outcome != Outcome.COMPLETE) {
+            // Ask for the offset first next time
+            segment.failures++;
+        }
+        return new Step(outcome, "HTTP " + code);
+    }
+
+    private void apply(SegmentUpload segment, Step step) {
+        switch (step.outcome) {
+            case COMPLETE:
+                complete(segment);
+                break;
+            case PARTIAL:
+                mRetryAt.remove(segment.id);
+                box().put(segment);
+                break;
+            case RETRY:
+                failed(segment, step.reason);
+                break;
+            case REFUSED:
+            default:
+                refused(segment, step.reason);
+                break;
+        }
+    }
+
+    static Request chunkRequest(HttpUrl url, String udi, long offset, int length, long size, RequestBody chunk) {
+        return new Request.Builder()
+                .url(url)
+                .header("X-Udi", udi)
+                .header("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + size)
+                .put(chunk)
+                .build();
+    }
+
+    // Asks for the stored offset, answered with 308 and Range, or 200/201 if the file is complete
+    static Request offsetRequest(HttpUrl url, String udi, long size) {
+        return new Request.Builder()
+                .url(url)
+                .header("X-Udi", udi)
+                .header("Content-Range", "bytes */" + size)
+                .put(RequestBody.create(new byte[0], VIDEO))
+                .build();
+    }
+
+    static Outcome outcome(int code) {
+        if (code == 200 || code == 201) {
+            return Outcome.COMPLETE;
+        }
+        if (code == 308) {
+            return Outcome.PARTIAL;
+        }
+        if (code >= 500 || code == 408 || code == 429) {
+            return Outcome.RETRY;
+        }
+        // 404 until the endpoint is deployed, 401/403 until the device is let in: the recording
+        // itself is fine, keep it
+        return Outcome.REFUSED;
+    }
+
+    // "Range: bytes=0-N" of a 308 response, N + 1 bytes are stored
+    static long confirmedOffset(Response response, long fallback) {
+        final String range = response.header("Range");
+        if (range == null) {
+            return fallback;
+        }
+        final int dash = range.lastIndexOf('-');
+        try {
+            return Long.parseLong(range.substring(dash + 1).trim()) + 1;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return fallback;
+        }
+    }
+
+    private void complete(SegmentUpload segment) {
+        Logd(TAG, "Uploaded " + segment.name + ", " + segment.size + " bytes");
+        remove(segment);
+    }
+
+    private void failed(SegmentUpload segment, String reason) {
+        box().put(segment);
+        final long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(segment.failures - 1, 6));
+        mRetryAt.put(segment.id, SystemClock.uptimeMillis() + delay);
+        Logd(TAG, segment.name + " failed at " + segment.offset + ": " + reason + ", retry in " + delay / 1000 + " s");
+    }
+
+    private void refused(SegmentUpload segment, String reason) {
+        box().put(segment);
+        mRetryAt.put(segment.id, SystemClock.uptimeMillis() + REFUSED_RETRY_DELAY);
+        Logd(TAG, "Server refused " + segment.name + ": " + reason + ", retry in "
+                + REFUSED_RETRY_DELAY / 60_000 + " min");
+    }
+
+    private void remove(SegmentUpload segment) {
+        box().remove(segment.id);
+        mRetryAt.remove(segment.id);
+    }
+
+    private static Box<SegmentUpload> box() {
+        return ObjectBox.get().boxFor(SegmentUpload.class);
+    }
+
+    /**
+     * Chunk body written in slices paced by the shared {@link RateLimiter}.
+     */
+    private static final class ThrottledBody extends RequestBody {
+        private static final int SLICE = 16 * 1024;
+        private final byte[] data;
+        private final int length;
+        private final RateLimiter limiter;
+
+        ThrottledBody(byte[] data, int length, RateLimiter limiter) {
+            this.data = data;
+            this.length = length;
+            this.limiter = limiter;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return VIDEO;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            for (int offset = 0; offset < length; offset += SLICE) {
+                final int count = Math.min(SLICE, length - offset);
+                if (!limiter.acquire(count)) {
+                    throw new IOException("Interrupted");
+                }
+                sink.write(data, offset, count);
+                sink.flush();
+            }
+        }
+    }
+
+    /**
+     * Token bucket shared by the workers, 0 is no limit.
+     */
+    static final class RateLimiter {
+        private static final long BURST = 250; // ms of tokens
+
+        private long mRate; // bps
+        private double mTokens; // bytes
+        private long mUpdated = SystemClock.uptimeMillis();
+
+        synchronized void setRate(long bps) {
+            mRate = bps;
+        }
+
+        /**
+         * @return false if interrupted while waiting.
+         */
+        boolean acquire(int bytes) {
+            long wait;
+            synchronized (this) {
+                final long now = SystemClock.uptimeMillis();
+                if (mRate <= 0) {
+                    mUpdated = now;
+                    return true;
+                }
+                final double bytesPerMs = mRate / 8000.0;
+                mTokens = Math.min(mTokens + (now - mUpdated) * bytesPerMs, BURST * bytesPerMs);
+                mUpdated = now;
+                mTokens -= bytes;
+                wait = mTokens < 0 ? (long) Math.ceil(-mTokens / bytesPerMs) : 0;
+            }
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package io.uslugi.streamer.conditioner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Piecewise-constant uplink capacity and loss rate over time, replayed by {@link ConditionerSimulator}.
+ */
+public final class BandwidthTrace {
+
+    private static final class Segment {
+        final long start;
+        final long capacityBps;
+        final double lossRate;
+
+        Segment(long start, long capacityBps, double lossRate) {
+            this.start = start;
+            this.capacityBps = capacityBps;
+            this.lossRate = lossRate;
+        }
+    }
+
+    private final List<Segment> mSegments = new ArrayList<>();
+    private long mDuration;
+
+    /**
+     * Appends a segment with constant capacity and loss rate.
+     *
+     * @param durationMs  Segment duration.
+     * @param capacityBps Uplink capacity in bits per second.
+     * @param lossRate    Fraction of capacity lost to retransmissions, 0..1.
+     * @return this trace.
+     */
+    public BandwidthTrace append(long durationMs, long capacityBps, double lossRate) {
+        if (durationMs <= 0) {
+            return this;
+        }
+        mSegments.add(new Segment(mDuration, capacityBps, Math.max(0.0, Math.min(1.0, lossRate))));
+        mDuration += durationMs;
+        return this;
+    }
+
+    public BandwidthTrace append(long durationMs, long capacityBps) {
+        return append(durationMs, capacityBps, 0.0);
+    }
+
+    public long duration() {
+        return mDuration;
+    }
+
+    public long capacityAt(long timeMs) {
+        final int i = segmentAt(timeMs);
+        return i < 0 ? 0 : mSegments.get(i).capacityBps;
+    }
+
+    public double lossAt(long timeMs) {
+        final int i = segmentAt(timeMs);
+        return i < 0 ? 0.0 : mSegments.get(i).lossRate;
+    }
+
+    private int segmentAt(long timeMs) {
+        int lo = 0;
+        int hi = mSegments.size() - 1;
+        int found = -1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mSegments.get(mid).start <= timeMs) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads a recorded trace. Each non-empty line is {@code time_ms,capacity_bps[,loss_rate]};
+     * lines starting with '#' are ignored. Times must be increasing, the last line ends the trace.
+     *
+     * @param reader The trace source.
+     * @return the parsed trace.
+     * @throws IOException on read errors or malformed lines.
+     */
+    public static BandwidthTrace parse(Reader reader) throws IOException {
+        final BandwidthTrace trace = new BandwidthTrace();
+        final BufferedReader br = new BufferedReader(reader);
+        long prevTime = -1;
+        long prevCapacity = 0;
+        double prevLoss = 0.0;
+        int lineNo = 0;
+        for (String line; (line = br.readLine()) != null; ) {
+            lineNo++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] parts = line.split(",");
+            try {
+                final long time = Long.parseLong(parts[0].trim());
+                final long capacity = Long.parseLong(parts[1].trim());
+                final double loss = parts.length > 2 ? Double.parseDouble(parts[2].trim()) : 0.0;
+                if (prevTime >= 0) {
+                    if (time <= prevTime) {
+                        throw new IOException(String.format(Locale.US, "line %d: time is not increasing", lineNo));
+                    }
+                    trace.append(time - prevTime, prevCapacity, prevLoss);
+                }
+                prevTime = time;
+                prevCapacity = capacity;
+                prevLoss = loss;
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException(String.format(Locale.US, "line %d: %s", lineNo, line), e);
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Capacity steps down and back up: full, then each fraction for the given time, then full again.
+     */
+    public static BandwidthTrace capacitySteps(long capacityBps, long stepMs, double... fractions) {
+        final BandwidthTrace trace = new BandwidthTrace().append(stepMs, capacityBps);
+        for (double fraction : fractions) {
+            trace.append(stepMs, Math.round(capacityBps * fraction));
+        }
+        return trace.append(stepMs, capacityBps);
+    }
+
+    /**
+     * Constant capacity with periodic bursts of heavy loss.
+     */
+    public static BandwidthTrace lossBursts(long capacityBps, long durationMs,
+                                            long burstEveryMs, long burstMs, double burstLoss) {
+        final BandwidthTrace trace = new BandwidthTrace();
+        long t = 0;
+        while (t < durationMs) {
+            final long quiet = Math.min(burstEveryMs - burstMs, durationMs - t);
+            trace.append(quiet, capacityBps);
+            t += quiet;
+            final long burst = Math.min(burstMs, durationMs - t);
+            trace.append(burst, capacityBps, burstLoss);
+            t += burst;
+        }
+        return trace;
+    }
+
+    /**
+     * Cellular handovers: short outages followed by a cell with a different random capacity.
+     */
+    public static BandwidthTrace cellularHandovers(long minCapacityBps, long maxCapacityBps, long durationMs,
+                                                   long cellMs, long outageMs, long seed) {
+        final Random random = new Random(seed);
+        final BandwidthTrace trace = new BandwidthTrace();
+        long t = 0;
+        while (t < durationMs) {
+            final long capacity = minCapacityBps
+                    + (long) (random.nextDouble() * (maxCapacityBps - minCapacityBps));
+            final long cell = Math.min(cellMs, durationMs - t);
+            trace.append(cell, capacity, random.nextDouble() * 0.02);
+            t += cell;
+            final long outage = Math.min(outageMs, durationMs - t);
+            trace.append(outage, 0);
+            t += outage;
+        }
+        return trace;
+    }
+}
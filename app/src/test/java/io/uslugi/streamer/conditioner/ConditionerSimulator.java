@@ -0,0 +1,215 @@
+package io.uslugi.streamer.conditioner;
+
+import com.wmspanel.libstream.Streamer;
+
+/**
+ * Replays bandwidth traces through a conditioner on the JVM, without a device or a network.
+ * <p>
+ * The uplink is modelled as a send buffer that is filled at the encoder bitrate and drained at
+ * the trace capacity. When the buffer holds more than {@link #SEND_BUFFER_SEC} of video the excess
+ * is dropped, which shows up as skipped frames (RTMP), dropped packets (SRT) or lower quality (RIST),
+ * the same signals the conditioners see from libstream.
+ * <p>
+ * Test-side only, see {@link ConditionerSimulatorTest}.
+ */
+public final class ConditionerSimulator {
+
+    public enum Protocol {
+        TCP, SRT, RIST
+    }
+
+    private static final long STEP_MS = 100;
+    private static final long START_TIME = 1_000_000_000L;
+    private static final int CONNECTION_ID = 1;
+    private static final double SEND_BUFFER_SEC = 2.0;
+    private static final double VIDEO_FPS = 30.0;
+    private static final int SRT_PAYLOAD = 1316;
+    private static final int SRT_HEADER = 44;
+    private static final double BASE_RTT_MS = 60.0;
+
+    private ConditionerSimulator() {
+    }
+
+    private static final class SimulatedClock implements Clock {
+        long now = START_TIME;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private static final class SimulatedLink implements StatsProvider, BitrateControl {
+        private final Protocol mProtocol;
+        int bitrate;
+        int bitrateChanges;
+
+        private double mCapacityBps;
+        private double mQueueBytes;
+        private double mSentBytes;
+        private double mSentPackets;
+        private double mDroppedPackets;
+        private double mFramesSkipped;
+        private double mQuality = 100.0;
+
+        SimulatedLink(Protocol protocol, int bitrate) {
+            mProtocol = protocol;
+            this.bitrate = bitrate;
+        }
+
+        /**
+         * Advances the link by one step and returns the number of bytes delivered.
+         */
+        double step(double capacityBps, long dtMs) {
+            mCapacityBps = capacityBps;
+            final double dt = dtMs / 1000.0;
+            mQueueBytes += bitrate / 8.0 * dt;
+            final double sent = Math.min(mQueueBytes, capacityBps / 8.0 * dt);
+            mQueueBytes -= sent;
+            mSentBytes += sent;
+            mSentPackets += sent / SRT_PAYLOAD;
+
+            double dropped = 0.0;
+            final double limit = bitrate / 8.0 * SEND_BUFFER_SEC;
+            if (mQueueBytes > limit) {
+                dropped = mQueueBytes - limit;
+                mQueueBytes = limit;
+                mDroppedPackets += dropped / SRT_PAYLOAD;
+                mFramesSkipped += dropped / (bitrate / 8.0 / VIDEO_FPS);
+            }
+            if (sent + dropped > 0.0) {
+                mQuality = 100.0 * sent / (sent + dropped);
+            }
+            return sent;
+        }
+
+        long framesSkipped() {
+            return (long) mFramesSkipped;
+        }
+
+        @Override
+        public boolean poll(int connectionId, ConnectionSample sample) {
+            sample.reset();
+            sample.bytesSent = (long) mSentBytes;
+            switch (mProtocol) {
+                case SRT:
+                    sample.hasSrt = true;
+                    sample.pktSentUnique = (long) mSentPackets;
+                    sample.byteSentUnique = (long) mSentBytes + sample.pktSentUnique * SRT_HEADER;
+                    sample.pktSndDrop = (long) mDroppedPackets;
+                    sample.mbpsBandwidth = mCapacityBps / 1_000_000.0;
+                    sample.msRTT = BASE_RTT_MS;
+                    sample.msSndBuf = mCapacityBps > 0.0
+                            ? (long) (mQueueBytes * 8.0 * 1000.0 / mCapacityBps)
+                            : (long) (SEND_BUFFER_SEC * 1000.0);
+                    break;
+                case RIST:
+                    sample.hasRist = true;
+                    sample.ristSent = (long) mSentPackets;
+                    sample.ristQuality = mQuality;
+                    break;
+                case TCP:
+                default:
+                    sample.hasTcp = true;
+                    sample.videoFramesSkipped = framesSkipped();
+                    break;
+            }
+            return true;
+        }
+
+        @Override
+        public void changeBitRate(int bitrate) {
+            if (bitrate != this.bitrate) {
+                bitrateChanges++;
+            }
+            this.bitrate = bitrate;
+        }
+
+        @Override
+        public void changeFpsRange(Streamer.FpsRange fpsRange) {
+        }
+    }
+
+    /**
+     * Replays the trace through the conditioner selected by an adaptive bitrate mode.
+     *
+     * @param mode        One of the {@code Settings.ADAPTIVE_BITRATE_*} constants, except OFF.
+     * @param fullBitrate Configured encoder bitrate in bits per second.
+     * @param trace       Uplink capacity over time.
+     * @param protocol    Which protocol statistics the conditioner receives.
+     * @return the simulation metrics.
+     */
+    public static SimulationReport run(int mode, int fullBitrate, BandwidthTrace trace, Protocol protocol) {
+        final StreamConditionerBase conditioner = StreamConditionerBase.create(mode, null);
+        if (conditioner == null) {
+            throw new IllegalArgumentException("No conditioner for adaptive bitrate mode " + mode);
+        }
+        final SimulatedClock clock = new SimulatedClock();
+        final SimulatedLink link = new SimulatedLink(protocol, fullBitrate);
+
+        conditioner.addConnection(CONNECTION_ID);
+        conditioner.startManual(link, link, clock, fullBitrate);
+
+        final long interval = conditioner.checkInterval();
+        long nextCheck = conditioner.checkDelay();
+
+        double deliveredBits = 0.0;
+        double usableBits = 0.0;
+        long overCapacityMs = 0;
+
+        double prevUsableBps = -1.0;
+        long recoveryStart = -1;
+        double recoveryTarget = 0.0;
+        int recoveries = 0;
+        long recoveryTotalMs = 0;
+        long recoveryMaxMs = 0;
+        int unrecovered = 0;
+
+        for (long t = 0; t < trace.duration(); t += STEP_MS) {
+            clock.now = START_TIME + t;
+            final double capacityBps = trace.capacityAt(t) * (1.0 - trace.lossAt(t));
+            final double usableBps = Math.min(capacityBps, fullBitrate);
+
+            deliveredBits += link.step(capacityBps, STEP_MS) * 8.0;
+            usableBits += usableBps * STEP_MS / 1000.0;
+            if (link.bitrate > capacityBps) {
+                overCapacityMs += STEP_MS;
+            }
+
+            if (prevUsableBps >= 0.0) {
+                if (usableBps > prevUsableBps * 1.1) {
+                    if (recoveryStart >= 0) {
+                        unrecovered++;
+                    }
+                    recoveryStart = t;
+                    recoveryTarget = usableBps * 0.9;
+                } else if (usableBps < prevUsableBps * 0.9 && recoveryStart >= 0) {
+                    unrecovered++;
+                    recoveryStart = -1;
+                }
+            }
+            prevUsableBps = usableBps;
+            if (recoveryStart >= 0 && link.bitrate >= recoveryTarget) {
+                final long recoveryMs = t - recoveryStart;
+                recoveries++;
+                recoveryTotalMs += recoveryMs;
+                recoveryMaxMs = Math.max(recoveryMaxMs, recoveryMs);
+                recoveryStart = -1;
+            }
+
+            if (t >= nextCheck) {
+                conditioner.tick();
+                nextCheck += interval;
+            }
+        }
+        if (recoveryStart >= 0) {
+            unrecovered++;
+        }
+        conditioner.stop();
+
+        return new SimulationReport(conditioner.getClass().getSimpleName(), protocol, trace.duration(),
+                usableBits > 0.0 ? Math.min(1.0, deliveredBits / usableBits) : 0.0,
+                link.bitrateChanges, overCapacityMs, link.framesSkipped(),
+                recoveries, recoveries > 0 ? recoveryTotalMs / recoveries : 0, recoveryMaxMs, unrecovered);
+    }
+}
@@ -0,0 +1,81 @@
+package io.uslugi.streamer.conditioner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import io.uslugi.streamer.settingsutils.Settings;
+
+import org.junit.Test;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Replays the synthetic traces through every conditioner and prints the comparison.
+ * A recorded trace ({@code time_ms,capacity_bps[,loss_rate]} per line) is replayed too when
+ * passed as {@code ./gradlew test -Dconditioner.trace=path}.
+ */
+public class ConditionerSimulatorTest {
+
+    private static final int FULL_BITRATE = 1_500_000;
+    private static final int[] MODES = {
+            Settings.ADAPTIVE_BITRATE_LOG_DESC,
+            Settings.ADAPTIVE_BITRATE_LADDER_ASC,
+            Settings.ADAPTIVE_BITRATE_HYBRID,
+            Settings.ADAPTIVE_BITRATE_DELAY_GRADIENT
+    };
+    private static final ConditionerSimulator.Protocol[] PROTOCOLS = {
+            ConditionerSimulator.Protocol.TCP, ConditionerSimulator.Protocol.SRT
+    };
+
+    @Test
+    public void capacitySteps() {
+        compare("capacity steps", BandwidthTrace.capacitySteps(2_500_000, 120_000, 0.5, 0.25, 0.6));
+    }
+
+    @Test
+    public void lossBursts() {
+        compare("loss bursts", BandwidthTrace.lossBursts(2_000_000, 600_000, 60_000, 8_000, 0.7));
+    }
+
+    @Test
+    public void cellularHandovers() {
+        compare("cellular handovers",
+                BandwidthTrace.cellularHandovers(400_000, 3_000_000, 900_000, 90_000, 3_000, 42));
+    }
+
+    @Test
+    public void recordedTrace() throws IOException {
+        final String path = System.getProperty("conditioner.trace");
+        assumeTrue(path != null);
+        try (Reader reader = new FileReader(path)) {
+            compare(path, BandwidthTrace.parse(reader));
+        }
+    }
+
+    @Test
+    public void replayIsDeterministic() {
+        final BandwidthTrace trace = BandwidthTrace.cellularHandovers(400_000, 3_000_000, 300_000, 90_000, 3_000, 7);
+        for (int mode : MODES) {
+            final String first = ConditionerSimulator.run(mode, FULL_BITRATE, trace,
+                    ConditionerSimulator.Protocol.SRT).toString();
+            final String second = ConditionerSimulator.run(mode, FULL_BITRATE, trace,
+                    ConditionerSimulator.Protocol.SRT).toString();
+            assertEquals(first, second);
+        }
+    }
+
+    private static void compare(String name, BandwidthTrace trace) {
+        System.out.println("== " + name);
+        for (ConditionerSimulator.Protocol protocol : PROTOCOLS) {
+            for (int mode : MODES) {
+                final SimulationReport report = ConditionerSimulator.run(mode, FULL_BITRATE, trace, protocol);
+                System.out.println(report);
+                assertTrue(report.toString(), report.utilisation > 0.5);
+                assertTrue(report.toString(), report.timeOverCapacityMs < report.durationMs);
+            }
+        }
+    }
+}
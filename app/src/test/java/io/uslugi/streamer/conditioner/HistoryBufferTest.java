@@ -0,0 +1,47 @@
+package io.uslugi.streamer.conditioner;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HistoryBufferTest {
+
+    private static final long WINDOW = 5 * 60_000;
+
+    @Test
+    public void keepsBaselineOlderThanWindow() {
+        final LossHistory history = new LossHistory(16, WINDOW);
+        history.add(0, 0, 0);
+        // Counters only change after 12 quiet minutes
+        history.add(12 * 60_000, 0, 20);
+
+        assertEquals(2, history.size());
+        final int i = history.lastIndexBefore(12 * 60_000 - 2_000);
+        assertEquals(0, i);
+        assertEquals(20, history.lastVideo() - history.video(i));
+    }
+
+    @Test
+    public void dropsOldestOnceNextIsPastWindow() {
+        final BitrateHistory history = new BitrateHistory(16, WINDOW);
+        history.add(0, 1_500_000);
+        history.add(1_000, 1_170_000);
+        history.add(WINDOW + 2_000, 900_000);
+
+        // The sample at 0 is superseded by the one at 1000, still the newest before the window
+        assertEquals(2, history.size());
+        assertEquals(1_000, history.ts(0));
+        assertEquals(1_170_000, history.bitrate(0));
+    }
+
+    @Test
+    public void capacityStillBounds() {
+        final BitrateHistory history = new BitrateHistory(4, WINDOW);
+        for (int i = 0; i < 10; i++) {
+            history.add(i, i);
+        }
+        assertEquals(4, history.size());
+        assertEquals(6, history.bitrate(0));
+        assertEquals(9, history.lastBitrate());
+    }
+}
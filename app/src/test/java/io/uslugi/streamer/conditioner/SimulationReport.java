@@ -0,0 +1,50 @@
+package io.uslugi.streamer.conditioner;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Outcome of replaying one bandwidth trace through one conditioner.
+ */
+public final class SimulationReport {
+    public final String algorithm;
+    public final ConditionerSimulator.Protocol protocol;
+    public final long durationMs;
+    // Delivered bits divided by the bits the link could have carried, capped at the full bitrate
+    public final double utilisation;
+    public final int bitrateChanges;
+    // Time the encoder bitrate exceeded the link capacity
+    public final long timeOverCapacityMs;
+    public final long framesSkipped;
+    // Time from a capacity increase until the bitrate reached 90% of the usable capacity
+    public final int recoveries;
+    public final long meanRecoveryMs;
+    public final long maxRecoveryMs;
+    public final int unrecovered;
+
+    SimulationReport(String algorithm, ConditionerSimulator.Protocol protocol, long durationMs,
+                     double utilisation, int bitrateChanges, long timeOverCapacityMs, long framesSkipped,
+                     int recoveries, long meanRecoveryMs, long maxRecoveryMs, int unrecovered) {
+        this.algorithm = algorithm;
+        this.protocol = protocol;
+        this.durationMs = durationMs;
+        this.utilisation = utilisation;
+        this.bitrateChanges = bitrateChanges;
+        this.timeOverCapacityMs = timeOverCapacityMs;
+        this.framesSkipped = framesSkipped;
+        this.recoveries = recoveries;
+        this.meanRecoveryMs = meanRecoveryMs;
+        this.maxRecoveryMs = maxRecoveryMs;
+        this.unrecovered = unrecovered;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%-36s %-4s util=%5.1f%% changes=%3d over=%6.1fs skipped=%6d recovery=%d mean=%5.1fs max=%5.1fs unrecovered=%d",
+                algorithm, protocol, utilisation * 100.0, bitrateChanges, timeOverCapacityMs / 1000.0,
+                framesSkipped, recoveries, meanRecoveryMs / 1000.0, maxRecoveryMs / 1000.0, unrecovered);
+    }
+}
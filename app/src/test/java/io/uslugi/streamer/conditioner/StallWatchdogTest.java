@@ -0,0 +1,223 @@
+package io.uslugi.streamer.conditioner;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class StallWatchdogTest {
+
+    private static final long TICK = StatsSampler.INTERVAL;
+
+    /**
+     * One connection as the sampler sees it, counters advanced every tick.
+     */
+    private static final class Link {
+        final int id;
+        long bytes;
+        long losses;
+        long rate = 50_000; // Bytes per tick
+        long lossRate; // Per tick
+        long sendBuffer; // ms
+
+        Link(int id) {
+            this.id = id;
+        }
+
+        Link stall() {
+            rate = 0;
+            return this;
+        }
+    }
+
+    private final List<String> mCalls = new ArrayList<>();
+    private long mNow = 1_000_000;
+    private StallWatchdog mWatchdog;
+
+    @Before
+    public void setUp() {
+        mWatchdog = new StallWatchdog(new StatsSampler(), new StallWatchdog.Recovery() {
+            @Override
+            public void refreshEncoder() {
+                mCalls.add("encoder");
+            }
+
+            @Override
+            public void restartConnection(int connectionId) {
+                mCalls.add("restart " + connectionId);
+            }
+
+            @Override
+            public void restartPipeline() {
+                mCalls.add("pipeline");
+            }
+        }, () -> mNow);
+    }
+
+    @Test
+    public void encoderStallEscalates() {
+        final Link link = new Link(1);
+        advance(5_000, link);
+        link.stall();
+        advance(StallWatchdog.STALL_TIMEOUT, link);
+        assertEquals(StallWatchdog.Stage.ENCODER, mWatchdog.stage());
+        assertEquals(Collections.singletonList("encoder"), mCalls);
+
+        advance(StallWatchdog.ENCODER_GRACE, link);
+        assertEquals(StallWatchdog.Stage.CONNECTION, mWatchdog.stage());
+        assertEquals(Arrays.asList("encoder", "restart 1"), mCalls);
+
+        // The new connection gets its handshake out, then nothing
+        final Link reconnected = new Link(2);
+        advance(TICK, reconnected);
+        reconnected.stall();
+        advance(StallWatchdog.RESTART_GRACE, reconnected);
+        assertEquals(StallWatchdog.Stage.PIPELINE, mWatchdog.stage());
+        assertEquals(Arrays.asList("encoder", "restart 1", "pipeline"), mCalls);
+
+        advance(StallWatchdog.PIPELINE_GRACE, reconnected);
+        assertEquals(StallWatchdog.Stage.FAILED, mWatchdog.stage());
+        advance(StallWatchdog.COOLDOWN, reconnected);
+        assertEquals(StallWatchdog.Stage.NONE, mWatchdog.stage());
+        assertEquals(3, mCalls.size());
+    }
+
+    @Test
+    public void recoversAfterEncoderRefresh() {
+        final Link link = new Link(1);
+        advance(5_000, link);
+        link.stall();
+        advance(StallWatchdog.STALL_TIMEOUT, link);
+        link.rate = 50_000;
+        advance(StallWatchdog.CONFIRM + TICK, link);
+        assertEquals(StallWatchdog.Stage.NONE, mWatchdog.stage());
+        assertEquals(Collections.singletonList("encoder"), mCalls);
+    }
+
+    @Test
+    public void rtmpUplinkStallIsLeftAlone() {
+        final Link link = new Link(1);
+        advance(5_000, link);
+        // The socket doesn't drain, libstream skips the frames the encoder keeps producing
+        link.stall().lossRate = 15;
+        advance(60_000, link);
+        assertEquals(StallWatchdog.Stage.CONGESTED, mWatchdog.stage());
+        assertEquals(Collections.emptyList(), mCalls);
+
+        link.rate = 50_000;
+        link.lossRate = 0;
+        advance(StallWatchdog.CONFIRM + TICK, link);
+        assertEquals(StallWatchdog.Stage.NONE, mWatchdog.stage());
+        assertEquals(Collections.emptyList(), mCalls);
+    }
+
+    @Test
+    public void srtSendBufferCountsAsCongestion() {
+        final Link link = new Link(1);
+        link.sendBuffer = 120;
+        advance(5_000, link);
+        link.stall().sendBuffer = 2_000;
+        advance(60_000, link);
+        assertEquals(StallWatchdog.Stage.CONGESTED, mWatchdog.stage());
+        assertEquals(Collections.emptyList(), mCalls);
+    }
+
+    @Test
+    public void congestionStopsEscalation() {
+        final Link link = new Link(1);
+        advance(5_000, link);
+        link.stall();
+        advance(StallWatchdog.STALL_TIMEOUT, link);
+        assertEquals(StallWatchdog.Stage.ENCODER, mWatchdog.stage());
+
+        // The refreshed encoder produces again but the uplink is gone
+        link.lossRate = 15;
+        advance(60_000, link);
+        assertEquals(StallWatchdog.Stage.CONGESTED, mWatchdog.stage());
+        assertEquals(Collections.singletonList("encoder"), mCalls);
+    }
+
+    @Test
+    public void drainedQueueEscalates() {
+        final Link link = new Link(1);
+        advance(5_000, link);
+        link.stall().lossRate = 15;
+        advance(StallWatchdog.STALL_TIMEOUT, link);
+        assertEquals(StallWatchdog.Stage.CONGESTED, mWatchdog.stage());
+
+        // Nothing left to skip either, the encoder has stopped too
+        link.lossRate = 0;
+        advance(StallWatchdog.STALL_TIMEOUT, link);
+        assertEquals(StallWatchdog.Stage.ENCODER, mWatchdog.stage());
+        assertEquals(Collections.singletonList("encoder"), mCalls);
+    }
+
+    @Test
+    public void singleStalledConnectionIsRestarted() {
+        final Link moving = new Link(1);
+        final Link stuck = new Link(2);
+        advance(5_000, moving, stuck);
+        stuck.stall();
+        advance(StallWatchdog.STALL_TIMEOUT, moving, stuck);
+        assertEquals(StallWatchdog.Stage.CONNECTION, mWatchdog.stage());
+        assertEquals(Collections.singletonList("restart 2"), mCalls);
+    }
+
+    @Test
+    public void restartedConnectionMustComeBack() {
+        final Link moving = new Link(1);
+        final Link stuck = new Link(2);
+        advance(5_000, moving, stuck);
+        stuck.stall();
+        advance(StallWatchdog.STALL_TIMEOUT, moving, stuck);
+        assertEquals(StallWatchdog.Stage.CONNECTION, mWatchdog.stage());
+
+        // Only the connection that was fine is moving, the replacement isn't up yet
+        advance(StallWatchdog.CONFIRM + TICK, moving);
+        assertEquals(StallWatchdog.Stage.CONNECTION, mWatchdog.stage());
+
+        final Link replacement = new Link(3);
+        advance(StallWatchdog.CONFIRM + TICK, moving, replacement);
+        assertEquals(StallWatchdog.Stage.NONE, mWatchdog.stage());
+        assertEquals(Collections.singletonList("restart 2"), mCalls);
+    }
+
+    @Test
+    public void unarmedReplacementEscalates() {
+        final Link moving = new Link(1);
+        final Link stuck = new Link(2);
+        advance(5_000, moving, stuck);
+        stuck.stall();
+        advance(StallWatchdog.STALL_TIMEOUT, moving, stuck);
+
+        // Reconnected but nothing gets through
+        advance(StallWatchdog.RESTART_GRACE, moving, new Link(3).stall());
+        assertEquals(StallWatchdog.Stage.PIPELINE, mWatchdog.stage());
+        assertEquals(Arrays.asList("restart 2", "pipeline"), mCalls);
+    }
+
+    @Test
+    public void noStallBeforeFirstBytes() {
+        final Link idle = new Link(1).stall();
+        advance(60_000, idle);
+        assertEquals(StallWatchdog.Stage.NONE, mWatchdog.stage());
+        assertEquals(Collections.emptyList(), mCalls);
+    }
+
+    private void advance(long ms, Link... links) {
+        for (long end = mNow + ms; mNow < end; ) {
+            mNow += TICK;
+            for (Link link : links) {
+                link.bytes += link.rate;
+                link.losses += link.lossRate;
+                mWatchdog.onProgress(mNow, link.id, link.bytes, link.losses, link.sendBuffer);
+            }
+            mWatchdog.evaluate(mNow);
+        }
+    }
+}
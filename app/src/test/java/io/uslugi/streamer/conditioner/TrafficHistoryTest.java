@@ -0,0 +1,119 @@
+package io.uslugi.streamer.conditioner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TrafficHistoryTest {
+
+    @Test
+    public void averageAndVarianceOverWindow() {
+        final TrafficHistory history = new TrafficHistory(4);
+        long counter = 0;
+        for (long delta : new long[]{100, 1, 2, 3, 4}) {
+            counter += delta;
+            history.put(counter);
+        }
+        // The first delta left the window
+        assertEquals(4, history.size());
+        assertEquals(4, history.last());
+        assertEquals(2.5, history.avg(), 1e-9);
+        assertEquals(5.0 / 3.0, history.variance(), 1e-9);
+    }
+
+    @Test
+    public void counterResetCountsAsZero() {
+        final TrafficHistory history = new TrafficHistory(4);
+        history.put(1_000);
+        history.put(10);
+        assertEquals(0, history.last());
+    }
+
+    @Test
+    public void percentileOverWindow() {
+        final TrafficHistory history = new TrafficHistory(4);
+        assertEquals(0, history.percentile(50));
+        long counter = 0;
+        for (long delta : new long[]{100, 40, 10, 30, 20}) {
+            counter += delta;
+            history.put(counter);
+        }
+        // Window is 40, 10, 30, 20
+        assertEquals(10, history.percentile(0));
+        assertEquals(10, history.percentile(10));
+        assertEquals(20, history.percentile(50));
+        assertEquals(30, history.percentile(51));
+        assertEquals(40, history.percentile(100));
+        // Doesn't disturb the window
+        assertEquals(25.0, history.avg(), 1e-9);
+        assertEquals(20, history.last());
+    }
+
+    @Test
+    public void percentileMatchesSorting() {
+        final Random random = new Random(7);
+        for (int capacity : new int[]{1, 2, 5, 16, 101}) {
+            final TrafficHistory history = new TrafficHistory(capacity);
+            final long[] deltas = new long[3 * capacity];
+            long counter = 0;
+            for (int i = 0; i < deltas.length; i++) {
+                // Few distinct values, so equal keys get exercised too
+                deltas[i] = random.nextInt(8) * 1_000;
+                counter += deltas[i];
+                history.put(counter);
+                final long[] window = Arrays.copyOfRange(deltas, Math.max(0, i + 1 - capacity), i + 1);
+                Arrays.sort(window);
+                for (double p = 0; p <= 100; p += 12.5) {
+                    final int rank = (int) Math.ceil(p / 100.0 * window.length);
+                    assertEquals("capacity " + capacity + " p" + p,
+                            window[Math.max(0, rank - 1)], history.percentile(p));
+                }
+            }
+        }
+    }
+
+    /**
+     * Microbenchmark: the conditioner calls put(), avg()/variance() and percentile() on every check,
+     * they must not allocate. Prints the cost per operation.
+     */
+    @Test
+    public void doesNotAllocate() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        final long thread = Thread.currentThread().getId();
+
+        final TrafficHistory history = new TrafficHistory(100);
+        final int ops = 2_000_000;
+        double sink = run(history, ops); // Warm-up
+
+        final long allocated = threads.getThreadAllocatedBytes(thread);
+        final long start = System.nanoTime();
+        sink += run(history, ops);
+        final long elapsed = System.nanoTime() - start;
+        final long bytes = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        System.out.printf("TrafficHistory put()+avg()+variance()+percentile(): %.1f ns/op, %.3f B/op (%s)%n",
+                (double) elapsed / ops, (double) bytes / ops, sink > 0 ? "ok" : "?");
+        // Allow for the measurement itself, far below one object per op
+        assertTrue("allocated " + bytes + " bytes", bytes < 4096);
+    }
+
+    private static double run(TrafficHistory history, int ops) {
+        double sink = 0;
+        long counter = 0;
+        for (int i = 0; i < ops; i++) {
+            counter += 1_000 + (i & 0xff);
+            history.put(counter);
+            sink += history.avg() + history.variance() + history.percentile(10);
+        }
+        return sink;
+    }
+}
@@ -0,0 +1,56 @@
+package io.uslugi.streamer.log;
+
+import static org.junit.Assert.assertEquals;
+
+import com.wmspanel.libstream.Streamer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class EventLogTest {
+
+    private static final int PRODUCERS = 4;
+
+    @Test
+    public void everyBurstIsWritten() throws InterruptedException {
+        final EventLog log = EventLog.getInstance();
+        // Short bursts racing the writer going idle, a missed wakeup leaves one stuck
+        for (int round = 0; round < 200; round++) {
+            final int events = round % 7 + 1;
+            final String tag = "EventLogTest" + round;
+            final List<Thread> threads = new ArrayList<>();
+            for (int p = 0; p < PRODUCERS; p++) {
+                final Thread thread = new Thread(() -> {
+                    for (int i = 0; i < events; i++) {
+                        log.put(Streamer.LoggerListener.Severity.INFO, tag, "event");
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            final long deadline = System.currentTimeMillis() + 1_000;
+            int written;
+            while ((written = count(log, tag)) < PRODUCERS * events && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals("round " + round, PRODUCERS * events, written);
+        }
+    }
+
+    private static int count(EventLog log, String tag) {
+        final StringBuilder sb = new StringBuilder();
+        log.read(0, null, tag, sb);
+        int lines = 0;
+        for (int i = 0; i < sb.length(); i++) {
+            if (sb.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,101 @@
+package io.uslugi.streamer.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes chunks with {@link EventJournal} and reads them back. Pulled chunks are printed as text
+ * when passed as {@code ./gradlew test -Djournal.chunks=a.ulog,b.ulog,...}.
+ */
+public class JournalDecoderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        final File chunk = write(3);
+        try (JournalDecoder decoder = new JournalDecoder(new FileInputStream(chunk))) {
+            for (int i = 0; i < 3; i++) {
+                final JournalDecoder.Record record = decoder.next();
+                assertEquals(1_000L + i, record.time);
+                assertEquals(i % 3, record.severity);
+                assertEquals("Tag" + i, record.tag);
+                assertEquals("Съобщение " + i, record.message);
+            }
+            assertNull(decoder.next());
+            assertFalse(decoder.torn());
+        }
+    }
+
+    @Test
+    public void stopsAtTornRecord() throws IOException {
+        final File chunk = write(3);
+        // A process killed in the middle of the last record
+        try (RandomAccessFile file = new RandomAccessFile(chunk, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        try (JournalDecoder decoder = new JournalDecoder(new FileInputStream(chunk))) {
+            assertEquals("Tag0", decoder.next().tag);
+            assertEquals("Tag1", decoder.next().tag);
+            assertNull(decoder.next());
+            assertTrue(decoder.torn());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        final File file = mFolder.newFile("other.ulog");
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.writeBytes("PK\u0003\u0004");
+        }
+        new JournalDecoder(new FileInputStream(file)).close();
+    }
+
+    @Test
+    public void pulledChunks() throws IOException {
+        final String paths = System.getProperty("journal.chunks");
+        assumeTrue(paths != null);
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        for (String path : paths.split(",")) {
+            try (JournalDecoder decoder = new JournalDecoder(new FileInputStream(path))) {
+                for (JournalDecoder.Record record; (record = decoder.next()) != null; ) {
+                    System.out.println(format.format(new Date(record.time)) + " "
+                            + JournalDecoder.severity(record.severity) + " " + record.tag + ": " + record.message);
+                }
+                if (decoder.torn()) {
+                    System.out.println("-- " + path + " ends with a torn record");
+                }
+            }
+        }
+    }
+
+    private File write(int records) throws IOException {
+        final List<File> closed = new ArrayList<>();
+        final EventJournal journal = new EventJournal(mFolder.newFolder("log"), closed::add);
+        for (int i = 0; i < records; i++) {
+            journal.append(1_000L + i, i % 3, "Tag" + i, "Съобщение " + i);
+        }
+        journal.flush(1_000L + records);
+        journal.close();
+        assertEquals(1, closed.size());
+        return closed.get(0);
+    }
+}
@@ -0,0 +1,151 @@
+package io.uslugi.streamer.metrics;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.wmspanel.libstream.Streamer;
+
+import org.junit.Test;
+
+import io.uslugi.streamer.api.HttpMetrics;
+import io.uslugi.streamer.conditioner.StatsProvider;
+import io.uslugi.streamer.conditioner.StatsSampler;
+import io.uslugi.streamer.data.Connection;
+import io.uslugi.streamer.log.EventLog;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MetricsCollectorTest {
+
+    private final StatsSampler mSampler = new StatsSampler();
+    private final Map<Integer, Connection> mConnections = new LinkedHashMap<>();
+    private final Map<Integer, Streamer.ConnectionState> mStates = new HashMap<>();
+    private final Map<String, HttpMetrics.Endpoint> mHttp = new HashMap<>();
+    private final MetricsSnapshot mSnapshot = new MetricsSnapshot();
+    private long mUptime = 10_000;
+
+    @Test
+    public void fillsFromSampler() {
+        add(1, "SIK", Streamer.ConnectionState.RECORD);
+        mSampler.setFps(30);
+        for (int i = 1; i <= 3; i++) {
+            mSampler.setBitrate(1_000_000 * i);
+            sample((id, sample) -> {
+                sample.reset();
+                sample.hasSrt = true;
+                sample.bytesSent = mUptime * 100;
+                sample.mbpsBandwidth = 5.0;
+                sample.msRTT = 42;
+                sample.pktSndDrop = 7;
+                return true;
+            });
+        }
+        collect();
+
+        final String text = prometheus();
+        assertTrue(text, text.contains("streamer_encoder_fps 30\n"));
+        assertTrue(text, text.contains("streamer_connection_info{id=\"1\",name=\"SIK\",state=\"RECORD\"} 1\n"));
+        assertTrue(text, text.contains("streamer_bytes_sent_total{id=\"1\"} 1150000\n"));
+        // 50 000 bytes in 500 ms
+        assertTrue(text, text.contains("streamer_send_rate_bps{id=\"1\"} 800000\n"));
+        assertTrue(text, text.contains("streamer_bandwidth_bps{id=\"1\"} 5000000\n"));
+        assertTrue(text, text.contains("streamer_rtt_ms{id=\"1\"} 42\n"));
+        assertTrue(text, text.contains("streamer_dropped_packets_total{id=\"1\"} 7\n"));
+        assertTrue(text, text.contains("streamer_bitrate_bps{id=\"1\"} 3000000\n"));
+        final String json = json();
+        assertTrue(json, json.contains("\"history_interval_ms\":" + StatsSampler.INTERVAL));
+        assertTrue(json, json.contains("\"bitrate_history\":[1000000,2000000,3000000]}"));
+    }
+
+    @Test
+    public void notYetSampledRendersZero() {
+        add(1, null, null);
+        // The connection is in the sampler but no tick has run since
+        collect();
+        final String text = prometheus();
+        assertTrue(text, text.contains("streamer_connection_info{id=\"1\",name=\"\",state=\"\"} 1\n"));
+        assertTrue(text, text.contains("streamer_bytes_sent_total{id=\"1\"} 0\n"));
+        assertTrue(text, text.contains("streamer_rtt_ms{id=\"1\"} 0\n"));
+        assertTrue(json(), json().contains("\"bitrate_history\":[]}"));
+    }
+
+    @Test
+    public void extraConnectionsAreLeftOut() {
+        for (int id = 1; id <= MetricsSnapshot.MAX_CONNECTIONS + 2; id++) {
+            add(id, "link " + id, Streamer.ConnectionState.CONNECTED);
+        }
+        sample((id, sample) -> {
+            sample.reset();
+            sample.bytesSent = 1_000L * id;
+            return true;
+        });
+        collect();
+        final String text = prometheus();
+        for (int id = 1; id <= MetricsSnapshot.MAX_CONNECTIONS; id++) {
+            assertTrue(text, text.contains("streamer_bytes_sent_total{id=\"" + id + "\"} " + 1_000 * id + "\n"));
+        }
+        assertFalse(text, text.contains("id=\"" + (MetricsSnapshot.MAX_CONNECTIONS + 1) + "\""));
+
+        // Fewer connections on the next tick, the old slots are not rendered again
+        mConnections.clear();
+        add(2, "link 2", Streamer.ConnectionState.CONNECTED);
+        collect();
+        assertFalse(prometheus(), prometheus().contains("id=\"1\""));
+    }
+
+    @Test
+    public void fillsHttpAndLog() throws InterruptedException {
+        for (String path : new String[]{"api.example.com/z.php", "api.example.com/auth.php"}) {
+            final HttpMetrics.Endpoint endpoint = new HttpMetrics.Endpoint();
+            endpoint.setCalls(4);
+            endpoint.setNewConnections(2);
+            endpoint.setTlsMs(90);
+            mHttp.put(path, endpoint);
+        }
+        final String marker = "Collector test " + System.nanoTime();
+        EventLog.Logd("MetricsCollectorTest", marker);
+        // The event log writes on its own thread
+        for (int i = 0; i < 100 && !EventLog.getInstance().tail(1).contains(marker); i++) {
+            Thread.sleep(10);
+        }
+        collect();
+
+        final String text = prometheus();
+        assertTrue(text, text.contains("streamer_http_calls_total{endpoint=\"api.example.com/auth.php\"} 4\n"
+                + "streamer_http_calls_total{endpoint=\"api.example.com/z.php\"} 4\n"));
+        assertTrue(text, text.contains("streamer_http_tls_ms{endpoint=\"api.example.com/auth.php\"} 45\n"));
+        assertTrue(mSnapshot.logTail, mSnapshot.logTail.contains(marker));
+        assertTrue(mSnapshot.logTail.split("\n").length <= MetricsCollector.LOG_LINES);
+    }
+
+    private void add(int id, String name, Streamer.ConnectionState state) {
+        final Connection connection = new Connection();
+        connection.name = name;
+        mConnections.put(id, connection);
+        if (state != null) {
+            mStates.put(id, state);
+        }
+        mSampler.addConnection(id);
+    }
+
+    private void sample(StatsProvider provider) {
+        mUptime += StatsSampler.INTERVAL;
+        mSampler.sample(provider, mUptime);
+    }
+
+    private void collect() {
+        MetricsCollector.collect(mSnapshot, mSampler, mConnections, mStates, mHttp, EventLog.getInstance());
+        mSnapshot.publish();
+    }
+
+    private String prometheus() {
+        return new String(mSnapshot.prometheus(), StandardCharsets.UTF_8);
+    }
+
+    private String json() {
+        return new String(mSnapshot.json(), StandardCharsets.UTF_8);
+    }
+}
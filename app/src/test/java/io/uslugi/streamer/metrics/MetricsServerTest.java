@@ -0,0 +1,143 @@
+package io.uslugi.streamer.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+public class MetricsServerTest {
+
+    private MetricsSnapshot mSnapshot;
+    private MetricsServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mSnapshot = new MetricsSnapshot();
+        fillLikeStreamer(mSnapshot);
+        mSnapshot.publish();
+        mServer = new MetricsServer(mSnapshot, 0, false);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void rendersPrometheus() {
+        final String text = new String(mSnapshot.prometheus(), StandardCharsets.UTF_8);
+        assertTrue(text, text.contains("# TYPE streamer_broadcasting gauge\nstreamer_broadcasting 1\n"));
+        assertTrue(text, text.contains("streamer_encoder_fps 29.970\n"));
+        assertTrue(text, text.contains("streamer_connection_info{id=\"1\",name=\"SIK \\\"12\\\"\",state=\"CONNECTED\"} 1\n"));
+        assertTrue(text, text.contains("# TYPE streamer_bytes_sent_total counter\n"
+                + "streamer_bytes_sent_total{id=\"1\"} 1048576\n"
+                + "streamer_bytes_sent_total{id=\"2\"} 0\n"));
+        // NaN from a connection without SRT stats renders as 0
+        assertTrue(text, text.contains("streamer_rtt_ms{id=\"2\"} 0\n"));
+        assertTrue(text, text.contains("# TYPE streamer_http_calls_total counter\n"
+                + "streamer_http_calls_total{endpoint=\"api.example.com/auth.php\"} 3\n"));
+        assertTrue(text, text.contains("streamer_http_tls_ms{endpoint=\"api.example.com/auth.php\"} 45\n"));
+    }
+
+    @Test
+    public void rendersJson() {
+        final String json = new String(mSnapshot.json(), StandardCharsets.UTF_8);
+        assertTrue(json, json.startsWith("{\"timestamp\":1700000000000,\"broadcasting\":true,\"recording\":false,"));
+        assertTrue(json, json.contains("{\"id\":1,\"name\":\"SIK \\\"12\\\"\",\"state\":\"CONNECTED\",\"bytes_sent\":1048576,"));
+        assertTrue(json, json.contains("\"bitrate_history\":[2000000,1500000]}"));
+        assertTrue(json, json.contains(",\"http\":[{\"endpoint\":\"api.example.com/auth.php\",\"calls\":3,"
+                + "\"failures\":1,\"new_connections\":2,\"dns_ms\":12,\"connect_ms\":30,\"tls_ms\":45,\"ttfb_ms\":180}],"));
+        assertTrue(json, json.endsWith(",\"log\":\"line 1\\nline\\t2\\u0001\"}"));
+    }
+
+    @Test
+    public void servesLastPublished() throws IOException {
+        String response = get("GET /metrics HTTP/1.0");
+        assertTrue(response, response.startsWith("HTTP/1.0 200 OK\r\n"));
+        assertTrue(response, response.contains("Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"));
+        assertTrue(response, response.endsWith(new String(mSnapshot.prometheus(), StandardCharsets.UTF_8)));
+
+        mSnapshot.recording = true;
+        // Not published yet, the scrape still sees the old bodies
+        response = get("GET /metrics.json?pretty HTTP/1.1");
+        assertTrue(response, response.contains("Content-Type: application/json; charset=utf-8\r\n"));
+        assertTrue(response, response.contains("\"recording\":false"));
+
+        mSnapshot.publish();
+        response = get("GET /metrics.json HTTP/1.1");
+        assertTrue(response, response.contains("\"recording\":true"));
+    }
+
+    @Test
+    public void rejectsOtherRequests() throws IOException {
+        assertEquals("HTTP/1.0 404 Not Found", statusLine(get("GET /favicon.ico HTTP/1.0")));
+        assertEquals("HTTP/1.0 405 Method Not Allowed", statusLine(get("POST /metrics HTTP/1.0")));
+    }
+
+    // What MainActivityBase fills in on a statistics tick
+    private static void fillLikeStreamer(MetricsSnapshot snapshot) {
+        snapshot.timestamp = 1_700_000_000_000L;
+        snapshot.historyInterval = 1_000;
+        snapshot.broadcasting = true;
+        snapshot.fps = 29.97;
+        snapshot.batteryPercent = 80;
+        snapshot.logTail = "line 1\nline\t2\u0001";
+
+        snapshot.clearConnections();
+        final MetricsSnapshot.ConnectionMetrics srt = snapshot.addConnection(1);
+        srt.name = "SIK \"12\"";
+        srt.state = "CONNECTED";
+        srt.bytesSent = 1_048_576;
+        srt.rtt = 42;
+        srt.bitrate = 2_000_000;
+        srt.bitrateHistory[srt.historySize++] = 2_000_000;
+        srt.bitrateHistory[srt.historySize++] = 1_500_000;
+
+        final MetricsSnapshot.ConnectionMetrics rtmp = snapshot.addConnection(2);
+        rtmp.name = "backup";
+        rtmp.state = "INITIALIZED";
+        rtmp.rtt = Double.NaN;
+
+        snapshot.clearEndpoints();
+        final MetricsSnapshot.EndpointMetrics auth = snapshot.addEndpoint("api.example.com/auth.php");
+        auth.calls = 3;
+        auth.failures = 1;
+        auth.newConnections = 2;
+        auth.dnsMs = 12;
+        auth.connectMs = 30;
+        auth.tlsMs = 45;
+        auth.ttfbMs = 180;
+    }
+
+    private String get(String requestLine) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServer.port())) {
+            socket.setSoTimeout(5_000);
+            final OutputStream out = socket.getOutputStream();
+            out.write((requestLine + "\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            final InputStream in = socket.getInputStream();
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+            }
+            return new String(response.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String statusLine(String response) {
+        return response.substring(0, response.indexOf("\r\n"));
+    }
+}
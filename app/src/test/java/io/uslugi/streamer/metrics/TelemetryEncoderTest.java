@@ -0,0 +1,118 @@
+package io.uslugi.streamer.metrics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+public class TelemetryEncoderTest {
+
+    private static final long START = 1_700_000_000_000L;
+
+    @Test
+    public void roundTripsBatch() throws IOException {
+        final TelemetryEncoder encoder = new TelemetryEncoder(START);
+        // send rate, bitrate, bandwidth, RTT, drops, skipped, fps
+        encoder.addSample(START + 500, 1, new long[]{4_000, 4_500, 6_000, 40, 0, 0, 300});
+        encoder.addSample(START + 520, 2, new long[]{900, 4_500, 1_200, 180, 3, 10, 300});
+        // Link 1 degrades, every field that can falls
+        encoder.addSample(START + 1_500, 1, new long[]{1_200, 2_000, 1_500, 35, 4, 120, 245});
+        encoder.addSample(START + 1_520, 2, new long[]{950, 2_000, 1_100, 170, 3, 10, 245});
+        // Logged on another thread before the last sample was taken
+        encoder.addEvent(START + 1_490, "Conditioner", "Bitrate 4500 -> 2000 kbps");
+        encoder.addEvent(START + 2_000, null, null);
+        encoder.addSample(START + 2_500, 1, new long[]{-5, 1L << 40, 0, 0, 4, 120, 0});
+        assertEquals(7, encoder.records());
+
+        try (TelemetryDecoder decoder = decode(encoder.finish())) {
+            assertEquals(START, decoder.startTime());
+            assertSample(decoder.next(), START + 500, 1, 4_000, 4_500, 6_000, 40, 0, 0, 300);
+            assertSample(decoder.next(), START + 520, 2, 900, 4_500, 1_200, 180, 3, 10, 300);
+            assertSample(decoder.next(), START + 1_500, 1, 1_200, 2_000, 1_500, 35, 4, 120, 245);
+            assertSample(decoder.next(), START + 1_520, 2, 950, 2_000, 1_100, 170, 3, 10, 245);
+            // Kept in order at the time of the sample before it
+            assertEvent(decoder.next(), START + 1_520, "Conditioner", "Bitrate 4500 -> 2000 kbps");
+            assertEvent(decoder.next(), START + 2_000, "", "");
+            assertSample(decoder.next(), START + 2_500, 1, -5, 1L << 40, 0, 0, 4, 120, 0);
+            assertNull(decoder.next());
+        }
+    }
+
+    @Test
+    public void longMessagesAreTruncated() throws IOException {
+        final StringBuilder ascii = new StringBuilder();
+        while (ascii.length() < 300) {
+            ascii.append("timeout ");
+        }
+        // A pair of surrogates straddling the limit goes as a whole
+        final StringBuilder emoji = new StringBuilder();
+        while (emoji.length() < TelemetryEncoder.MAX_MESSAGE - 1) {
+            emoji.append('x');
+        }
+        emoji.append("📶 signal");
+
+        final TelemetryEncoder encoder = new TelemetryEncoder(START);
+        encoder.addEvent(START, "Tag", ascii.toString());
+        encoder.addEvent(START, "Tag", emoji.toString());
+        try (TelemetryDecoder decoder = decode(encoder.finish())) {
+            assertEquals(ascii.substring(0, TelemetryEncoder.MAX_MESSAGE), decoder.next().message);
+            assertEquals(emoji.substring(0, TelemetryEncoder.MAX_MESSAGE - 1), decoder.next().message);
+        }
+    }
+
+    @Test
+    public void steadyStreamIsSmall() throws IOException {
+        final TelemetryEncoder encoder = new TelemetryEncoder(START);
+        for (int i = 1; i <= 600; i++) {
+            for (int id = 1; id <= 3; id++) {
+                encoder.addSample(START + i * 500L + id, id, new long[]{4_000 + i % 3, 4_500, 6_000, 40, 0, 0, 300});
+            }
+        }
+        final byte[] batch = encoder.finish();
+        // Type, time, id and seven one-byte deltas, a second time byte for the first connection
+        assertTrue(encoder.size() + " bytes", encoder.size() < 1_800 * 10 + 600 + 100);
+        assertTrue(batch.length + " bytes", batch.length < encoder.size() / 10);
+        int records = 0;
+        try (TelemetryDecoder decoder = decode(batch)) {
+            while (decoder.next() != null) {
+                records++;
+            }
+        }
+        assertEquals(1_800, records);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherData() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write("PK\u0003\u0004".getBytes(StandardCharsets.US_ASCII));
+        }
+        decode(out.toByteArray()).close();
+    }
+
+    private static TelemetryDecoder decode(byte[] batch) throws IOException {
+        return new TelemetryDecoder(new ByteArrayInputStream(batch));
+    }
+
+    private static void assertSample(TelemetryDecoder.Record record, long time, int connectionId, long... values) {
+        assertEquals(TelemetryEncoder.TYPE_SAMPLE, record.type);
+        assertEquals(time, record.time);
+        assertEquals(connectionId, record.connectionId);
+        assertArrayEquals(values, record.values);
+    }
+
+    private static void assertEvent(TelemetryDecoder.Record record, long time, String tag, String message) {
+        assertEquals(TelemetryEncoder.TYPE_EVENT, record.type);
+        assertEquals(time, record.time);
+        assertEquals(tag, record.tag);
+        assertEquals(message, record.message);
+    }
+}
@@ -0,0 +1,79 @@
+package io.uslugi.streamer.metrics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+public class TelemetryUploaderTest {
+
+    private static final byte[] PAYLOAD = {0x1f, (byte) 0x8b, 8, 0, 1, 2, 3};
+
+    private final OkHttpClient mClient = new OkHttpClient.Builder()
+            .readTimeout(5, TimeUnit.SECONDS)
+            .build();
+    private MockWebServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockWebServer();
+        // Answers with the status in the path, OkHttp's own retries get the same answer
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                final String status = request.getRequestUrl().pathSegments().get(0);
+                if ("disconnect".equals(status)) {
+                    return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+                }
+                return new MockResponse().setResponseCode(Integer.parseInt(status));
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void postsBatch() throws InterruptedException {
+        assertEquals(TelemetryUploader.Result.DELIVERED, post("204"));
+
+        final RecordedRequest request = mServer.takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("udi-1", request.getHeader("X-Udi"));
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        assertArrayEquals(PAYLOAD, request.getBody().readByteArray());
+    }
+
+    @Test
+    public void refusalKeepsBatch() {
+        for (String code : new String[]{"400", "401", "403", "404", "307"}) {
+            assertEquals("HTTP " + code, TelemetryUploader.Result.REFUSED, post(code));
+        }
+    }
+
+    @Test
+    public void serverTroubleIsRetried() {
+        for (String code : new String[]{"408", "429", "500", "503", "disconnect"}) {
+            assertEquals(code, TelemetryUploader.Result.FAILED, post(code));
+        }
+    }
+
+    private TelemetryUploader.Result post(String status) {
+        return TelemetryUploader.post(mClient, mServer.url("/" + status), "udi-1", PAYLOAD);
+    }
+}
@@ -0,0 +1,494 @@
+package io.uslugi.streamer.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that split recordings join up without holes.
+ * <p>
+ * Each MP4 segment must have a video and an audio track, video must start on a key frame and both
+ * tracks must start and end together. Consecutive segments must be contiguous: the next one starts
+ * where the previous one ended.
+ * <p>
+ * The file names carry the wall clock time the split was requested (ms), the cut itself happens at
+ * the first key frame after it. So the previous segment started between the request minus its video
+ * duration and the request minus the time of its last key frame, both read from the media timestamps
+ * (stts, stss). The window for the start of the first segment is narrowed at every boundary; a gap or
+ * an overlap shows as a request outside the window, to within {@link #DEFAULT_TOLERANCE}. Without
+ * names only the movie creation time (s) is left and gaps show to within a key frame interval plus a
+ * second.
+ * <p>
+ * Test-side only, see {@link SegmentVerifierTest}, which also checks pulled recordings.
+ */
+public final class SegmentVerifier {
+
+    public static final long DEFAULT_TOLERANCE = 100; // Naming to split latency, ms rounding, a guessed last frame
+    private static final long CREATION_RESOLUTION = 1_000;
+    private static final long TRACK_SKEW = 500; // Audio and video start/end apart, ms
+    private static final long MP4_EPOCH = 2_082_844_800L; // 1904-01-01 to 1970-01-01, s
+    private static final int MAX_LEAF = 16 * 1024 * 1024;
+    private static final Pattern NAME_TIME = Pattern.compile("(\\d{8}_\\d{6})_(\\d{1,3})");
+
+    public static final class Track {
+        public String handler = ""; // "vide", "soun"
+        public long timescale;
+        public long units; // Sum of sample durations
+        public int samples;
+        public boolean startsWithSync = true; // No stss means every sample is a sync sample
+        public long delayMs; // Leading empty edit
+        final List<long[]> timeToSample = new ArrayList<>(); // stts {count, delta}
+        int[] syncSamples; // stss, 1-based, null if every sample is a sync sample
+
+        public long durationMs() {
+            return timescale > 0 ? units * 1000 / timescale : 0;
+        }
+
+        public long endMs() {
+            return delayMs + durationMs();
+        }
+
+        /**
+         * @return start of a sample within the segment, ms. Samples are 1-based.
+         */
+        public long sampleMs(int sample) {
+            long units = 0;
+            long left = sample - 1;
+            for (long[] entry : timeToSample) {
+                final long count = Math.min(entry[0], left);
+                units += count * entry[1];
+                left -= count;
+                if (left == 0) {
+                    break;
+                }
+            }
+            return delayMs + (timescale > 0 ? units * 1000 / timescale : 0);
+        }
+
+        /**
+         * @return start of the last key frame within the segment, ms.
+         */
+        public long lastSyncMs() {
+            if (syncSamples == null) {
+                return sampleMs(samples);
+            }
+            return syncSamples.length > 0 ? sampleMs(syncSamples[syncSamples.length - 1]) : delayMs;
+        }
+
+        /**
+         * @return longest stretch between key frames, the end of the track counting as one, ms.
+         */
+        public long keyFrameIntervalMs() {
+            if (syncSamples == null) {
+                return samples > 0 ? durationMs() / samples : 0;
+            }
+            long longest = 0;
+            long previous = delayMs;
+            for (int sample : syncSamples) {
+                final long time = sampleMs(sample);
+                longest = Math.max(longest, time - previous);
+                previous = time;
+            }
+            return Math.max(longest, endMs() - previous);
+        }
+    }
+
+    public static final class Segment {
+        public final String name;
+        public final List<Track> tracks = new ArrayList<>();
+        public final List<String> problems = new ArrayList<>();
+        public boolean hasMoov;
+        public boolean fragmented;
+        public long movieTimescale;
+        public long movieDurationMs;
+        public long creationTime; // ms since epoch, 0 if not set
+
+        Segment(String name) {
+            this.name = name;
+        }
+
+        public Track track(String handler) {
+            for (Track track : tracks) {
+                if (handler.equals(track.handler)) {
+                    return track;
+                }
+            }
+            return null;
+        }
+
+        public long durationMs() {
+            long duration = 0;
+            for (Track track : tracks) {
+                duration = Math.max(duration, track.endMs());
+            }
+            return duration > 0 ? duration : movieDurationMs;
+        }
+    }
+
+    public static final class Report {
+        public final List<Segment> segments;
+        public final List<String> problems = new ArrayList<>();
+        public final List<String> boundaries = new ArrayList<>();
+
+        Report(List<Segment> segments) {
+            this.segments = segments;
+        }
+
+        public boolean ok() {
+            if (!problems.isEmpty()) {
+                return false;
+            }
+            for (Segment segment : segments) {
+                if (!segment.problems.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (Segment segment : segments) {
+                final Track video = segment.track("vide");
+                final Track audio = segment.track("soun");
+                sb.append(String.format(Locale.US, "%s: %.2f s", segment.name, segment.durationMs() / 1000.0));
+                if (video != null) {
+                    sb.append(String.format(Locale.US, ", video %d frames", video.samples));
+                }
+                if (audio != null) {
+                    sb.append(String.format(Locale.US, ", audio %.2f s", audio.durationMs() / 1000.0));
+                }
+                sb.append('\n');
+                for (String problem : segment.problems) {
+                    sb.append("  ! ").append(problem).append('\n');
+                }
+            }
+            for (String boundary : boundaries) {
+                sb.append(boundary).append('\n');
+            }
+            for (String problem : problems) {
+                sb.append("! ").append(problem).append('\n');
+            }
+            sb.append(ok() ? "OK" : "FAILED");
+            return sb.toString();
+        }
+    }
+
+    private final long mTolerance;
+
+    public SegmentVerifier() {
+        this(DEFAULT_TOLERANCE);
+    }
+
+    public SegmentVerifier(long toleranceMs) {
+        mTolerance = toleranceMs;
+    }
+
+    /**
+     * Reads the track layout of one segment and checks it on its own.
+     */
+    public Segment read(String name, FileChannel channel) throws IOException {
+        final Segment segment = new Segment(name);
+        parse(channel, 0, channel.size(), segment, null);
+        if (!segment.hasMoov) {
+            segment.problems.add("no moov box, file was not finalized");
+            return segment;
+        }
+        if (segment.fragmented) {
+            segment.problems.add("fragmented MP4 is not supported");
+            return segment;
+        }
+        final Track video = segment.track("vide");
+        final Track audio = segment.track("soun");
+        if (video == null || video.samples == 0) {
+            segment.problems.add("no video");
+        } else if (!video.startsWithSync) {
+            segment.problems.add("video does not start with a key frame");
+        }
+        if (audio == null || audio.samples == 0) {
+            segment.problems.add("no audio");
+        }
+        if (video != null && audio != null && video.samples > 0 && audio.samples > 0) {
+            final long startSkew = Math.abs(video.delayMs - audio.delayMs);
+            if (startSkew > TRACK_SKEW) {
+                segment.problems.add("audio and video start " + startSkew + " ms apart");
+            }
+            final long endSkew = Math.abs(video.endMs() - audio.endMs());
+            if (endSkew > TRACK_SKEW) {
+                segment.problems.add("audio and video end " + endSkew + " ms apart");
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Checks the boundaries between segments given in recording order.
+     */
+    public Report verify(List<Segment> segments) {
+        final Report report = new Report(segments);
+        if (segments.size() < 2) {
+            return report;
+        }
+        // One time source for all segments, differences only make sense within it
+        final long[] requested = startTimes(segments, true);
+        if (requested != null) {
+            verifyCuts(segments, requested, report);
+            return report;
+        }
+        final long[] created = startTimes(segments, false);
+        if (created == null) {
+            report.problems.add("no start times in file names or headers, boundaries not checked");
+            return report;
+        }
+        for (int i = 1; i < segments.size(); i++) {
+            final Segment prev = segments.get(i - 1);
+            final long gap = created[i] - (created[i - 1] + prev.durationMs());
+            final long tolerance = keyFrameIntervalMs(prev) + CREATION_RESOLUTION + mTolerance;
+            addBoundary(report, prev, segments.get(i), gap > tolerance ? gap : 0,
+                    gap < -tolerance ? -gap : 0, String.format(Locale.US, "%+d ms by creation time", gap));
+        }
+        return report;
+    }
+
+    private void verifyCuts(List<Segment> segments, long[] requested, Report report) {
+        // Wall clock window the current segment started in
+        long earliest = requested[0];
+        long latest = requested[0] + keyFrameIntervalMs(segments.get(0));
+        for (int i = 1; i < segments.size(); i++) {
+            final Segment prev = segments.get(i - 1);
+            final Segment next = segments.get(i);
+            final Track video = prev.track("vide");
+            if (video == null || video.samples == 0) {
+                report.boundaries.add(prev.name + " -> " + next.name + ": no video, not checked");
+            } else {
+                // Cut at the first key frame after the request: the request came after the last key
+                // frame of the previous segment and no later than its end
+                final long duration = video.endMs();
+                final long from = Math.max(earliest, requested[i] - duration - mTolerance);
+                final long to = Math.min(latest, requested[i] - video.lastSyncMs() + mTolerance);
+                final long gap = from > latest ? from - latest : 0;
+                final long overlap = to < earliest ? earliest - to : 0;
+                addBoundary(report, prev, next, gap, overlap, gap > 0 || overlap > 0 ? "" : String.format(Locale.US,
+                        "cut %d..%d ms after the request", from + duration - requested[i],
+                        to + duration - requested[i]));
+                if (gap == 0 && overlap == 0) {
+                    earliest = from + duration;
+                    latest = to + duration;
+                    continue;
+                }
+            }
+            // Start over from this request
+            earliest = requested[i];
+            latest = requested[i] + keyFrameIntervalMs(next);
+        }
+    }
+
+    private static void addBoundary(Report report, Segment prev, Segment next, long gap, long overlap,
+                                    String detail) {
+        if (gap > 0) {
+            report.boundaries.add(String.format(Locale.US, "%s -> %s: gap", prev.name, next.name));
+            report.problems.add(String.format(Locale.US,
+                    "gap of at least %d ms between %s and %s", gap, prev.name, next.name));
+        } else if (overlap > 0) {
+            report.boundaries.add(String.format(Locale.US, "%s -> %s: overlap", prev.name, next.name));
+            report.problems.add(String.format(Locale.US,
+                    "%s starts at least %d ms before %s ends, out of order?", next.name, overlap, prev.name));
+        } else {
+            report.boundaries.add(String.format(Locale.US, "%s -> %s: %s", prev.name, next.name, detail));
+        }
+    }
+
+    private static long keyFrameIntervalMs(Segment segment) {
+        final Track video = segment.track("vide");
+        return video != null ? video.keyFrameIntervalMs() : 0;
+    }
+
+    private static long[] startTimes(List<Segment> segments, boolean fromName) {
+        final long[] start = new long[segments.size()];
+        for (int i = 0; i < start.length; i++) {
+            start[i] = fromName ? nameTime(segments.get(i).name) : segments.get(i).creationTime;
+            if (start[i] <= 0) {
+                return null;
+            }
+        }
+        return start;
+    }
+
+    // MediaFileSettings names end with yyyyMMdd_HHmmss_SS, SS being milliseconds
+    private static long nameTime(String name) {
+        final Matcher matcher = NAME_TIME.matcher(name);
+        long time = 0;
+        while (matcher.find()) {
+            try {
+                final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+                time = format.parse(matcher.group(1)).getTime() + Long.parseLong(matcher.group(2));
+            } catch (ParseException e) {
+                time = 0;
+            }
+        }
+        return time;
+    }
+
+    private static void parse(FileChannel channel, long start, long end, Segment segment, Track track)
+            throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(8);
+        long position = start;
+        while (position + 8 <= end) {
+            readFully(channel, header, position, 8);
+            long size = header.getInt() & 0xFFFFFFFFL;
+            final String type = type(header);
+            long headerSize = 8;
+            if (size == 1) {
+                readFully(channel, header, position + 8, 8);
+                size = header.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < headerSize || position + size > end) {
+                segment.problems.add("broken " + type + " box at " + position);
+                return;
+            }
+            final long payload = position + headerSize;
+            final long payloadEnd = position + size;
+            switch (type) {
+                case "moov":
+                    segment.hasMoov = true;
+                    parse(channel, payload, payloadEnd, segment, null);
+                    break;
+                case "moof":
+                case "mvex":
+                    segment.fragmented = true;
+                    break;
+                case "trak":
+                    final Track child = new Track();
+                    segment.tracks.add(child);
+                    parse(channel, payload, payloadEnd, segment, child);
+                    break;
+                case "mdia":
+                case "minf":
+                case "stbl":
+                case "edts":
+                    parse(channel, payload, payloadEnd, segment, track);
+                    break;
+                case "mvhd":
+                    readMovieHeader(leaf(channel, payload, payloadEnd), segment);
+                    break;
+                case "mdhd":
+                    if (track != null) {
+                        readMediaHeader(leaf(channel, payload, payloadEnd), track);
+                    }
+                    break;
+                case "hdlr":
+                    if (track != null) {
+                        final ByteBuffer hdlr = leaf(channel, payload, payloadEnd);
+                        hdlr.position(8);
+                        track.handler = type(hdlr);
+                    }
+                    break;
+                case "stts":
+                    if (track != null) {
+                        readTimeToSample(leaf(channel, payload, payloadEnd), track);
+                    }
+                    break;
+                case "stss":
+                    if (track != null) {
+                        final ByteBuffer stss = leaf(channel, payload, payloadEnd);
+                        stss.position(4);
+                        final int count = Math.min(stss.getInt(), stss.remaining() / 4);
+                        track.syncSamples = new int[count];
+                        for (int i = 0; i < count; i++) {
+                            track.syncSamples[i] = stss.getInt();
+                        }
+                        track.startsWithSync = count > 0 && track.syncSamples[0] == 1;
+                    }
+                    break;
+                case "elst":
+                    if (track != null) {
+                        readEditList(leaf(channel, payload, payloadEnd), segment, track);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            position = payloadEnd;
+        }
+    }
+
+    private static void readMovieHeader(ByteBuffer box, Segment segment) {
+        final int version = box.get() & 0xFF;
+        box.position(4);
+        final long creation = version == 1 ? box.getLong() : box.getInt() & 0xFFFFFFFFL;
+        box.position(box.position() + (version == 1 ? 8 : 4));
+        segment.movieTimescale = box.getInt() & 0xFFFFFFFFL;
+        final long duration = version == 1 ? box.getLong() : box.getInt() & 0xFFFFFFFFL;
+        segment.creationTime = creation > MP4_EPOCH ? (creation - MP4_EPOCH) * 1000 : 0;
+        segment.movieDurationMs = segment.movieTimescale > 0 ? duration * 1000 / segment.movieTimescale : 0;
+    }
+
+    private static void readMediaHeader(ByteBuffer box, Track track) {
+        final int version = box.get() & 0xFF;
+        box.position(4 + (version == 1 ? 16 : 8));
+        track.timescale = box.getInt() & 0xFFFFFFFFL;
+    }
+
+    private static void readTimeToSample(ByteBuffer box, Track track) {
+        box.position(4);
+        final int entries = box.getInt();
+        for (int i = 0; i < entries && box.remaining() >= 8; i++) {
+            final long count = box.getInt() & 0xFFFFFFFFL;
+            final long delta = box.getInt() & 0xFFFFFFFFL;
+            track.samples += count;
+            track.units += count * delta;
+            track.timeToSample.add(new long[]{count, delta});
+        }
+    }
+
+    // Only a leading empty edit matters here, it delays the track within the segment
+    private static void readEditList(ByteBuffer box, Segment segment, Track track) {
+        final int version = box.get() & 0xFF;
+        box.position(4);
+        final int entries = box.getInt();
+        if (entries == 0) {
+            return;
+        }
+        final long duration = version == 1 ? box.getLong() : box.getInt() & 0xFFFFFFFFL;
+        final long mediaTime = version == 1 ? box.getLong() : box.getInt();
+        if (mediaTime == -1 && segment.movieTimescale > 0) {
+            track.delayMs = duration * 1000 / segment.movieTimescale;
+        }
+    }
+
+    private static ByteBuffer leaf(FileChannel channel, long start, long end) throws IOException {
+        final int size = (int) Math.min(end - start, MAX_LEAF);
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        readFully(channel, buffer, start, size);
+        return buffer;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+    }
+
+    private static String type(ByteBuffer buffer) {
+        final byte[] type = new byte[4];
+        buffer.get(type);
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+}
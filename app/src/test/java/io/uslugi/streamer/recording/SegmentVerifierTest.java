@@ -0,0 +1,199 @@
+package io.uslugi.streamer.recording;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Cuts a simulated 30 fps stream with a key frame every 2 s into MP4 segments the way a split
+ * recording does and checks the verifier against them. Pulled recordings are checked too when passed
+ * in recording order as {@code ./gradlew test -Drecording.segments=a.mp4,b.mp4,...}, absolute paths
+ * or relative to the app module.
+ */
+public class SegmentVerifierTest {
+
+    private static final long START = 1_700_000_000_000L;
+    private static final int GOP = 60; // Frames
+    private static final int VIDEO_TIMESCALE = 90_000;
+    private static final int FRAME_UNITS = 3_000; // 1/30 s
+    private static final int AUDIO_TIMESCALE = 48_000;
+    private static final int AUDIO_FRAME = 1_024;
+
+    // Split requests 60 s apart, at different points within a key frame interval
+    private static final long[] REQUESTS = {
+            START, START + 60_000 + 1_960, START + 120_000 + 40, START + 180_000 + 1_100,
+            START + 240_000 + 1_990, START + 300_000 + 10, START + 360_000 + 700
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void contiguousSegmentsPass() throws IOException {
+        final SegmentVerifier.Report report = verify(0, 0);
+        System.out.println(report);
+        assertTrue(report.toString(), report.ok());
+        assertEquals(REQUESTS.length - 2, report.boundaries.size());
+    }
+
+    @Test
+    public void gapIsFound() throws IOException {
+        // Ten frames (333 ms) lost before the third cut, well inside a key frame interval
+        final SegmentVerifier.Report report = verify(-10, 0);
+        System.out.println(report);
+        assertFalse(report.ok());
+        assertTrue(report.toString(), report.problems.get(0).startsWith("gap of at least"));
+    }
+
+    @Test
+    public void overlapIsFound() throws IOException {
+        final SegmentVerifier.Report report = verify(0, 10);
+        System.out.println(report);
+        assertFalse(report.ok());
+        assertTrue(report.toString(), report.problems.get(0).contains("before"));
+    }
+
+    @Test
+    public void segmentMustStartOnKeyFrame() throws IOException {
+        final File file = write("rec_" + name(START) + ".mp4", 1, 2 * GOP);
+        assertEquals("video does not start with a key frame", read(file).problems.get(0));
+    }
+
+    @Test
+    public void pulledRecordings() throws IOException {
+        final String paths = System.getProperty("recording.segments");
+        assumeTrue(paths != null);
+        final List<SegmentVerifier.Segment> segments = new ArrayList<>();
+        for (String path : paths.split(",")) {
+            segments.add(read(new File(path)));
+        }
+        final SegmentVerifier.Report report = new SegmentVerifier().verify(segments);
+        System.out.println(report);
+        assertTrue(report.toString(), report.ok());
+    }
+
+    /**
+     * @param lost  Frames missing at the end of the segment before the third cut.
+     * @param extra Frames the segment before the third cut has past the cut.
+     */
+    private SegmentVerifier.Report verify(int lost, int extra) throws IOException {
+        final List<SegmentVerifier.Segment> segments = new ArrayList<>();
+        // The last request only ends the previous segment
+        for (int i = 0; i + 1 < REQUESTS.length; i++) {
+            int end = cut(REQUESTS[i + 1]);
+            if (i == 2) {
+                end += lost + extra;
+            }
+            final File file = write("rec_" + name(REQUESTS[i]) + ".mp4", cut(REQUESTS[i]), end);
+            segments.add(read(file));
+        }
+        return new SegmentVerifier().verify(segments);
+    }
+
+    // First key frame at or after the request
+    private static int cut(long request) {
+        final long units = (request - START) * VIDEO_TIMESCALE / 1000;
+        final int frame = (int) ((units + FRAME_UNITS - 1) / FRAME_UNITS);
+        return (frame + GOP - 1) / GOP * GOP;
+    }
+
+    private static String name(long time) {
+        return new SimpleDateFormat("yyyyMMdd_HHmmss_SS", Locale.US).format(new Date(time));
+    }
+
+    private static SegmentVerifier.Segment read(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return new SegmentVerifier().read(file.getName(), in.getChannel());
+        }
+    }
+
+    /**
+     * Writes frames [first, end) of the stream with matching audio as a minimal MP4.
+     */
+    private File write(String name, int first, int end) throws IOException {
+        final int frames = end - first;
+        final List<Integer> sync = new ArrayList<>();
+        for (int frame = first; frame < end; frame++) {
+            if (frame % GOP == 0) {
+                sync.add(frame - first + 1);
+            }
+        }
+        final long videoUnits = (long) frames * FRAME_UNITS;
+        final int audioFrames = (int) (videoUnits * AUDIO_TIMESCALE / VIDEO_TIMESCALE / AUDIO_FRAME);
+
+        final byte[] moov = box("moov",
+                fullBox("mvhd", 0, 0, 1_000, videoUnits * 1_000 / VIDEO_TIMESCALE),
+                track("vide", VIDEO_TIMESCALE, frames, FRAME_UNITS, sync),
+                track("soun", AUDIO_TIMESCALE, audioFrames, AUDIO_FRAME, null));
+        final File file = mFolder.newFile(name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII)));
+            out.write(moov);
+        }
+        return file;
+    }
+
+    private static byte[] track(String handler, int timescale, int samples, int delta, List<Integer> sync)
+            throws IOException {
+        final ByteArrayOutputStream hdlr = new ByteArrayOutputStream();
+        hdlr.write(new byte[8]);
+        hdlr.write(handler.getBytes(StandardCharsets.US_ASCII));
+        hdlr.write(new byte[13]);
+        final List<byte[]> tables = new ArrayList<>();
+        tables.add(fullBox("stts", 1, samples, delta));
+        if (sync != null) {
+            final long[] stss = new long[sync.size() + 1];
+            stss[0] = sync.size();
+            for (int i = 0; i < sync.size(); i++) {
+                stss[i + 1] = sync.get(i);
+            }
+            tables.add(fullBox("stss", stss));
+        }
+        return box("trak", box("mdia",
+                fullBox("mdhd", 0, 0, timescale, (long) samples * delta, 0),
+                box("hdlr", hdlr.toByteArray()),
+                box("minf", box("stbl", tables.toArray(new byte[0][])))));
+    }
+
+    // Version 0 box of 32-bit fields
+    private static byte[] fullBox(String type, long... fields) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(payload);
+        out.writeInt(0);
+        for (long field : fields) {
+            out.writeInt((int) field);
+        }
+        return box(type, payload.toByteArray());
+    }
+
+    private static byte[] box(String type, byte[]... children) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (byte[] child : children) {
+            payload.write(child);
+        }
+        final ByteArrayOutputStream box = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(box);
+        out.writeInt(8 + payload.size());
+        out.writeBytes(type);
+        payload.writeTo(out);
+        return box.toByteArray();
+    }
+}
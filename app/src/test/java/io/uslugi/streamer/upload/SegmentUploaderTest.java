@@ -0,0 +1,245 @@
+package io.uslugi.streamer.upload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.uslugi.streamer.data.SegmentUpload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+public class SegmentUploaderTest {
+
+    private static final String UDI = "udi-1";
+    private static final int CHUNK = 1_000;
+
+    private final OkHttpClient mClient = new OkHttpClient.Builder()
+            .retryOnConnectionFailure(false)
+            .readTimeout(5, TimeUnit.SECONDS)
+            .build();
+    private MockWebServer mServer;
+    private StandIn mStandIn;
+    private int mTaken; // Requests taken from the server
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockWebServer();
+        mStandIn = new StandIn();
+        mServer.setDispatcher(mStandIn);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void uploadsInChunks() {
+        final byte[] file = file(4_500);
+        final SegmentUpload segment = segment(file);
+        for (int i = 1; i < 5; i++) {
+            assertEquals(SegmentUploader.Outcome.PARTIAL, step(segment, file, UDI).outcome);
+            assertEquals(i * CHUNK, segment.offset);
+        }
+        assertEquals(SegmentUploader.Outcome.COMPLETE, step(segment, file, UDI).outcome);
+        assertEquals(5, mServer.getRequestCount());
+        assertArrayEquals(file, mStandIn.stored());
+    }
+
+    @Test
+    public void resumesFromServerOffset() throws InterruptedException {
+        final byte[] file = file(4_500);
+        final SegmentUpload segment = segment(file);
+        // The link drops in the middle of the third chunk, the server kept part of it
+        mStandIn.dropAt = 2 * CHUNK + 300;
+        step(segment, file, UDI);
+        step(segment, file, UDI);
+        assertEquals(SegmentUploader.Outcome.RETRY, step(segment, file, UDI).outcome);
+        assertEquals(2 * CHUNK, segment.offset);
+        assertEquals(1, segment.failures);
+
+        // Asks where to go on from, then sends the rest of the third chunk
+        assertEquals(SegmentUploader.Outcome.PARTIAL, step(segment, file, UDI).outcome);
+        assertEquals(3 * CHUNK + 300, segment.offset);
+        assertEquals(0, segment.failures);
+        assertEquals("bytes */4500", contentRange(4));
+        assertEquals("bytes 2300-3299/4500", contentRange(5));
+
+        assertEquals(2, upload(segment, file));
+        assertEquals(7, mServer.getRequestCount());
+        assertArrayEquals(file, mStandIn.stored());
+    }
+
+    @Test
+    public void refusedSegmentAsksForOffsetFirst() throws InterruptedException {
+        final byte[] file = file(10);
+        final SegmentUpload segment = segment(file);
+        mStandIn.refuse = 1;
+        final SegmentUploader.Step refused = step(segment, file, UDI);
+        assertEquals(SegmentUploader.Outcome.REFUSED, refused.outcome);
+        assertEquals("HTTP 403", refused.reason);
+        assertEquals(1, segment.failures);
+
+        // Nothing stored, the 308 has no Range and the upload starts over
+        assertEquals(SegmentUploader.Outcome.COMPLETE, step(segment, file, UDI).outcome);
+        assertEquals("bytes 0-9/10", contentRange(1));
+        assertEquals("bytes */10", contentRange(2));
+        assertEquals("bytes 0-9/10", contentRange(3));
+        assertArrayEquals(file, mStandIn.stored());
+    }
+
+    @Test
+    public void storedSegmentCompletesOnOffsetQuery() {
+        final byte[] file = file(2_500);
+        mStandIn.store(file);
+        final SegmentUpload segment = segment(file);
+        segment.failures = 3;
+        assertEquals(SegmentUploader.Outcome.COMPLETE, step(segment, file, UDI).outcome);
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void missingRangeTrustsWhatWasSent() {
+        final byte[] file = file(2_500);
+        final SegmentUpload segment = segment(file);
+        mStandIn.omitRange = true;
+        assertEquals(SegmentUploader.Outcome.PARTIAL, step(segment, file, UDI).outcome);
+        assertEquals(CHUNK, segment.offset);
+        assertEquals(2, upload(segment, file));
+        assertArrayEquals(file, mStandIn.stored());
+    }
+
+    @Test
+    public void refusalKeepsSegment() {
+        final byte[] file = file(10);
+        final SegmentUpload segment = segment(file);
+        assertEquals(SegmentUploader.Outcome.REFUSED, step(segment, file, "stranger").outcome);
+        assertEquals(0, segment.offset);
+        for (int code : new int[]{301, 302, 400, 401, 403, 404, 410}) {
+            assertEquals("HTTP " + code, SegmentUploader.Outcome.REFUSED, SegmentUploader.outcome(code));
+        }
+        for (int code : new int[]{408, 429, 500, 502, 503}) {
+            assertEquals("HTTP " + code, SegmentUploader.Outcome.RETRY, SegmentUploader.outcome(code));
+        }
+    }
+
+    private SegmentUploader.Step step(SegmentUpload segment, byte[] file, String udi) {
+        final HttpUrl url = mServer.url("/segment.php").newBuilder().addQueryParameter("name", segment.name).build();
+        return SegmentUploader.step(mClient, url, udi, segment,
+                (position, buffer, length) -> System.arraycopy(file, (int) position, buffer, 0, length),
+                new byte[CHUNK], new SegmentUploader.RateLimiter());
+    }
+
+    /**
+     * Steps the way the uploader's workers do until the server has the whole segment.
+     *
+     * @return steps taken.
+     */
+    private int upload(SegmentUpload segment, byte[] file) {
+        for (int steps = 1; steps <= 20; steps++) {
+            final SegmentUploader.Step step = step(segment, file, UDI);
+            if (step.outcome == SegmentUploader.Outcome.COMPLETE) {
+                return steps;
+            }
+            assertNotEquals(step.reason, SegmentUploader.Outcome.REFUSED, step.outcome);
+        }
+        fail("Upload did not finish");
+        return 0;
+    }
+
+    // Content-Range of the n-th request, from 1
+    private String contentRange(int n) throws InterruptedException {
+        RecordedRequest request = null;
+        while (mTaken < n) {
+            request = mServer.takeRequest();
+            mTaken++;
+        }
+        return request != null ? request.getHeader("Content-Range") : null;
+    }
+
+    private static SegmentUpload segment(byte[] file) {
+        final SegmentUpload segment = new SegmentUpload();
+        segment.name = "rec.mp4";
+        segment.size = file.length;
+        return segment;
+    }
+
+    private static byte[] file(int size) {
+        final byte[] file = new byte[size];
+        new Random(size).nextBytes(file);
+        return file;
+    }
+
+    /**
+     * Resumable upload endpoint the way segment.php is specified: Content-Range chunks in order,
+     * 308 with Range while incomplete, 201 once the whole file is stored.
+     */
+    private static final class StandIn extends Dispatcher {
+        private final ByteArrayOutputStream mStored = new ByteArrayOutputStream();
+        volatile long dropAt = -1;
+        volatile int refuse; // Requests to answer with 403
+        volatile boolean omitRange; // A proxy that drops the Range header
+
+        synchronized byte[] stored() {
+            return mStored.toByteArray();
+        }
+
+        synchronized void store(byte[] data) {
+            mStored.write(data, 0, data.length);
+        }
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) {
+            if (!"PUT".equals(request.getMethod()) || !UDI.equals(request.getHeader("X-Udi"))) {
+                return new MockResponse().setResponseCode(401);
+            }
+            if (refuse > 0) {
+                refuse--;
+                return new MockResponse().setResponseCode(403);
+            }
+            assertTrue(request.getPath(), request.getPath().startsWith("/segment.php?name=rec.mp4"));
+            // bytes first-last/total or bytes */total
+            final String range = request.getHeader("Content-Range");
+            final String[] parts = range.substring("bytes ".length()).split("/");
+            final long total = Long.parseLong(parts[1]);
+            final byte[] body = request.getBody().readByteArray();
+            if (!"*".equals(parts[0])) {
+                final long first = Long.parseLong(parts[0].substring(0, parts[0].indexOf('-')));
+                if (first == mStored.size()) {
+                    if (dropAt > first && dropAt < first + body.length) {
+                        mStored.write(body, 0, (int) (dropAt - first));
+                        dropAt = -1;
+                        return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+                    }
+                    mStored.write(body, 0, body.length);
+                }
+            }
+            if (mStored.size() == total) {
+                return new MockResponse().setResponseCode(201);
+            }
+            final MockResponse response = new MockResponse().setResponseCode(308);
+            if (mStored.size() > 0 && !omitRange) {
+                response.setHeader("Range", "bytes=0-" + (mStored.size() - 1));
+            }
+            return response;
+        }
+    }
+}